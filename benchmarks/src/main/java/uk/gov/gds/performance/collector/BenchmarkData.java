@@ -0,0 +1,45 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Results that look like a real run: a few dozen days, every period and a handful of channels, always the same for
+ * the same number of records so that runs can be compared.
+ */
+final class BenchmarkData {
+    static final LocalDate FIRST_DAY = new LocalDate("2014-01-01");
+    static final int DAYS = 31;
+    static final String[] CHANNELS = {"DIGITAL", "PAPER", "PHONE", "FACE_TO_FACE", "ASSISTED_DIGITAL", "POST_OFFICE"};
+
+    private static final Period[] PERIODS = Period.values();
+
+    private BenchmarkData() {
+    }
+
+    static List<StageResult> stageResults(int records) {
+        List<StageResult> results = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            results.add(new StageResult(dayOf(i), periodOf(i), channelOf(i), countOf(i)));
+        }
+        return results;
+    }
+
+    static LocalDate dayOf(int record) {
+        return FIRST_DAY.plusDays(record % DAYS);
+    }
+
+    static Period periodOf(int record) {
+        return PERIODS[(record / DAYS) % PERIODS.length];
+    }
+
+    static String channelOf(int record) {
+        return CHANNELS[(record / (DAYS * PERIODS.length)) % CHANNELS.length];
+    }
+
+    static int countOf(int record) {
+        return (record * 7919) % 100000;
+    }
+}
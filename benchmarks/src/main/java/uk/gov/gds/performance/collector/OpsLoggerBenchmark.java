@@ -0,0 +1,56 @@
+package uk.gov.gds.performance.collector;
+
+import org.openjdk.jmh.annotations.*;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long logging a message takes the thread that logs it, writing to a stream that throws everything away, both
+ * when it is written on that thread and when it is handed to the writer thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpsLoggerBenchmark {
+    @Param({"false", "true"})
+    public boolean async;
+
+    private OpsLogger<CollectorLogMessage> logger;
+
+    @Setup
+    public void createLogger() {
+        logger = new OpsLogger<>(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        if (async) {
+            logger.startAsync(1024, OpsLogger.OverflowPolicy.BLOCK);
+        }
+    }
+
+    @TearDown
+    public void closeLogger() {
+        logger.close();
+    }
+
+    @Benchmark
+    public void logWithoutDetails() {
+        logger.log(CollectorLogMessage.AllConnectivityChecksPassed);
+    }
+
+    @Benchmark
+    public void logWithDetails() {
+        logger.log(CollectorLogMessage.BatchPublished, 500, 61440, 35L);
+    }
+}
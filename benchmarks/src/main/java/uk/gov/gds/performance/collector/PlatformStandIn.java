@@ -0,0 +1,114 @@
+package uk.gov.gds.performance.collector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stands in for the performance platform on a local port: it accepts every POST after a fixed delay, standing for
+ * the time the real platform takes, and keeps count of the requests and records it was sent.
+ */
+class PlatformStandIn implements AutoCloseable {
+    private static final byte[] RESPONSE = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RECORD_MARKER = "\"_id\"".getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMillis;
+
+    private int requests = 0;
+    private long records = 0;
+
+    PlatformStandIn(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new Handler());
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/data/throughput/test";
+    }
+
+    /**
+     * Forgets every request so far, such as the one the collector sends to check it can connect.
+     */
+    synchronized void reset() {
+        requests = 0;
+        records = 0;
+    }
+
+    synchronized int getRequests() {
+        return requests;
+    }
+
+    synchronized long getRecords() {
+        return records;
+    }
+
+    private synchronized void recordRequest(long recordsInRequest) {
+        requests++;
+        records += recordsInRequest;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static long countRecords(byte[] body) {
+        long count = 0;
+        for (int i = 0; i + RECORD_MARKER.length <= body.length; i++) {
+            int j = 0;
+            while (j < RECORD_MARKER.length && body[i + j] == RECORD_MARKER[j]) {
+                j++;
+            }
+            if (j == RECORD_MARKER.length) {
+                count++;
+                i += RECORD_MARKER.length - 1;
+            }
+        }
+        return count;
+    }
+
+    private class Handler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                try (InputStream in = exchange.getRequestBody()) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        body.write(buffer, 0, read);
+                    }
+                }
+                if (latencyMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(RESPONSE);
+                }
+                recordRequest(countRecords(body.toByteArray()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
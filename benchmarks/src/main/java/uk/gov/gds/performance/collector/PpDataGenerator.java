@@ -0,0 +1,328 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeConstants;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogManager;
+
+/**
+ * Fills a {@code PP_DATA} table with made-up rows, as many as a real one would hold, so that reading, aggregating and
+ * publishing can be tried out at a realistic size. Works against HSQLDB or any database whose JDBC driver is on the
+ * classpath, inserting in batches and committing after each one.
+ *
+ * <p>Each row has a key (the date, period and channel) and a count. Keys are spread evenly over the dates, periods
+ * are chosen in the proportions given, and channels are chosen with a Zipf distribution, so that with a skew of 0
+ * every channel is as likely as any other and the higher the skew, the more the first few channels dominate. Rows
+ * for a week, month or quarter are dated on the first day of it. A given proportion of rows repeat the key of a recent
+ * row, as the rows that aggregation adds together do; the rest may still share a key by chance when there are few
+ * dates, periods and channels to choose from. The same settings always generate the same rows.</p>
+ */
+public class PpDataGenerator {
+    static {
+        LogManager.getLogManager().reset();
+        System.setProperty("hsqldb.reconfig_logging", "false"); //otherwise HSQLDB logs to the console
+        CmdLineParser.registerHandler(LocalDate.class, CommandLineArguments.LocalDateOptionHandler.class);
+    }
+
+    private static final int RECENT_KEYS = 1024;
+    private static final long PROGRESS_ROWS = 1000000;
+
+    @Option(name = "--url", usage = "the JDBC connection string of the database to fill")
+    private String url = "jdbc:hsqldb:file:build/pp-data/pp";
+
+    @Option(name = "--username", usage = "the database user")
+    private String username = "SA";
+
+    @Option(name = "--password", usage = "the database user's password")
+    private String password = "";
+
+    @Option(name = "--create-table", usage = "drop PP_DATA if it exists and create it again before filling it")
+    private boolean createTable = false;
+
+    @Option(name = "--rows", usage = "the number of rows to insert")
+    private long rows = 1000000;
+
+    @Option(name = "--start", usage = "the first date to generate rows for")
+    private LocalDate startDate = new LocalDate("2014-01-01");
+
+    @Option(name = "--days", usage = "the number of days to spread the rows over")
+    private int days = 365;
+
+    @Option(name = "--periods", usage = "the periods to generate and how often, as period=weight pairs separated by commas, e.g. day=80,week=15,month=5")
+    private String periods = "day=80,week=15,month=5";
+
+    @Option(name = "--channels", usage = "the number of different channels")
+    private int channels = 6;
+
+    @Option(name = "--skew", usage = "how much the rows favour the first channels, as the exponent of a Zipf distribution; 0 for none")
+    private double skew = 0;
+
+    @Option(name = "--duplicates", usage = "the proportion of rows, from 0 to 1, that repeat the key of a recent row")
+    private double duplicateRatio = 0;
+
+    @Option(name = "--max-count", usage = "the largest EVENT_COUNT to generate")
+    private int maxCount = 1000;
+
+    @Option(name = "--batch-size", usage = "the number of rows to insert in each batch")
+    private int batchSize = 10000;
+
+    @Option(name = "--seed", usage = "the seed of the random numbers, to generate a different set of rows")
+    private long seed = 0;
+
+    private Period[] periodChoices;
+    private double[] periodCumulativeWeights;
+    private double[] channelCumulativeWeights;
+
+    PpDataGenerator() {
+    }
+
+    public static void main(String... args) throws Exception {
+        PpDataGenerator generator = new PpDataGenerator();
+        CmdLineParser parser = new CmdLineParser(generator);
+        try {
+            parser.parseArgument(args);
+            generator.validate(parser);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+
+        try (Connection conn = DriverManager.getConnection(generator.url, generator.username, generator.password)) {
+            if (generator.createTable) {
+                generator.createTable(conn);
+            }
+            long start = System.nanoTime();
+            generator.generate(conn);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Inserted %d rows from %s to %s in %.1f s (%.0f rows per second)%n", generator.rows,
+                    generator.startDate, generator.getDateRange().getEndDate(), seconds, generator.rows / seconds);
+            if (generator.url.startsWith("jdbc:hsqldb:file:")) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("shutdown");
+                }
+            }
+        }
+    }
+
+    private void validate(CmdLineParser parser) throws CmdLineException {
+        if (rows < 0 || days < 1 || channels < 1 || maxCount < 0 || batchSize < 1) {
+            throw new CmdLineException(parser, "--rows and --max-count cannot be negative, and --days, --channels and --batch-size must be at least 1");
+        }
+        if (duplicateRatio < 0 || duplicateRatio > 1) {
+            throw new CmdLineException(parser, "--duplicates must be between 0 and 1");
+        }
+        if (skew < 0) {
+            throw new CmdLineException(parser, "--skew cannot be negative");
+        }
+        try {
+            setPeriods(periods);
+        } catch (IllegalArgumentException e) {
+            throw new CmdLineException(parser, "--periods " + e.getMessage());
+        }
+    }
+
+    void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    void setDays(int days) {
+        this.days = days;
+    }
+
+    void setChannels(int channels) {
+        this.channels = channels;
+    }
+
+    void setDuplicateRatio(double duplicateRatio) {
+        this.duplicateRatio = duplicateRatio;
+    }
+
+    /**
+     * @param periods period=weight pairs separated by commas, e.g. {@code day=80,week=15,month=5}
+     */
+    void setPeriods(String periods) {
+        String[] pairs = periods.split(",");
+        Period[] choices = new Period[pairs.length];
+        double[] weights = new double[pairs.length];
+        double total = 0;
+        for (int i = 0; i < pairs.length; i++) {
+            String[] pair = pairs[i].trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected period=weight but found " + pairs[i].trim());
+            }
+            choices[i] = Period.valueOf(pair[0].trim());
+            double weight = Double.parseDouble(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("cannot have a negative weight");
+            }
+            total += weight;
+            weights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("must give at least one period a weight");
+        }
+        this.periods = periods;
+        this.periodChoices = choices;
+        this.periodCumulativeWeights = weights;
+    }
+
+    /**
+     * @return the dates that the rows are spread over, from the start date to the last day
+     */
+    LocalDateRange getDateRange() {
+        return new LocalDateRange(startDate, startDate.plusDays(days - 1));
+    }
+
+    static String channelName(int channel) {
+        return channel < BenchmarkData.CHANNELS.length ? BenchmarkData.CHANNELS[channel] : "CHANNEL_" + (channel + 1);
+    }
+
+    /**
+     * Creates an empty {@code PP_DATA} table with the columns the repository reads, dropping any that is already
+     * there. In an HSQLDB file database the table is a cached one, so that it need not fit in memory.
+     */
+    void createTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            try {
+                stmt.execute("drop table PP_DATA");
+            } catch (SQLException ignore) {
+                //there was no table to drop
+            }
+            String table = conn.getMetaData().getURL().startsWith("jdbc:hsqldb:file:") ? "cached table" : "table";
+            stmt.execute("create " + table + " PP_DATA (EVENT_TIME timestamp not null, PERIOD varchar(20) not null, CHANNEL varchar(250) not null, EVENT_COUNT integer not null)");
+        }
+        conn.commit();
+    }
+
+    /**
+     * Inserts the rows into the existing {@code PP_DATA} table.
+     */
+    void generate(Connection conn) throws SQLException {
+        if (periodChoices == null) {
+            setPeriods(periods);
+        }
+        channelCumulativeWeights = zipfCumulativeWeights(channels, skew);
+        Random random = new Random(seed);
+        int[] recentDays = new int[RECENT_KEYS];
+        Period[] recentPeriods = new Period[RECENT_KEYS];
+        int[] recentChannels = new int[RECENT_KEYS];
+        String[] channelNames = new String[channels];
+        for (int i = 0; i < channels; i++) {
+            channelNames[i] = channelName(i);
+        }
+        Date[] dates = new Date[days];
+        int keysGenerated = 0;
+
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        long start = System.nanoTime();
+        try (PreparedStatement insert = conn.prepareStatement("insert into PP_DATA (EVENT_TIME, PERIOD, CHANNEL, EVENT_COUNT) values (?, ?, ?, ?)")) {
+            for (long row = 0; row < rows; row++) {
+                int day;
+                Period period;
+                int channel;
+                if (keysGenerated > 0 && random.nextDouble() < duplicateRatio) {
+                    int recent = random.nextInt(Math.min(keysGenerated, RECENT_KEYS));
+                    day = recentDays[recent];
+                    period = recentPeriods[recent];
+                    channel = recentChannels[recent];
+                } else {
+                    period = periodChoices[choose(periodCumulativeWeights, random)];
+                    day = firstDayOf(period, random.nextInt(days));
+                    channel = choose(channelCumulativeWeights, random);
+                    int recent = keysGenerated++ % RECENT_KEYS;
+                    recentDays[recent] = day;
+                    recentPeriods[recent] = period;
+                    recentChannels[recent] = channel;
+                }
+                if (dates[day] == null) {
+                    dates[day] = new Date(startDate.plusDays(day).toDate().getTime());
+                }
+
+                insert.setDate(1, dates[day]);
+                insert.setString(2, period.name());
+                insert.setString(3, channelNames[channel]);
+                insert.setInt(4, random.nextInt(maxCount + 1));
+                insert.addBatch();
+                if ((row + 1) % batchSize == 0) {
+                    insert.executeBatch();
+                    conn.commit();
+                }
+                if ((row + 1) % PROGRESS_ROWS == 0) {
+                    System.out.printf("Inserted %d of %d rows after %d s%n", row + 1, rows, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+                }
+            }
+            if (rows % batchSize != 0) {
+                //HSQLDB will not run an empty batch
+                insert.executeBatch();
+                conn.commit();
+            }
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * @return the day, counted from the start date, that the period containing the given day starts on, or the
+     * start date itself if the period started before it
+     */
+    private int firstDayOf(Period period, int day) {
+        LocalDate date = startDate.plusDays(day);
+        LocalDate first;
+        switch (period) {
+            case week:
+                first = date.withDayOfWeek(DateTimeConstants.MONDAY);
+                break;
+            case month:
+                first = date.withDayOfMonth(1);
+                break;
+            case quarter:
+                first = date.withDayOfMonth(1).withMonthOfYear(((date.getMonthOfYear() - 1) / 3) * 3 + 1);
+                break;
+            default:
+                first = date;
+        }
+        return first.isBefore(startDate) ? 0 : Days.daysBetween(startDate, first).getDays();
+    }
+
+    /**
+     * @return the cumulative weights of the ranks 1 to n in a Zipf distribution with the given exponent
+     */
+    private static double[] zipfCumulativeWeights(int n, double exponent) {
+        double[] result = new double[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            result[i] = total;
+        }
+        return result;
+    }
+
+    /**
+     * @return an index into the cumulative weights, chosen in proportion to the weight of each
+     */
+    private static int choose(double[] cumulativeWeights, Random random) {
+        double target = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, target);
+        index = index < 0 ? -index - 1 : index + 1;
+        //skip any choices with no weight, which share their cumulative weight with the one before
+        while (index < cumulativeWeights.length - 1 && cumulativeWeights[index] <= target) {
+            index++;
+        }
+        return Math.min(index, cumulativeWeights.length - 1);
+    }
+}
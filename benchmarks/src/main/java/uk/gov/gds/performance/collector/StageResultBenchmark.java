@@ -0,0 +1,45 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long working out the {@code _id} of each record in a run takes. The id is remembered by the result once it has
+ * been worked out, so every invocation starts from new results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageResultBenchmark {
+    @Param({"100", "10000"})
+    public int records;
+
+    private LocalDate[] days;
+    private Period[] periods;
+    private String[] channels;
+
+    @Setup
+    public void createRecords() {
+        days = new LocalDate[records];
+        periods = new Period[records];
+        channels = new String[records];
+        for (int i = 0; i < records; i++) {
+            days[i] = BenchmarkData.dayOf(i);
+            periods[i] = BenchmarkData.periodOf(i);
+            channels[i] = BenchmarkData.channelOf(i);
+        }
+    }
+
+    @Benchmark
+    public void get_id(Blackhole blackhole) {
+        for (int i = 0; i < records; i++) {
+            blackhole.consume(new StageResult(days[i], periods[i], channels[i], BenchmarkData.countOf(i)).get_id());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package uk.gov.gds.performance.collector;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long turning a run's results into JSON takes, both as {@code JsonObject}s and written straight to a stream as
+ * the publisher does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageResultToJsonConverterBenchmark {
+    @Param({"100", "10000"})
+    public int records;
+
+    private final StageResultToJsonConverter converter = new StageResultToJsonConverter();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private List<StageResult> results;
+    private StageResultBatch batch;
+
+    @Setup
+    public void createRecords() {
+        results = BenchmarkData.stageResults(records);
+        batch = StageResultBatch.of(results);
+    }
+
+    @Benchmark
+    public void convert(Blackhole blackhole) {
+        for (StageResult result : results) {
+            blackhole.consume(converter.convert(result));
+        }
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        out.reset();
+        for (int i = 0; i < batch.size(); i++) {
+            converter.write(batch, i, out);
+        }
+        return out.size();
+    }
+}
@@ -0,0 +1,85 @@
+package uk.gov.gds.performance.collector;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long reading a run's rows and turning them into results takes, against an in-memory HSQLDB database. The
+ * database is quicker than a real one would be, so this is mostly the cost of the query and of mapping the rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsRepositoryBenchmark {
+    @Param({"1000", "100000"})
+    public int records;
+
+    @Param({"false", "true"})
+    public boolean aggregate;
+
+    /**
+     * The proportion of rows that share their key with another, and so are added together when aggregating.
+     */
+    @Param({"0", "0.5"})
+    public double duplicates;
+
+    private JDBCDataSource dataSource;
+    private StatsRepository repository;
+    private LocalDateRange dateRange;
+
+    @Setup
+    public void createDatabase() throws SQLException {
+        dataSource = new JDBCDataSource();
+        dataSource.setUrl("jdbc:hsqldb:mem:benchmark");
+        dataSource.setUser("sa");
+        dataSource.setPassword("");
+        PpDataGenerator generator = new PpDataGenerator();
+        generator.setRows(records);
+        generator.setDays(BenchmarkData.DAYS);
+        generator.setDuplicateRatio(duplicates);
+        try (Connection conn = dataSource.getConnection()) {
+            generator.createTable(conn);
+            generator.generate(conn);
+        }
+        dateRange = generator.getDateRange();
+        repository = new StatsRepository(dataSource, StatsRepository.DEFAULT_FETCH_SIZE, aggregate);
+    }
+
+    @TearDown
+    public void dropDatabase() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("shutdown");
+        }
+    }
+
+    @Benchmark
+    public int streamStatsBetween(final Blackhole blackhole) throws SQLException, IOException {
+        return repository.streamStatsBetween(dateRange, new StageResultSink() {
+            @Override
+            public void accept(StageResultBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    blackhole.consume(batch.getCount(i));
+                }
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+}
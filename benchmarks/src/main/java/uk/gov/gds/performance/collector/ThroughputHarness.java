@@ -0,0 +1,219 @@
+package uk.gov.gds.performance.collector;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.LogManager;
+
+/**
+ * Measures how fast the whole collector runs, without a real database or performance platform: it fills an HSQLDB
+ * {@code PP_DATA} table with a given number of rows from a {@link PpDataGenerator}, starts a {@link PlatformStandIn} that takes a given time to
+ * answer each request, then builds and runs a {@link CollectorApplication} exactly as {@link Main} does, and prints
+ * the throughput, the request latency and the peak heap used.
+ *
+ * <p>The request latency is what the collector saw, taken from its {@code collector_publish_request_seconds}
+ * histogram, so it includes sending the body and reading the response as well as the stand-in's delay. The
+ * percentiles are estimated from the histogram's buckets the way Prometheus's {@code histogram_quantile} does, so they
+ * are only as fine as the buckets.</p>
+ *
+ * <p>The configuration file is used as it is, apart from the database and performance platform settings, which
+ * are pointed at the ones the harness sets up, and {@code collector.metrics.file}, which is set if it is empty. The
+ * application's log is written to a file rather than the console.</p>
+ */
+public class ThroughputHarness {
+    private static final String PUBLISH_TIME = "collector_publish_request_seconds";
+
+    static {
+        LogManager.getLogManager().reset();
+        System.setProperty("hsqldb.reconfig_logging", "false"); //otherwise HSQLDB logs to the console
+    }
+
+    @Option(name = "--rows", usage = "the number of rows to put in the database")
+    private long rows = 100000;
+
+    @Option(name = "--days", usage = "the number of days to spread the rows over")
+    private int days = 31;
+
+    @Option(name = "--latency", usage = "how long the performance platform stand-in takes to answer each request, in milliseconds")
+    private long latencyMillis = 20;
+
+    @Option(name = "--config", usage = "the configuration file to run the collector with")
+    private File configurationFile = new File("throughput.properties");
+
+    @Option(name = "--file-database", usage = "keep the rows in a file database under build/ rather than in memory, so that they do not count towards the heap used")
+    private boolean fileDatabase = false;
+
+    @Option(name = "--log", usage = "the file to write the collector's log to")
+    private File logFile = new File("build/throughput.log");
+
+    private File metricsFile;
+
+    public static void main(String... args) throws Exception {
+        ThroughputHarness harness = new ThroughputHarness();
+        CmdLineParser parser = new CmdLineParser(harness);
+        try {
+            parser.parseArgument(args);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+        harness.run();
+    }
+
+    private void run() throws Exception {
+        String databaseUrl = fileDatabase ? "jdbc:hsqldb:file:build/throughput-db/pp" : "jdbc:hsqldb:mem:throughput";
+        System.out.printf("Putting %d rows in %s%n", rows, databaseUrl);
+        try (Connection conn = DriverManager.getConnection(databaseUrl, "SA", "")) {
+            PpDataGenerator generator = new PpDataGenerator();
+            generator.setRows(rows);
+            generator.setDays(days);
+            generator.createTable(conn);
+            generator.generate(conn);
+
+            try (PlatformStandIn platform = new PlatformStandIn(latencyMillis)) {
+                File configuration = writeConfiguration(databaseUrl, platform.getUrl());
+                LocalDateRange dateRange = generator.getDateRange();
+                CommandLineArguments arguments = CommandLineArguments.parse("--config", configuration.getPath(),
+                        "--from", dateRange.getStartDate().toString(), "--to", dateRange.getEndDate().toString());
+
+                logFile.getAbsoluteFile().getParentFile().mkdirs();
+                try (PrintStream log = new PrintStream(new BufferedOutputStream(new FileOutputStream(logFile)));
+                     OpsLogger<CollectorLogMessage> logger = new OpsLogger<>(log)) {
+                    System.out.printf("Collecting, with the platform taking %d ms to answer each request; the log is in %s%n", latencyMillis, logFile);
+                    collect(arguments, logger, platform);
+                }
+            } finally {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("shutdown");
+                }
+            }
+        }
+    }
+
+    private File writeConfiguration(String databaseUrl, String platformUrl) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(configurationFile)) {
+            properties.load(in);
+        }
+        properties.setProperty("database.connection.string", databaseUrl);
+        properties.setProperty("database.username", "SA");
+        properties.setProperty("database.password", "");
+        properties.setProperty("performance.platform.url", platformUrl);
+        properties.setProperty("performance.platform.proxyHost", "");
+        if (properties.getProperty("collector.metrics.file", "").trim().isEmpty()) {
+            properties.setProperty("collector.metrics.file", "build/throughput.prom");
+        }
+        metricsFile = new File(properties.getProperty("collector.metrics.file").trim());
+        metricsFile.getAbsoluteFile().getParentFile().mkdirs();
+        metricsFile.delete(); //so that a file left by an earlier run is not mistaken for this one's
+
+        File result = File.createTempFile("throughput", ".properties");
+        result.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(result)) {
+            properties.store(out, "written by " + ThroughputHarness.class.getSimpleName() + " from " + configurationFile);
+        }
+        return result;
+    }
+
+    private void collect(CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger, PlatformStandIn platform) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+
+        long elapsedNanos;
+        try (CollectorApplication application = new CollectorApplicationFactory(arguments, logger).build()) {
+            platform.reset();
+            long start = System.nanoTime();
+            application.execute();
+            elapsedNanos = System.nanoTime() - start;
+        }
+
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Read %d rows and published %d records in %.2f s%n", rows, platform.getRecords(), seconds);
+        System.out.printf("Rows per second:      %.0f%n", rows / seconds);
+        System.out.printf("Requests per second:  %.1f (%d requests)%n", platform.getRequests() / seconds, platform.getRequests());
+        List<double[]> buckets = readPublishTimeBuckets();
+        System.out.printf("Request latency p50:  %.1f ms%n", quantileSeconds(0.5, buckets) * 1000);
+        System.out.printf("Request latency p99:  %.1f ms%n", quantileSeconds(0.99, buckets) * 1000);
+        System.out.printf("Peak heap used:       %d MB%n", peakHeapBytes() / (1024 * 1024));
+    }
+
+    /**
+     * @return the cumulative buckets of the publish time histogram in the metrics file, each as its upper bound in
+     * seconds and the number of requests that took no longer, ending with the {@code +Inf} bucket
+     */
+    private List<double[]> readPublishTimeBuckets() throws IOException {
+        List<double[]> result = new ArrayList<>();
+        String prefix = PUBLISH_TIME + "_bucket{le=\"";
+        for (String line : Files.readAllLines(metricsFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith(prefix)) {
+                int end = line.indexOf('"', prefix.length());
+                String bound = line.substring(prefix.length(), end);
+                result.add(new double[]{
+                        bound.equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(bound),
+                        Double.parseDouble(line.substring(line.indexOf(' ', end) + 1))});
+            }
+        }
+        if (result.isEmpty()) {
+            throw new IOException("there is no " + PUBLISH_TIME + " histogram in " + metricsFile);
+        }
+        return result;
+    }
+
+    /**
+     * Estimates a quantile by assuming the requests in the bucket it falls in are spread evenly across that bucket.
+     * A quantile in the {@code +Inf} bucket is given as the largest finite bound.
+     *
+     * @return the estimate in seconds, or 0 if there were no requests
+     */
+    private static double quantileSeconds(double quantile, List<double[]> buckets) {
+        double total = buckets.get(buckets.size() - 1)[1];
+        if (total == 0) {
+            return 0;
+        }
+        double rank = quantile * total;
+        double lowerBound = 0;
+        double lowerCount = 0;
+        for (double[] bucket : buckets) {
+            if (bucket[1] >= rank) {
+                if (Double.isInfinite(bucket[0])) {
+                    return lowerBound;
+                }
+                return lowerBound + (bucket[0] - lowerBound) * (rank - lowerCount) / (bucket[1] - lowerCount);
+            }
+            lowerBound = bucket[0];
+            lowerCount = bucket[1];
+        }
+        return lowerBound;
+    }
+
+    /**
+     * @return the most heap used since the peaks were last reset, added up over the heap's pools. The pools may not
+     * all have peaked at the same moment, so this can be a little more than was ever in use at once.
+     */
+    private static long peakHeapBytes() {
+        long result = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                result += pool.getPeakUsage().getUsed();
+            }
+        }
+        return result;
+    }
+}
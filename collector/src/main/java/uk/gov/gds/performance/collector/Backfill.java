@@ -0,0 +1,115 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects a long date range a few days at a time, so that no single query or run has to cover all of it. The end
+ * of each chunk is saved to a checkpoint file as soon as the chunk has been published, and a backfill of the same
+ * date range that is started again after a failure carries on from the day after it. Progress is logged after every
+ * chunk, and the checkpoint file is deleted once the whole range is done.
+ */
+public class Backfill {
+    private final Collector collector;
+    private final int chunkDays;
+    private final File checkpointFile;
+    private final RunMetrics metrics;
+    private final CommandLineArguments arguments;
+    private final OpsLogger<CollectorLogMessage> logger;
+
+    /**
+     * @param metrics the collector's, from which the rows read by each chunk are taken
+     */
+    public Backfill(Collector collector, int chunkDays, File checkpointFile, RunMetrics metrics, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger) {
+        if (chunkDays < 1) {
+            throw new IllegalArgumentException("chunkDays must be at least 1");
+        }
+        this.collector = collector;
+        this.chunkDays = chunkDays;
+        this.checkpointFile = checkpointFile;
+        this.metrics = metrics;
+        this.arguments = arguments;
+        this.logger = logger;
+    }
+
+    public void run() throws SQLException, IOException {
+        LocalDateRange range = arguments.getDateRange();
+        LocalDate completedThrough = loadCheckpoint(range);
+        LocalDateRange remaining = range;
+        if (completedThrough != null) {
+            remaining = new LocalDateRange(completedThrough.plusDays(1), range.getEndDate());
+            logger.log(CollectorLogMessage.BackfillResumed, range.getStartDate(), range.getEndDate(), remaining.getStartDate());
+        }
+
+        List<LocalDateRange> chunks = remaining.split(chunkDays);
+        int daysToDo = days(remaining);
+        int daysDone = 0;
+        long rows = 0;
+        long records = 0;
+        long start = System.nanoTime();
+        for (LocalDateRange chunk : chunks) {
+            long rowsBefore = metrics.getRowsRead().get();
+            int published = collector.collect(chunk);
+            saveCheckpoint(range, chunk.getEndDate());
+
+            long rowsRead = metrics.getRowsRead().get() - rowsBefore;
+            rows += rowsRead;
+            records += published;
+            daysDone += days(chunk);
+            long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            long rowsPerSecond = rows * 1000 / elapsedMillis;
+            long secondsToGo = elapsedMillis * (daysToDo - daysDone) / daysDone / 1000;
+            logger.log(CollectorLogMessage.BackfillProgress, chunk.getStartDate(), chunk.getEndDate(), rowsRead, published,
+                    daysDone, daysToDo, rowsPerSecond, secondsToGo);
+        }
+
+        Files.deleteIfExists(checkpointFile.toPath());
+        logger.log(CollectorLogMessage.BackfillCompleted, range.getStartDate(), range.getEndDate(), rows, records,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    }
+
+    private static int days(LocalDateRange range) {
+        return Days.daysBetween(range.getStartDate(), range.getEndDate()).getDays() + 1;
+    }
+
+    /**
+     * @return the last day of the range that has already been backfilled, or null if the checkpoint is for a
+     * different range or there is no checkpoint
+     */
+    private LocalDate loadCheckpoint(LocalDateRange range) throws IOException {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            properties.load(in);
+        }
+        if (!range.getStartDate().toString().equals(properties.getProperty("from"))
+                || !range.getEndDate().toString().equals(properties.getProperty("to"))) {
+            return null;
+        }
+        LocalDate completedThrough = new LocalDate(properties.getProperty("completedThrough"));
+        return completedThrough.isBefore(range.getEndDate()) ? completedThrough : null;
+    }
+
+    private void saveCheckpoint(LocalDateRange range, LocalDate completedThrough) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("from", range.getStartDate().toString());
+        properties.setProperty("to", range.getEndDate().toString());
+        properties.setProperty("completedThrough", completedThrough.toString());
+        File tempFile = new File(checkpointFile.getAbsoluteFile().getParentFile(), checkpointFile.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            properties.store(out, "Backfill checkpoint");
+        }
+        Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
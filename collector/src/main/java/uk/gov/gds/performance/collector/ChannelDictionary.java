@@ -0,0 +1,45 @@
+package uk.gov.gds.performance.collector;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives each distinct channel name a small int id, so that batches of results can store channels as ids rather than
+ * holding a reference per row. Ids are never reused or forgotten. Safe for use from several threads at once.
+ */
+public final class ChannelDictionary {
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[16];
+    private int size = 0;
+
+    public int idOf(String channel) {
+        Integer id = ids.get(channel);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(channel);
+            if (id != null) {
+                return id;
+            }
+            String[] current = names;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+            }
+            current[size] = channel;
+            names = current;
+            ids.put(channel, size);
+            return size++;
+        }
+    }
+
+    public String nameOf(int id) {
+        //the id was handed out after its name was written, so a volatile read of names always sees it
+        return names[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -4,26 +4,66 @@ import uk.gov.gds.performance.collector.logging.OpsLogger;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Collector {
     private final StatsPublisher publisher;
-    private final StatsRepository repository;
+    private final StatsSource source;
+    private final List<StageResultSinkDecorator> decorators;
+    private final RunMetrics metrics;
     private final OpsLogger<CollectorLogMessage> logger;
 
-    public Collector(StatsRepository repository, StatsPublisher publisher, OpsLogger<CollectorLogMessage> logger) {
+    public Collector(StatsSource source, StatsPublisher publisher, OpsLogger<CollectorLogMessage> logger) {
+        this(source, Collections.<StageResultSinkDecorator>emptyList(), publisher, logger);
+    }
+
+    /**
+     * @param decorators applied to every run's publishing session, the first of them seeing each result first
+     */
+    public Collector(StatsSource source, List<StageResultSinkDecorator> decorators, StatsPublisher publisher, OpsLogger<CollectorLogMessage> logger) {
+        this(source, decorators, publisher, new RunMetrics(), logger);
+    }
+
+    /**
+     * @param metrics summarised and exported at the end of every run, whether or not it succeeded
+     */
+    public Collector(StatsSource source, List<StageResultSinkDecorator> decorators, StatsPublisher publisher, RunMetrics metrics, OpsLogger<CollectorLogMessage> logger) {
         this.publisher = publisher;
-        this.repository = repository;
+        this.source = source;
+        this.decorators = new ArrayList<>(decorators);
+        this.metrics = metrics;
         this.logger = logger;
     }
 
-    public void collect(LocalDateRange dateRange) throws SQLException, IOException {
-        List<StageResult> results = repository.findStatsBetween(dateRange);
-        if (results.size() == 0) {
-            logger.log(CollectorLogMessage.NoResultsFoundForDateRange, dateRange.getStartDate(), dateRange.getEndDate());
-            return;
+    /**
+     * @return the number of records published
+     */
+    public int collect(LocalDateRange dateRange) throws SQLException, IOException {
+        metrics.startRun();
+        boolean success = false;
+        StatsPublisher.Session session = publisher.openSession();
+        StageResultSink sink = session;
+        for (int i = decorators.size() - 1; i >= 0; i--) {
+            sink = decorators.get(i).decorate(sink);
+        }
+        try {
+            int rowsRead = source.streamStatsBetween(dateRange, sink);
+            metrics.getRowsRead().add(rowsRead);
+            if (rowsRead == 0) {
+                logger.log(CollectorLogMessage.NoResultsFoundForDateRange, dateRange.getStartDate(), dateRange.getEndDate());
+                success = true;
+                return 0;
+            }
+            sink.finish();
+            logger.log(CollectorLogMessage.Success, session.getPublishedCount());
+            success = true;
+            return session.getPublishedCount();
+        } finally {
+            sink.close(); //closes the session too, through the decorators
+            metrics.getRecordsPublished().add(session.getPublishedCount());
+            metrics.finishRun(success, logger);
         }
-        publisher.publish(results);
-        logger.log(CollectorLogMessage.Success, results.size());
     }
 }
\ No newline at end of file
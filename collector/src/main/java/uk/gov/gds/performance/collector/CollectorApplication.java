@@ -1,31 +1,51 @@
 package uk.gov.gds.performance.collector;
 
+import com.zaxxer.hikari.HikariDataSource;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
 
 import javax.ws.rs.client.Client;
-import java.sql.Connection;
-import java.sql.SQLException;
 
 public class CollectorApplication implements AutoCloseable {
 
-    private final Connection connection;
+    private final HikariDataSource dataSource;
     private final Client client;
+    private final HttpConnectionPool connectionPool;
     private final Collector collector;
+    private final CollectorDaemon daemon;
+    private final Backfill backfill;
     private final CommandLineArguments arguments;
     private final OpsLogger<CollectorLogMessage> logger;
 
-    public CollectorApplication(Connection connection, Client client, Collector collector, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger) {
+    public CollectorApplication(HikariDataSource dataSource, Client client, HttpConnectionPool connectionPool, Collector collector, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger) {
+        this(dataSource, client, connectionPool, collector, null, null, arguments, logger);
+    }
+
+    /**
+     * @param daemon   when not null, executing the application runs the daemon instead of a single collection
+     * @param backfill when not null, executing the application runs the backfill instead of a single collection
+     */
+    public CollectorApplication(HikariDataSource dataSource, Client client, HttpConnectionPool connectionPool, Collector collector, CollectorDaemon daemon, Backfill backfill, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger) {
 
-        this.connection = connection;
+        this.dataSource = dataSource;
         this.client = client;
+        this.connectionPool = connectionPool;
         this.collector = collector;
+        this.daemon = daemon;
+        this.backfill = backfill;
         this.arguments = arguments;
         this.logger = logger;
     }
 
     public void execute() throws Exception {
         try {
-            if (!arguments.isDryRun()) {
+            if (arguments.isDryRun()) {
+                return;
+            }
+            if (daemon != null) {
+                daemon.run();
+            } else if (backfill != null) {
+                backfill.run();
+            } else {
                 collector.collect(arguments.getDateRange());
             }
         } catch(ApplicationException e) {
@@ -36,11 +56,20 @@ public class CollectorApplication implements AutoCloseable {
         }
     }
 
+    /**
+     * Closes everything the application opened. A failure to close one of them is ignored, so that the others are
+     * still closed. The logger belongs to whoever created the application, and is left open.
+     */
     @Override
     public void close() {
-        client.close();
         try {
-            connection.close();
-        } catch (SQLException ignore) {}
+            client.close();
+        } catch (RuntimeException ignore) {}
+        try {
+            connectionPool.close();
+        } catch (RuntimeException ignore) {}
+        try {
+            dataSource.close();
+        } catch (RuntimeException ignore) {}
     }
 }
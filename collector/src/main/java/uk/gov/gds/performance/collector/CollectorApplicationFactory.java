@@ -1,23 +1,35 @@
 package uk.gov.gds.performance.collector;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.http.client.config.RequestConfig;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
 import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.client.RequestEntityProcessing;
+import org.joda.time.DateTimeUtils;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
 
 import javax.json.Json;
 import javax.json.JsonArray;
+import javax.sql.DataSource;
 import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Response;
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.*;
 
 public class CollectorApplicationFactory {
 
@@ -38,17 +50,67 @@ public class CollectorApplicationFactory {
 
             ConfigurationLoader externalConfigurationLoader = new ConfigurationLoader(arguments.getConfigurationFile(), logger);
             configuration = externalConfigurationLoader.loadConfiguration();
+            if (booleanProperty("collector.logging.async")) {
+                logger.startAsync(intProperty("collector.logging.bufferSize"),
+                        OpsLogger.OverflowPolicy.valueOf(configuration.getProperty("collector.logging.overflow").trim().toUpperCase()),
+                        CollectorLogMessage.LogMessagesDropped);
+            }
+            Schedule schedule = arguments.isDaemon() ? createSchedule() : null;
+            checkDatabasePoolSize();
+            checkBackfillIsNotIncremental();
+            Set<Period> rollupPeriods = createRollupPeriods();
+            DuplicateMerge.Policy mergePolicy = createMergePolicy(rollupPeriods);
+
+            StartupCheck<HikariDataSource> databaseCheck = new StartupCheck<HikariDataSource>("database", intProperty("collector.startup.databaseTimeoutSeconds")) {
+                @Override
+                HikariDataSource check() throws StartupCheckFailure {
+                    return connectToDatabase();
+                }
 
-            Connection conn = connectToDatabase();
+                @Override
+                void release(HikariDataSource dataSource) {
+                    dataSource.close();
+                }
+            };
+            StartupCheck<PerformancePlatform> platformCheck = new StartupCheck<PerformancePlatform>("performance platform", intProperty("collector.startup.platformTimeoutSeconds")) {
+                @Override
+                PerformancePlatform check() throws StartupCheckFailure {
+                    return connectToPerformancePlatform();
+                }
 
-            Client restClient = createRestClient();
-            WebTarget target = createAndTestRestWebTarget(restClient);
+                @Override
+                void release(PerformancePlatform platform) {
+                    platform.close();
+                }
+            };
+            runStartupChecks(databaseCheck, platformCheck);
+            HikariDataSource dataSource = databaseCheck.getResult();
+            HttpConnectionPool connectionPool = platformCheck.getResult().connectionPool;
+            Client restClient = platformCheck.getResult().client;
+            WebTarget target = platformCheck.getResult().target;
 
             logger.log(CollectorLogMessage.AllConnectivityChecksPassed);
-            StatsRepository repo = new StatsRepository(conn);
-            StatsPublisher publisher = new StatsPublisher(target, new StageResultToJsonConverter());
-            Collector collector = new Collector(repo, publisher, logger);
-            return new CollectorApplication(conn, restClient, collector, arguments, logger);
+            RunMetrics metrics = createRunMetrics();
+            IncrementalCollection incremental = createIncrementalCollection();
+            StatsSource source = createStatsSource(dataSource, incremental, rollupPeriods, metrics);
+            StatsPublisher publisher = new StatsPublisher(target, new StageResultToJsonConverter(),
+                    intProperty("performance.platform.batch.maxRecords"), intProperty("performance.platform.batch.maxBytes"),
+                    intProperty("performance.platform.maxRequestsInFlight"),
+                    intProperty("collector.pipeline.serializerThreads"), intProperty("collector.pipeline.queueCapacity"), metrics, logger);
+            List<StageResultSinkDecorator> decorators = new ArrayList<>();
+            if (mergePolicy != null) {
+                decorators.add(new DuplicateMerge(mergePolicy));
+            }
+            if (incremental != null) {
+                decorators.add(incremental);
+            }
+            if (booleanProperty("collector.ledger.enabled")) {
+                decorators.add(new PublishedRecordLedger(new File(createStateDirectory(), "published-records.ledger"), new StageResultToJsonConverter(), logger));
+            }
+            Collector collector = new Collector(source, decorators, publisher, metrics, logger);
+            CollectorDaemon daemon = schedule == null ? null : new CollectorDaemon(collector, schedule, arguments, logger);
+            Backfill backfill = arguments.isBackfill() ? createBackfill(collector, metrics) : null;
+            return new CollectorApplication(dataSource, restClient, connectionPool, collector, daemon, backfill, arguments, logger);
         } catch (ApplicationException e) {
             throw e;
         } catch (Exception e) {
@@ -57,16 +119,241 @@ public class CollectorApplicationFactory {
         }
     }
 
-    private Connection connectToDatabase() {
+    private Schedule createSchedule() {
+        String value = configuration.getProperty("collector.daemon.schedule");
         try {
-            return DriverManager.getConnection(configuration.getProperty("database.connection.string"), configuration.getProperty("database.username"), configuration.getProperty("database.password"));
+            return Schedule.parse(value, DateTimeUtils.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            logger.log(CollectorLogMessage.InvalidDaemonSchedule, value.trim(), e.getMessage());
+            throw new ApplicationException();
+        }
+    }
+
+    /**
+     * Runs the checks at the same time, each with its own timeout counted from when they all started. If any of them
+     * fails, the failure of the first in the list is logged and anything the others opened is released, so the
+     * outcome is the same as if they had been run one after another. Otherwise, how long each check took is logged.
+     *
+     * @throws ApplicationException when a check fails or times out
+     */
+    private void runStartupChecks(StartupCheck<?>... checks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(checks.length);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (StartupCheck<?> check : checks) {
+                futures.add(executor.submit(check));
+            }
+
+            StartupCheckFailure failure = null;
+            for (int i = 0; i < checks.length; i++) {
+                if (failure != null) {
+                    futures.get(i).cancel(true);
+                }
+                try {
+                    futures.get(i).get(Math.max(0, start + TimeUnit.SECONDS.toNanos(checks[i].timeoutSeconds) - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    futures.get(i).cancel(true);
+                    failure = new StartupCheckFailure(CollectorLogMessage.ConnectivityCheckTimedOut, null, checks[i].name, checks[i].timeoutSeconds);
+                } catch (CancellationException e) {
+                    //a check before it failed
+                } catch (ExecutionException e) {
+                    if (failure != null) {
+                        continue;
+                    }
+                    if (!(e.getCause() instanceof StartupCheckFailure)) {
+                        releaseAll(checks);
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    failure = (StartupCheckFailure) e.getCause();
+                }
+            }
+
+            if (failure != null) {
+                releaseAll(checks);
+                failure.log(logger);
+                throw new ApplicationException();
+            }
+            for (StartupCheck<?> check : checks) {
+                logger.log(CollectorLogMessage.ConnectivityCheckTimed, check.name, check.durationMillis);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void releaseAll(StartupCheck<?>... checks) {
+        for (StartupCheck<?> check : checks) {
+            check.releaseResult();
+        }
+    }
+
+    private HikariDataSource connectToDatabase() throws StartupCheckFailure {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("collector-database");
+        config.setJdbcUrl(configuration.getProperty("database.connection.string"));
+        config.setUsername(configuration.getProperty("database.username"));
+        config.setPassword(configuration.getProperty("database.password"));
+        config.setMinimumIdle(intProperty("database.pool.minIdle"));
+        config.setMaximumPoolSize(intProperty("database.pool.maxSize"));
+        config.setMaxLifetime(TimeUnit.SECONDS.toMillis(intProperty("database.pool.maxLifetimeSeconds")));
+        config.setLeakDetectionThreshold(TimeUnit.SECONDS.toMillis(intProperty("database.pool.leakDetectionSeconds")));
+        if (configuration.getProperty("database.pool.validationQuery", "").trim().length() > 0) {
+            config.setConnectionTestQuery(configuration.getProperty("database.pool.validationQuery").trim());
+        }
+
+        HikariDataSource dataSource = null;
+        try {
+            dataSource = new HikariDataSource(config);
+            dataSource.getConnection().close();
+            return dataSource;
         } catch (SQLException e) {
-            logger.log(CollectorLogMessage.CouldNotConnectToDatabase, e);
+            dataSource.close();
+            throw new StartupCheckFailure(CollectorLogMessage.CouldNotConnectToDatabase, e);
+        } catch (RuntimeException e) {
+            //the pool reports a failure to open its first connection wrapped in one of its own runtime exceptions
+            SQLException cause = findSQLExceptionCause(e);
+            if (cause == null) {
+                throw e;
+            }
+            throw new StartupCheckFailure(CollectorLogMessage.CouldNotConnectToDatabase, cause);
+        }
+    }
+
+    private static SQLException findSQLExceptionCause(Throwable e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                return (SQLException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every partition that is read at once needs a connection of its own, and a partition left waiting for one would
+     * fail the run once the pool gave up on it.
+     */
+    private void checkDatabasePoolSize() {
+        int maxSize = intProperty("database.pool.maxSize");
+        int parallelism = intProperty("database.parallelism");
+        if (maxSize < parallelism) {
+            logger.log(CollectorLogMessage.DatabasePoolTooSmall, maxSize, parallelism);
+            throw new ApplicationException();
+        }
+    }
+
+    /**
+     * Each chunk of a backfill commits the high water mark it reached, so rows in later chunks with an older mark
+     * would never be read.
+     */
+    private void checkBackfillIsNotIncremental() {
+        String column = configuration.getProperty("database.incremental.column").trim();
+        if (arguments.isBackfill() && column.length() > 0) {
+            logger.log(CollectorLogMessage.BackfillWithIncrementalCollection, column);
+            throw new ApplicationException();
+        }
+    }
+
+    private Set<Period> createRollupPeriods() {
+        String value = configuration.getProperty("collector.rollup.periods").trim();
+        Set<Period> result = EnumSet.noneOf(Period.class);
+        if (value.length() == 0) {
+            return result;
+        }
+        for (String name : value.split(",")) {
+            try {
+                result.add(Period.valueOf(name.trim()));
+            } catch (IllegalArgumentException e) {
+                logger.log(CollectorLogMessage.InvalidRollupPeriods, value, "there is no period called " + name.trim());
+                throw new ApplicationException();
+            }
+        }
+        if (result.contains(Period.hour) || result.contains(Period.day)) {
+            logger.log(CollectorLogMessage.InvalidRollupPeriods, value, "only week, month and quarter can be worked out from the day rows");
             throw new ApplicationException();
         }
+        if (configuration.getProperty("database.incremental.column").trim().length() > 0) {
+            logger.log(CollectorLogMessage.InvalidRollupPeriods, value, "totals need every day of their period, so they cannot be worked out when database.incremental.column is set");
+            throw new ApplicationException();
+        }
+        return result;
     }
 
-    private Client createRestClient() {
+    private DuplicateMerge.Policy createMergePolicy(Set<Period> rollupPeriods) {
+        String value = configuration.getProperty("collector.merge.policy").trim();
+        if (value.length() == 0) {
+            return null;
+        }
+        DuplicateMerge.Policy result;
+        try {
+            result = DuplicateMerge.Policy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.log(CollectorLogMessage.InvalidMergePolicy, value, "it must be one of sum, last and max");
+            throw new ApplicationException();
+        }
+        if (result != DuplicateMerge.Policy.LAST && configuration.getProperty("database.incremental.column").trim().length() > 0) {
+            logger.log(CollectorLogMessage.InvalidMergePolicy, value, "only last can be used when database.incremental.column is set, because the other rows of a record are not read again");
+            throw new ApplicationException();
+        }
+        if (result != DuplicateMerge.Policy.SUM && !rollupPeriods.isEmpty()) {
+            logger.log(CollectorLogMessage.InvalidMergePolicy, value, "only sum can be used with collector.rollup.periods, because the totals add up every day row");
+            throw new ApplicationException();
+        }
+        return result;
+    }
+
+    private IncrementalCollection createIncrementalCollection() throws IOException {
+        String column = configuration.getProperty("database.incremental.column").trim();
+        if (column.length() == 0) {
+            return null;
+        }
+        return new IncrementalCollection(column, new File(createStateDirectory(), "high-water-mark.properties"));
+    }
+
+    private Backfill createBackfill(Collector collector, RunMetrics metrics) throws IOException {
+        return new Backfill(collector, intProperty("collector.backfill.chunkDays"), new File(createStateDirectory(), "backfill-checkpoint.properties"), metrics, arguments, logger);
+    }
+
+    private File createStateDirectory() throws IOException {
+        File directory = new File(configuration.getProperty("collector.state.directory").trim());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the state directory " + directory.getAbsolutePath());
+        }
+        return directory;
+    }
+
+    private RunMetrics createRunMetrics() {
+        String file = configuration.getProperty("collector.metrics.file", "").trim();
+        return new RunMetrics(file.isEmpty() ? null : new File(file));
+    }
+
+    private StatsSource createStatsSource(DataSource dataSource, IncrementalCollection incremental, Set<Period> rollupPeriods, RunMetrics metrics) {
+        StatsRepository repository = new StatsRepository(dataSource, intProperty("database.fetchSize"), booleanProperty("database.aggregate"), incremental, metrics);
+        int parallelism = intProperty("database.parallelism");
+        StatsSource source = parallelism <= 1 ? repository : new ParallelStatsExtractor(repository, parallelism, intProperty("database.partitionDays"));
+        return rollupPeriods.isEmpty() ? source : new PeriodRollup(source, rollupPeriods);
+    }
+
+    private PerformancePlatform connectToPerformancePlatform() throws StartupCheckFailure {
+        HttpConnectionPool connectionPool = createHttpConnectionPool();
+        Client restClient = createRestClient(connectionPool);
+        try {
+            return new PerformancePlatform(connectionPool, restClient, createAndTestRestWebTarget(restClient));
+        } catch (StartupCheckFailure | RuntimeException e) {
+            restClient.close();
+            connectionPool.close();
+            throw e;
+        }
+    }
+
+    private HttpConnectionPool createHttpConnectionPool() {
+        return new HttpConnectionPool(
+                intProperty("performance.platform.connections.maxTotal"),
+                intProperty("performance.platform.connections.maxPerRoute"),
+                intProperty("performance.platform.connections.idleTimeoutSeconds"));
+    }
+
+    private Client createRestClient(HttpConnectionPool connectionPool) {
         ClientConfig cc = new ClientConfig();
         if (configuration.getProperty("performance.platform.proxyHost", "").length() > 0) {
             cc.property(ClientProperties.PROXY_URI, configuration.getProperty("performance.platform.proxyHost"));
@@ -74,11 +361,19 @@ public class CollectorApplicationFactory {
             cc.property(ClientProperties.PROXY_PASSWORD, configuration.getProperty("performance.platform.proxyPassword"));
         }
         cc.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED);
+        cc.property(ClientProperties.ASYNC_THREADPOOL_SIZE, intProperty("performance.platform.maxRequestsInFlight"));
+        cc.property(ClientProperties.CONNECT_TIMEOUT, intProperty("performance.platform.connectTimeoutMillis"));
+        cc.property(ClientProperties.READ_TIMEOUT, intProperty("performance.platform.readTimeoutMillis"));
+        cc.property(ApacheClientProperties.CONNECTION_MANAGER, connectionPool.getConnectionManager());
+        cc.property(ApacheClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+                .setConnectionRequestTimeout(intProperty("performance.platform.connectTimeoutMillis"))
+                .setStaleConnectionCheckEnabled(booleanProperty("performance.platform.connections.staleCheck"))
+                .build());
         cc.connectorProvider(new ApacheConnectorProvider());
         return ClientBuilder.newClient(cc);
     }
 
-    private WebTarget createAndTestRestWebTarget(Client restClient) {
+    private WebTarget createAndTestRestWebTarget(Client restClient) throws StartupCheckFailure {
         String url = configuration.getProperty("performance.platform.url");
         WebTarget target = restClient.target(url).register(new AddBearerTokenRequestFilter(configuration.getProperty("performance.platform.auth.token")));
 
@@ -86,18 +381,125 @@ public class CollectorApplicationFactory {
         Entity<JsonArray> json = Entity.json(Json.createArrayBuilder().build());
         try {
             Response result = target.request().post(json);
-            if (result.getStatus() != 200) {
-                logger.log(CollectorLogMessage.PerformancePlatformTestQueryFailed, url, result.getStatus());
-                throw new ApplicationException();
+            try {
+                if (result.getStatus() != 200) {
+                    throw new StartupCheckFailure(CollectorLogMessage.PerformancePlatformTestQueryFailed, null, url, result.getStatus());
+                }
+            } finally {
+                result.close(); //hands the pooled connection back
             }
         } catch (ProcessingException e) {
-            logger.log(CollectorLogMessage.CouldNotConnectToPerformancePlatform, url);
-            throw new ApplicationException();
+            throw new StartupCheckFailure(CollectorLogMessage.CouldNotConnectToPerformancePlatform, null, url);
         }
 
         return target;
     }
 
+    private int intProperty(String name) {
+        return Integer.parseInt(configuration.getProperty(name).trim());
+    }
+
+    private boolean booleanProperty(String name) {
+        return Boolean.parseBoolean(configuration.getProperty(name).trim());
+    }
+
+    /**
+     * A connectivity check that opens something, which is released if the checks fail. Cancelling a check does not stop
+     * a connection attempt that is blocked, so a check that only finishes once the checks have been given up on
+     * releases what it opened itself.
+     */
+    private abstract static class StartupCheck<T> implements Callable<T> {
+        private final String name;
+        private final int timeoutSeconds;
+        private T result;
+        private boolean released = false;
+        private volatile long durationMillis;
+
+        StartupCheck(String name, int timeoutSeconds) {
+            this.name = name;
+            this.timeoutSeconds = timeoutSeconds;
+        }
+
+        abstract T check() throws StartupCheckFailure;
+
+        abstract void release(T result);
+
+        @Override
+        public T call() throws StartupCheckFailure {
+            long start = System.nanoTime();
+            T checked = check();
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            synchronized (this) {
+                if (!released) {
+                    result = checked;
+                    return checked;
+                }
+            }
+            release(checked);
+            return null;
+        }
+
+        synchronized T getResult() {
+            return result;
+        }
+
+        /**
+         * Releases what the check opened, or will release it as soon as the check finishes if it has not yet.
+         */
+        void releaseResult() {
+            T toRelease;
+            synchronized (this) {
+                released = true;
+                toRelease = result;
+                result = null;
+            }
+            if (toRelease != null) {
+                release(toRelease);
+            }
+        }
+    }
+
+    /**
+     * Why a connectivity check failed, logged by the thread that started the checks.
+     */
+    private static class StartupCheckFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final CollectorLogMessage logMessage;
+        private final Object[] details;
+
+        StartupCheckFailure(CollectorLogMessage logMessage, Throwable cause, Object... details) {
+            super(logMessage.getMessageCode(), cause);
+            this.logMessage = logMessage;
+            this.details = details;
+        }
+
+        void log(OpsLogger<CollectorLogMessage> logger) {
+            if (getCause() == null) {
+                logger.log(logMessage, details);
+            } else {
+                logger.log(logMessage, getCause(), details);
+            }
+        }
+    }
+
+    private static class PerformancePlatform {
+        private final HttpConnectionPool connectionPool;
+        private final Client client;
+        private final WebTarget target;
+
+        PerformancePlatform(HttpConnectionPool connectionPool, Client client, WebTarget target) {
+            this.connectionPool = connectionPool;
+            this.client = client;
+            this.target = target;
+        }
+
+        void close() {
+            client.close();
+            connectionPool.close();
+        }
+    }
+
     private static class DoNothingExceptionHandler implements Thread.UncaughtExceptionHandler {
         @SuppressWarnings("NullableProblems")
         @Override
@@ -0,0 +1,88 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Runs collections on a schedule until it is interrupted, so that one process keeps its database and http
+ * connection pools for every run. Only one collection runs at a time: any that fall due while one is still running
+ * are skipped. The date range is worked out afresh for every collection, and a collection that fails is logged and
+ * then left for the next one to make up.
+ */
+public class CollectorDaemon {
+    private final Collector collector;
+    private final Schedule schedule;
+    private final CommandLineArguments arguments;
+    private final OpsLogger<CollectorLogMessage> logger;
+    private final Sleeper sleeper;
+
+    public CollectorDaemon(Collector collector, Schedule schedule, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger) {
+        this(collector, schedule, arguments, logger, new ThreadSleeper());
+    }
+
+    CollectorDaemon(Collector collector, Schedule schedule, CommandLineArguments arguments, OpsLogger<CollectorLogMessage> logger, Sleeper sleeper) {
+        this.collector = collector;
+        this.schedule = schedule;
+        this.arguments = arguments;
+        this.logger = logger;
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Runs collections until the thread is interrupted, and then returns.
+     */
+    public void run() {
+        long next = schedule.nextRunAfter(DateTimeUtils.currentTimeMillis() - 1);
+        logger.log(CollectorLogMessage.DaemonStarted, schedule, new DateTime(next));
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                sleeper.sleepUntil(next);
+                collectOnce();
+
+                long finished = DateTimeUtils.currentTimeMillis();
+                int skipped = 0;
+                next = schedule.nextRunAfter(next);
+                while (next <= finished) {
+                    skipped++;
+                    next = schedule.nextRunAfter(next);
+                }
+                if (skipped > 0) {
+                    logger.log(CollectorLogMessage.ScheduledCollectionsSkipped, skipped, new DateTime(next));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collectOnce() {
+        try {
+            collector.collect(arguments.getDateRange());
+        } catch (ApplicationException e) {
+            //already logged
+        } catch (InterruptedIOException e) {
+            //the daemon is being stopped
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                logger.log(CollectorLogMessage.UnknownError, e);
+            }
+        }
+    }
+
+    interface Sleeper {
+        void sleepUntil(long millis) throws InterruptedException;
+    }
+
+    private static class ThreadSleeper implements Sleeper {
+        @Override
+        public void sleepUntil(long millis) throws InterruptedException {
+            for (long wait = millis - DateTimeUtils.currentTimeMillis(); wait > 0; wait = millis - DateTimeUtils.currentTimeMillis()) {
+                Thread.sleep(wait);
+            }
+        }
+    }
+}
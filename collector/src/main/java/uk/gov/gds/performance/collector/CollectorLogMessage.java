@@ -11,7 +11,28 @@ public enum CollectorLogMessage implements LogMessage {
     InvalidConfigurationFile("GDS-000005", "Invalid configuration file format %s"),
     ConfigurationFileNotFound("GDS-000006", "Configuration file %s not found"),
     CouldNotConnectToDatabase("GDS-000007", "Could not connect to the database:"),
-    AllConnectivityChecksPassed("GDS-000008", "All connectivity checks passed");
+    AllConnectivityChecksPassed("GDS-000008", "All connectivity checks passed"),
+    BatchPublished("GDS-000009", "Published a batch of %d records (%d bytes) in %d ms"),
+    BatchPublishFailed("GDS-000010", "Failed to publish a batch of %d records (%d bytes):"),
+    PublishRequestsFailed("GDS-000011", "%d of %d requests to the performance platform failed"),
+    UnchangedRecordsSkipped("GDS-000012", "Skipped %d records that have not changed since they were last published"),
+    PipelineQueueDepth("GDS-000013", "The publishing pipeline's %s queue held at most %d of %d items, and %d on average"),
+    PipelineStageTimings("GDS-000014", "The publishing pipeline's %s stage handled %d records, working for %d ms and waiting on its queues for %d ms"),
+    DaemonStarted("GDS-000015", "Running as a daemon with the schedule %s; the first collection is at %s"),
+    ScheduledCollectionsSkipped("GDS-000016", "Skipped %d scheduled collections because the collection before them was still running; the next is at %s"),
+    InvalidDaemonSchedule("GDS-000017", "Invalid collector.daemon.schedule %s: %s"),
+    BackfillResumed("GDS-000018", "Resuming the backfill of %s to %s from %s"),
+    BackfillProgress("GDS-000019", "Backfilled %s to %s: %d rows read and %d records published; %d of %d days done at %d rows per second, about %d seconds to go"),
+    BackfillCompleted("GDS-000020", "Finished the backfill of %s to %s: %d rows read and %d records published in %d seconds"),
+    ConnectivityCheckTimedOut("GDS-000021", "The %s connectivity check did not finish within %d seconds"),
+    ConnectivityCheckTimed("GDS-000022", "The %s connectivity check took %d ms"),
+    LogMessagesDropped("GDS-000023", "%d log messages were not written because the log buffer was full"),
+    RunMetricsSummary("GDS-000024", "Run metrics: %d rows read, %d records published, %d bytes sent; %d ms in database queries, %d ms serializing, %d ms in requests"),
+    MetricsFileNotWritten("GDS-000025", "Could not write the metrics file %s:"),
+    InvalidRollupPeriods("GDS-000026", "Invalid collector.rollup.periods %s: %s"),
+    InvalidMergePolicy("GDS-000027", "Invalid collector.merge.policy %s: %s"),
+    DatabasePoolTooSmall("GDS-000028", "database.pool.maxSize is %d, which is less than database.parallelism of %d"),
+    BackfillWithIncrementalCollection("GDS-000029", "Cannot backfill while collecting incrementally by %s");
 
     //region LogMessage implementation
     private final String messageCode;
@@ -22,14 +22,20 @@ public class CommandLineArguments {
     @Option(name="--dry-run", usage="perform connectivity checks and then exit")
     private boolean dryRun = false;
 
+    @Option(name="--daemon", usage="keep running and collect on the schedule in the configuration file")
+    private boolean daemon = false;
+
+    @Option(name="--backfill", usage="collect the date range a few days at a time, carrying on from where an earlier backfill of the same range stopped")
+    private boolean backfill = false;
+
     @Option(name="--help", usage="print this usage information", aliases = {"-h", "-?"})
     private boolean printUsage = false;
 
     @Option(name="--from", usage="specify the date to start collecting from")
-    private LocalDate from = new LocalDate().minusDays(3);
+    private LocalDate from;
 
     @Option(name="--to", usage="specify the date to collecting up to")
-    private LocalDate to = new LocalDate();
+    private LocalDate to;
 
     public File getConfigurationFile() {
         return configurationFile;
@@ -39,8 +45,21 @@ public class CommandLineArguments {
         return dryRun;
     }
 
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    public boolean isBackfill() {
+        return backfill;
+    }
+
+    /**
+     * Dates that were not given on the command line are worked out when this is called, so that a daemon moves on
+     * from one day to the next.
+     */
     public LocalDateRange getDateRange() {
-        return new LocalDateRange(from, to);
+        LocalDate today = new LocalDate();
+        return new LocalDateRange(from == null ? today.minusDays(3) : from, to == null ? today : to);
     }
 
     public static CommandLineArguments parse(String... args) throws CmdLineException {
@@ -54,6 +73,13 @@ public class CommandLineArguments {
             throw e;
         }
 
+        if (result.daemon && result.backfill) {
+            CmdLineException e = new CmdLineException(parser, "--backfill cannot be used with --daemon");
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            throw e;
+        }
+
         if (result.printUsage) {
             parser.printUsage(System.err);
             throw new CmdLineException(parser, "terminate application flow");
@@ -0,0 +1,136 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTime;
+
+import java.util.BitSet;
+
+/**
+ * Runs at the times matched by a cron expression of five fields: minute, hour, day of month, month and day of week,
+ * in the default time zone. Each field is {@code *}, a number, a range such as {@code 1-5}, either of those followed
+ * by a step such as {@code *}{@code /15}, or a comma separated list of them. Days of the week run from 0 (Sunday) to
+ * 6, and 7 is also Sunday. As with cron, when both the day of month and the day of week are restricted a day that
+ * matches either of them is matched.
+ */
+class CronSchedule extends Schedule {
+    private static final int YEARS_TO_SEARCH = 30;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    CronSchedule(String expression) {
+        String[] fields = expression.trim().split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("expected five fields (minute hour day-of-month month day-of-week) but found " + fields.length);
+        }
+        this.expression = expression.trim();
+        minutes = parseField(fields[0], "minute", 0, 59);
+        hours = parseField(fields[1], "hour", 0, 23);
+        daysOfMonth = parseField(fields[2], "day of month", 1, 31);
+        months = parseField(fields[3], "month", 1, 12);
+        daysOfWeek = parseField(fields[4], "day of week", 0, 7);
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        anyDayOfMonth = fields[2].startsWith("*");
+        anyDayOfWeek = fields[4].startsWith("*");
+
+        if (findRunAfter(new DateTime()) == null) {
+            throw new IllegalArgumentException("it never matches a date");
+        }
+    }
+
+    @Override
+    public long nextRunAfter(long millis) {
+        DateTime next = findRunAfter(new DateTime(millis));
+        if (next == null) {
+            throw new IllegalStateException("no run of " + expression + " within " + YEARS_TO_SEARCH + " years of " + new DateTime(millis));
+        }
+        return next.getMillis();
+    }
+
+    private DateTime findRunAfter(DateTime after) {
+        DateTime time = after.withSecondOfMinute(0).withMillisOfSecond(0).plusMinutes(1);
+        DateTime limit = time.plusYears(YEARS_TO_SEARCH);
+        while (time.isBefore(limit)) {
+            if (!months.get(time.getMonthOfYear())) {
+                time = time.withDayOfMonth(1).plusMonths(1).withTimeAtStartOfDay();
+            } else if (!matchesDay(time)) {
+                time = time.plusDays(1).withTimeAtStartOfDay();
+            } else if (!hours.get(time.getHourOfDay())) {
+                time = time.withMinuteOfHour(0).plusHours(1);
+            } else if (!minutes.get(time.getMinuteOfHour())) {
+                time = time.plusMinutes(1);
+            } else {
+                return time;
+            }
+        }
+        return null;
+    }
+
+    private boolean matchesDay(DateTime time) {
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek() % 7);
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonth && dayOfWeek;
+        }
+        return dayOfMonth || dayOfWeek;
+    }
+
+    private static BitSet parseField(String field, String name, int min, int max) {
+        BitSet result = new BitSet(max + 1);
+        for (String part : field.split(",", -1)) {
+            int step = 1;
+            String range = part;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                range = part.substring(0, slash);
+                step = parseNumber(part.substring(slash + 1), name, 1, max);
+            }
+
+            int first;
+            int last;
+            if (range.equals("*")) {
+                first = min;
+                last = max;
+            } else if (range.indexOf('-') > 0) {
+                first = parseNumber(range.substring(0, range.indexOf('-')), name, min, max);
+                last = parseNumber(range.substring(range.indexOf('-') + 1), name, min, max);
+                if (last < first) {
+                    throw new IllegalArgumentException("the " + name + " range " + range + " runs backwards");
+                }
+            } else {
+                first = parseNumber(range, name, min, max);
+                last = slash >= 0 ? max : first;
+            }
+
+            for (int i = first; i <= last; i += step) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    private static int parseNumber(String value, String name, int min, int max) {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("the " + name + " field contains " + (value.isEmpty() ? "an empty value" : value) + ", which is not a number");
+        }
+        if (result < min || result > max) {
+            throw new IllegalArgumentException("the " + name + " " + result + " is not between " + min + " and " + max);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
@@ -0,0 +1,114 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+
+/**
+ * Merges rows that share a date, period and channel into a single record, for tables that hold more than one row for
+ * a record and cannot be summed by the database with {@code database.aggregate}. Without merging, each of those rows
+ * would be published as a separate record with the same {@code _id}, and whichever arrived last would win.
+ *
+ * <p>A record is only complete once every row has been read, so nothing is passed on until the sink is finished,
+ * when the merged records are passed on a batch at a time. The counts are held in a {@link LongLongHashMap} keyed on
+ * the packed date, period and channel, so there is no object per record however many there are. The sink returned by
+ * {@link #decorate(StageResultSink)} must not be called from several threads at once.</p>
+ */
+public class DuplicateMerge implements StageResultSinkDecorator {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * How the counts of rows with the same date, period and channel are combined.
+     */
+    public enum Policy {
+        /** add them up */
+        SUM,
+        /** keep the count of the row read last, which is the last the database returned */
+        LAST,
+        /** keep the largest count */
+        MAX
+    }
+
+    private final Policy policy;
+
+    public DuplicateMerge(Policy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    public StageResultSink decorate(StageResultSink sink) {
+        return new MergeSink(sink);
+    }
+
+    private class MergeSink implements StageResultSink {
+        private final StageResultSink sink;
+        private final LongLongHashMap counts = new LongLongHashMap();
+        private ChannelDictionary channels;
+        private int batchCapacity;
+
+        private MergeSink(StageResultSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(StageResultBatch batch) {
+            if (channels == null) {
+                channels = batch.getChannels();
+                batchCapacity = batch.capacity();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                long key = batch.getKey(i);
+                int count = batch.getCount(i);
+                switch (policy) {
+                    case SUM:
+                        counts.addTo(key, count);
+                        break;
+                    case LAST:
+                        counts.put(key, count, 0);
+                        break;
+                    case MAX:
+                        if (count > counts.get(key, Long.MIN_VALUE)) {
+                            counts.put(key, count, 0);
+                        }
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!counts.isEmpty()) {
+                StageResultBatch batch = new StageResultBatch(channels, batchCapacity);
+                for (int slot = counts.nextSlot(0); slot >= 0; slot = counts.nextSlot(slot + 1)) {
+                    long key = counts.keyAt(slot);
+                    batch.add(StageResultBatch.epochDayOf(key), StageResultBatch.periodOf(key), StageResultBatch.channelIdOf(key), toCount(key, counts.valueAt(slot)));
+                    if (batch.isFull()) {
+                        sink.accept(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    sink.accept(batch);
+                }
+                counts.clear();
+            }
+            sink.finish();
+        }
+
+        @Override
+        public void close() {
+            counts.clear();
+            sink.close();
+        }
+
+        private int toCount(long key, long count) {
+            if (count > Integer.MAX_VALUE || count < Integer.MIN_VALUE) {
+                throw new IllegalStateException("the merged count of " + count + " for the " + StageResultBatch.periodOf(key)
+                        + " from " + new LocalDate(StageResultBatch.epochDayOf(key) * MILLIS_PER_DAY, DateTimeZone.UTC)
+                        + " for " + channels.nameOf(StageResultBatch.channelIdOf(key)) + " is too large to publish");
+            }
+            return (int) count;
+        }
+    }
+}
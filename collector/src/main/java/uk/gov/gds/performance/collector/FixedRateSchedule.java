@@ -0,0 +1,31 @@
+package uk.gov.gds.performance.collector;
+
+/**
+ * Runs every so many milliseconds, counted from a fixed start time rather than from the end of the previous run so
+ * that runs do not drift.
+ */
+class FixedRateSchedule extends Schedule {
+    private final long startMillis;
+    private final long periodMillis;
+
+    FixedRateSchedule(long startMillis, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("the number of seconds between runs must be at least 1");
+        }
+        this.startMillis = startMillis;
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public long nextRunAfter(long millis) {
+        if (millis < startMillis) {
+            return startMillis;
+        }
+        return startMillis + ((millis - startMillis) / periodMillis + 1) * periodMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "every " + periodMillis / 1000 + " seconds";
+    }
+}
@@ -0,0 +1,89 @@
+package uk.gov.gds.performance.collector;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Properties;
+
+/**
+ * The largest value of a monotonically increasing column (an insert timestamp or a sequence-generated id) that has
+ * been seen in {@code PP_DATA}.
+ */
+public final class HighWaterMark implements Comparable<HighWaterMark> {
+    private static final String TIMESTAMP = "timestamp";
+    private static final String NUMBER = "number";
+
+    private final Timestamp timestamp;
+    private final long number;
+
+    private HighWaterMark(Timestamp timestamp, long number) {
+        this.timestamp = timestamp;
+        this.number = number;
+    }
+
+    /**
+     * @param columnValue a value read from the high water mark column with {@code ResultSet.getObject}
+     */
+    public static HighWaterMark fromColumnValue(Object columnValue) {
+        if (columnValue instanceof java.util.Date) {
+            return new HighWaterMark(new Timestamp(((java.util.Date) columnValue).getTime()), 0);
+        }
+        if (columnValue instanceof Number) {
+            return new HighWaterMark(null, ((Number) columnValue).longValue());
+        }
+        throw new IllegalArgumentException("A high water mark column must be a timestamp or a whole number, not " + columnValue);
+    }
+
+    public static HighWaterMark fromProperties(Properties properties) {
+        String value = properties.getProperty("value");
+        if (TIMESTAMP.equals(properties.getProperty("type"))) {
+            return new HighWaterMark(Timestamp.valueOf(value), 0);
+        }
+        return new HighWaterMark(null, Long.parseLong(value));
+    }
+
+    public Properties toProperties() {
+        Properties result = new Properties();
+        result.setProperty("type", timestamp != null ? TIMESTAMP : NUMBER);
+        result.setProperty("value", timestamp != null ? timestamp.toString() : Long.toString(number));
+        return result;
+    }
+
+    public void bind(PreparedStatement statement, int parameterIndex) throws SQLException {
+        if (timestamp != null) {
+            statement.setTimestamp(parameterIndex, timestamp);
+        } else {
+            statement.setLong(parameterIndex, number);
+        }
+    }
+
+    @Override
+    public int compareTo(HighWaterMark other) {
+        if ((timestamp == null) != (other.timestamp == null)) {
+            throw new IllegalArgumentException("Cannot compare a timestamp high water mark with a numeric one");
+        }
+        if (timestamp != null) {
+            return timestamp.compareTo(other.timestamp);
+        }
+        return Long.compare(number, other.number);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof HighWaterMark)) {
+            return false;
+        }
+        HighWaterMark other = (HighWaterMark) o;
+        return number == other.number && (timestamp == null ? other.timestamp == null : timestamp.equals(other.timestamp));
+    }
+
+    @Override
+    public int hashCode() {
+        return timestamp != null ? timestamp.hashCode() : Long.valueOf(number).hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return timestamp != null ? timestamp.toString() : Long.toString(number);
+    }
+}
@@ -0,0 +1,61 @@
+package uk.gov.gds.performance.collector;
+
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pool of keep-alive connections to the performance platform, shared by every request the rest client makes so
+ * that repeated and concurrent publishes reuse connections instead of paying for a new TLS handshake each time.
+ * Connections that have been idle for longer than the idle timeout are closed by a background thread, so that a
+ * connection the server or a proxy has quietly dropped is not handed out again.
+ */
+public class HttpConnectionPool implements AutoCloseable {
+    private final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "http-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public HttpConnectionPool(int maxTotal, int maxPerRoute, final int idleTimeoutSeconds) {
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+            }
+        }, idleTimeoutSeconds, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    public HttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public int getMaxTotal() {
+        return connectionManager.getMaxTotal();
+    }
+
+    public int getMaxPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    public boolean isClosed() {
+        return evictor.isShutdown();
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        connectionManager.shutdown();
+    }
+}
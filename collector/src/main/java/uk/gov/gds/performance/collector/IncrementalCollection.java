@@ -0,0 +1,104 @@
+package uk.gov.gds.performance.collector;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental collection: only rows whose high water mark column is beyond the mark saved by the last successful
+ * run are read. {@link StatsRepository} reports every mark it reads through {@link #observe(HighWaterMark)}, and the
+ * largest of them is written to the state file once the run's results have all been published and never before, so
+ * a failed run is simply repeated next time.
+ */
+public class IncrementalCollection implements StageResultSinkDecorator {
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String column;
+    private final File stateFile;
+    private volatile HighWaterMark committedMark;
+    private final AtomicReference<HighWaterMark> pendingMark = new AtomicReference<>();
+
+    public IncrementalCollection(String column, File stateFile) throws IOException {
+        if (!COLUMN_NAME.matcher(column).matches()) {
+            throw new IllegalArgumentException("Invalid high water mark column name " + column);
+        }
+        this.column = column;
+        this.stateFile = stateFile;
+        this.committedMark = load(stateFile);
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the mark saved by the last successful run, or null if there has not been one
+     */
+    public HighWaterMark getCommittedMark() {
+        return committedMark;
+    }
+
+    /**
+     * Records a mark read during the current run. Safe to call from several threads at once.
+     */
+    public void observe(HighWaterMark mark) {
+        while (true) {
+            HighWaterMark current = pendingMark.get();
+            if (current != null && current.compareTo(mark) >= 0) {
+                return;
+            }
+            if (pendingMark.compareAndSet(current, mark)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public StageResultSink decorate(final StageResultSink sink) {
+        pendingMark.set(null);
+        return new StageResultSink() {
+            @Override
+            public void accept(StageResultBatch batch) throws IOException {
+                sink.accept(batch);
+            }
+
+            @Override
+            public void finish() throws IOException {
+                sink.finish();
+                commit();
+            }
+
+            @Override
+            public void close() {
+                sink.close();
+            }
+        };
+    }
+
+    private void commit() throws IOException {
+        HighWaterMark mark = pendingMark.getAndSet(null);
+        if (mark == null || (committedMark != null && committedMark.compareTo(mark) >= 0)) {
+            return;
+        }
+        File tempFile = new File(stateFile.getAbsoluteFile().getParentFile(), stateFile.getName() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            mark.toProperties().store(out, "High water mark of " + column + " in PP_DATA");
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committedMark = mark;
+    }
+
+    private static HighWaterMark load(File stateFile) throws IOException {
+        if (!stateFile.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            properties.load(in);
+        }
+        return HighWaterMark.fromProperties(properties);
+    }
+}
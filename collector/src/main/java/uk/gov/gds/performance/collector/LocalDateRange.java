@@ -2,6 +2,9 @@ package uk.gov.gds.performance.collector;
 
 import org.joda.time.LocalDate;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class LocalDateRange {
     private final LocalDate startDate;
     private final LocalDate endDate;
@@ -33,4 +36,20 @@ public final class LocalDateRange {
     public LocalDate getEndDate() {
         return endDate;
     }
+
+    /**
+     * Splits this range into consecutive, non-overlapping ranges of at most {@code daysPerRange} days each that
+     * together cover exactly the same days as this range.
+     */
+    public List<LocalDateRange> split(int daysPerRange) {
+        if (daysPerRange < 1) {
+            throw new IllegalArgumentException("daysPerRange must be at least 1");
+        }
+        List<LocalDateRange> result = new ArrayList<>();
+        for (LocalDate start = startDate; !start.isAfter(endDate); start = start.plusDays(daysPerRange)) {
+            LocalDate end = start.plusDays(daysPerRange - 1);
+            result.add(new LocalDateRange(start, end.isAfter(endDate) ? endDate : end));
+        }
+        return result;
+    }
 }
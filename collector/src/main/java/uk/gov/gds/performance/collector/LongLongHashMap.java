@@ -0,0 +1,173 @@
+package uk.gov.gds.performance.collector;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to longs that stores its keys and values in two arrays, finding a key's slot by open addressing
+ * with linear probing, so that it holds no object per entry however many entries it has. {@link Long#MIN_VALUE}
+ * marks an empty slot and cannot be used as a key. Iterate over the entries with {@link #nextSlot(int)}:
+ *
+ * <pre>
+ * for (int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1)) {
+ *     use(map.keyAt(slot), map.valueAt(slot));
+ * }
+ * </pre>
+ *
+ * Not thread-safe.
+ */
+final class LongLongHashMap {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private int size = 0;
+    private int resizeAt;
+
+    LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize how many entries the map should hold before it has to grow
+     */
+    LongLongHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return the value of the key, or {@code defaultValue} if it is not in the map
+     */
+    long get(long key, long defaultValue) {
+        int slot = find(key);
+        return keys[slot] == EMPTY ? defaultValue : values[slot];
+    }
+
+    boolean containsKey(long key) {
+        return keys[find(key)] != EMPTY;
+    }
+
+    /**
+     * @return the value the key had, or {@code defaultValue} if it was not in the map
+     */
+    long put(long key, long value, long defaultValue) {
+        int slot = find(key);
+        if (keys[slot] != EMPTY) {
+            long previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+        insert(slot, key, value);
+        return defaultValue;
+    }
+
+    /**
+     * Adds to the value of a key, which is taken to be 0 if the key is not in the map.
+     *
+     * @return the new value
+     */
+    long addTo(long key, long amount) {
+        int slot = find(key);
+        if (keys[slot] != EMPTY) {
+            return values[slot] += amount;
+        }
+        insert(slot, key, amount);
+        return amount;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return the first slot at or after {@code from} that holds an entry, or -1 if there are none
+     */
+    int nextSlot(int from) {
+        for (int slot = from; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    long valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it belongs
+     */
+    private int find(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Long.MIN_VALUE cannot be used as a key");
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(int slot, long key, long value) {
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        resizeAt = capacity / 4 * 3;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 < expectedSize) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spreads keys that differ only in a few bits, as packed keys do, over the whole table.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
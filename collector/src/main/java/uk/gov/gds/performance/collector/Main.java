@@ -2,6 +2,7 @@ package uk.gov.gds.performance.collector;
 
 import org.kohsuke.args4j.CmdLineException;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.LogManager;
 
 public class Main {
@@ -12,14 +13,33 @@ public class Main {
 
     public static void main(String... rawArgs) throws Exception {
 
-        try {
-            OpsLogger<CollectorLogMessage> logger = new OpsLogger<>(System.out);
+        try (OpsLogger<CollectorLogMessage> logger = new OpsLogger<>(System.out)) {
             CommandLineArguments args = CommandLineArguments.parse(rawArgs);
             try (CollectorApplication application = new CollectorApplicationFactory(args, logger).build()) {
+                if (args.isDaemon()) {
+                    stopOnShutdown(Thread.currentThread());
+                }
                 application.execute();
             }
         } catch (CmdLineException ignore) {
             System.exit(1);
         }
     }
+
+    /**
+     * Interrupts the daemon when the JVM is asked to stop, and waits for it to let go of its connections.
+     */
+    private static void stopOnShutdown(final Thread daemonThread) {
+        Runtime.getRuntime().addShutdownHook(new Thread("collector-shutdown") {
+            @Override
+            public void run() {
+                daemonThread.interrupt();
+                try {
+                    daemonThread.join(TimeUnit.SECONDS.toMillis(30));
+                } catch (InterruptedException ignore) {
+                    //stop waiting
+                }
+            }
+        });
+    }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package uk.gov.gds.performance.collector;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Splits a date range into partitions of a few days each and reads them concurrently, so that large backfills are
+ * not limited to a single query. At most {@code parallelism} partitions are read at once, each on its own pooled
+ * connection. Results from all partitions are handed to the same sink, one at a time, in no particular order.
+ */
+public class ParallelStatsExtractor implements StatsSource {
+    private final StatsRepository repository;
+    private final int parallelism;
+    private final int daysPerPartition;
+
+    public ParallelStatsExtractor(StatsRepository repository, int parallelism, int daysPerPartition) {
+        this.repository = repository;
+        this.parallelism = parallelism;
+        this.daysPerPartition = daysPerPartition;
+    }
+
+    /**
+     * Stops at the first partition to fail, whichever that is. The partitions still being read are interrupted and
+     * waited for before the failure is rethrown, so that nothing is handed to the sink once this has returned.
+     */
+    @Override
+    public int streamStatsBetween(LocalDateRange localDateRange, StageResultSink sink) throws SQLException, IOException {
+        List<LocalDateRange> partitions = localDateRange.split(daysPerPartition);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, partitions.size()));
+        try {
+            StageResultSink sharedSink = new SynchronizedSink(sink);
+            CompletionService<Integer> completions = new ExecutorCompletionService<>(executor);
+            for (LocalDateRange partition : partitions) {
+                completions.submit(new ReadPartition(partition, sharedSink));
+            }
+
+            int rowsRead = 0;
+            for (int i = 0; i < partitions.size(); i++) {
+                rowsRead += resultOf(takeNext(completions));
+            }
+            return rowsRead;
+        } finally {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    private Future<Integer> takeNext(CompletionService<Integer> completions) throws InterruptedIOException {
+        try {
+            return completions.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the database");
+        }
+    }
+
+    private int resultOf(Future<Integer> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the database");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Waits for the partitions that were still being read to give up. If this thread is interrupted meanwhile, it
+     * stops waiting but leaves its interrupt set, so as not to hide the exception that is on its way out.
+     */
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                //a query that has not yet returned its first row cannot be interrupted; keep waiting for it
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ReadPartition implements Callable<Integer> {
+        private final LocalDateRange partition;
+        private final StageResultSink sink;
+
+        private ReadPartition(LocalDateRange partition, StageResultSink sink) {
+            this.partition = partition;
+            this.sink = sink;
+        }
+
+        @Override
+        public Integer call() throws SQLException, IOException {
+            return repository.streamStatsBetween(partition, sink);
+        }
+    }
+
+    private static class SynchronizedSink implements StageResultSink {
+        private final StageResultSink delegate;
+
+        private SynchronizedSink(StageResultSink delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public synchronized void accept(StageResultBatch batch) throws IOException {
+            delegate.accept(batch);
+        }
+
+        @Override
+        public synchronized void finish() throws IOException {
+            delegate.finish();
+        }
+
+        @Override
+        public synchronized void close() {
+            delegate.close();
+        }
+    }
+}
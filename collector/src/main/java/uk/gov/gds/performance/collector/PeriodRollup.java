@@ -0,0 +1,209 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.chrono.ISOChronology;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Works out week, month or quarter totals for each channel from the day rows, rather than asking the database to
+ * group them, and publishes them along with the day rows. Weeks start on a Monday, and months and quarters on the
+ * first of the month.
+ *
+ * <p>A total needs every day of its period, so reading starts from the beginning of the longest period that the first
+ * day of the range falls in. Day rows from before the range are only added to the totals, not published again. Only
+ * periods that were read from their first day, and that end on or after the first day of the range, are published;
+ * the last of each is a total to date, which later runs bring up to date as more days are collected. Rows that the
+ * database already holds for a period that is being worked out here are dropped in favour of the totals, so that two
+ * different counts are never published for the same record.</p>
+ *
+ * <p>The totals are held in a {@link LongLongHashMap} keyed on the packed date, period and channel, so there is no
+ * object per total however many there are.</p>
+ */
+public class PeriodRollup implements StatsSource {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final Chronology UTC = ISOChronology.getInstanceUTC();
+
+    private final StatsSource source;
+    private final Period[] periods;
+    private final boolean[] rolledUp = new boolean[Period.values().length];
+
+    /**
+     * @param periods one or more of week, month and quarter
+     */
+    public PeriodRollup(StatsSource source, Set<Period> periods) {
+        for (Period period : periods) {
+            if (period != Period.week && period != Period.month && period != Period.quarter) {
+                throw new IllegalArgumentException("only weeks, months and quarters can be rolled up, not " + period);
+            }
+            rolledUp[period.ordinal()] = true;
+        }
+        this.source = source;
+        this.periods = EnumSet.copyOf(periods).toArray(new Period[periods.size()]);
+    }
+
+    @Override
+    public int streamStatsBetween(LocalDateRange localDateRange, StageResultSink sink) throws SQLException, IOException {
+        int firstDay = StageResultBatch.toEpochDay(localDateRange.getStartDate());
+        int lastDay = StageResultBatch.toEpochDay(localDateRange.getEndDate());
+        int readFrom = firstDay;
+        for (Period period : periods) {
+            readFrom = Math.min(readFrom, startOf(period, firstDay));
+        }
+
+        RollupSink rollupSink = new RollupSink(sink, firstDay, lastDay);
+        int rowsRead = source.streamStatsBetween(new LocalDateRange(localDateRange.getStartDate().minusDays(firstDay - readFrom), localDateRange.getEndDate()), rollupSink);
+        rollupSink.publishTotals(readFrom);
+        return rowsRead;
+    }
+
+    /**
+     * @return the epoch day that the period containing the given epoch day starts on
+     */
+    static int startOf(Period period, int epochDay) {
+        switch (period) {
+            case week:
+                //1970-01-01 was a Thursday
+                return epochDay - floorMod(epochDay + 3, 7);
+            case month:
+                return toEpochDay(UTC.monthOfYear().roundFloor(epochDay * MILLIS_PER_DAY));
+            case quarter:
+                long month = UTC.monthOfYear().roundFloor(epochDay * MILLIS_PER_DAY);
+                return toEpochDay(UTC.monthOfYear().add(month, -((UTC.monthOfYear().get(month) - 1) % 3)));
+            default:
+                return epochDay;
+        }
+    }
+
+    /**
+     * @return the last epoch day of the period that starts on the given epoch day
+     */
+    static int endOf(Period period, int startDay) {
+        switch (period) {
+            case week:
+                return startDay + 6;
+            case month:
+                return toEpochDay(UTC.monthOfYear().add(startDay * MILLIS_PER_DAY, 1)) - 1;
+            case quarter:
+                return toEpochDay(UTC.monthOfYear().add(startDay * MILLIS_PER_DAY, 3)) - 1;
+            default:
+                return startDay;
+        }
+    }
+
+    private static int toEpochDay(long millis) {
+        return (int) (millis / MILLIS_PER_DAY - (millis % MILLIS_PER_DAY < 0 ? 1 : 0));
+    }
+
+    private static int floorMod(int x, int y) {
+        int mod = x % y;
+        return mod < 0 ? mod + y : mod;
+    }
+
+    /**
+     * Adds up the day rows and passes on the rows that fall in the range. Like the sinks of the repository, it is only
+     * ever called by one thread at a time.
+     */
+    private class RollupSink implements StageResultSink {
+        private final StageResultSink sink;
+        private final int firstDay;
+        private final int lastDay;
+        private final LongLongHashMap totals = new LongLongHashMap();
+        private ChannelDictionary channels;
+        private int batchCapacity;
+        private StageResultBatch filtered;
+
+        private RollupSink(StageResultSink sink, int firstDay, int lastDay) {
+            this.sink = sink;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+
+        @Override
+        public void accept(StageResultBatch batch) throws IOException {
+            if (channels == null) {
+                channels = batch.getChannels();
+                batchCapacity = batch.capacity();
+            }
+            boolean passAll = true;
+            for (int i = 0; i < batch.size(); i++) {
+                int epochDay = batch.getEpochDay(i);
+                Period period = batch.getPeriod(i);
+                if (period == Period.day) {
+                    for (Period rollup : periods) {
+                        totals.addTo(StageResultBatch.keyOf(startOf(rollup, epochDay), rollup, batch.getChannelId(i)), batch.getCount(i));
+                    }
+                }
+                passAll &= passOn(epochDay, period);
+            }
+
+            if (passAll) {
+                sink.accept(batch);
+                return;
+            }
+            if (filtered == null || filtered.getChannels() != batch.getChannels() || filtered.capacity() < batch.size()) {
+                filtered = new StageResultBatch(batch.getChannels(), batch.capacity());
+            }
+            filtered.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                if (passOn(batch.getEpochDay(i), batch.getPeriod(i))) {
+                    filtered.add(batch, i);
+                }
+            }
+            if (!filtered.isEmpty()) {
+                sink.accept(filtered);
+            }
+        }
+
+        @Override
+        public void finish() {
+            //sources never finish a sink; the caller finishes its own once the totals have been passed on
+        }
+
+        @Override
+        public void close() {
+            //nor close one; the caller closes its own
+        }
+
+        private boolean passOn(int epochDay, Period period) {
+            return !rolledUp[period.ordinal()] && epochDay >= firstDay && epochDay <= lastDay;
+        }
+
+        /**
+         * Passes on the total of every period that was read from its first day and that ends in the range.
+         */
+        void publishTotals(int readFrom) throws IOException {
+            if (totals.isEmpty()) {
+                return;
+            }
+            StageResultBatch batch = new StageResultBatch(channels, batchCapacity);
+            for (int slot = totals.nextSlot(0); slot >= 0; slot = totals.nextSlot(slot + 1)) {
+                long key = totals.keyAt(slot);
+                int startDay = StageResultBatch.epochDayOf(key);
+                Period period = StageResultBatch.periodOf(key);
+                if (startDay < readFrom || endOf(period, startDay) < firstDay) {
+                    continue;
+                }
+                long total = totals.valueAt(slot);
+                if (total > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("the " + period + " total of " + total + " for "
+                            + channels.nameOf(StageResultBatch.channelIdOf(key)) + " from "
+                            + new LocalDate(startDay * MILLIS_PER_DAY, DateTimeZone.UTC) + " is too large to publish");
+                }
+                batch.add(startDay, period, StageResultBatch.channelIdOf(key), (int) total);
+                if (batch.isFull()) {
+                    sink.accept(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                sink.accept(batch);
+            }
+        }
+    }
+}
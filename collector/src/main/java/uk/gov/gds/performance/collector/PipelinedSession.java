@@ -0,0 +1,296 @@
+package uk.gov.gds.performance.collector;
+
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A publishing session that runs as a pipeline, so that reading from the database, turning results into request
+ * bodies and sending them to the performance platform all happen at once rather than one after another:
+ *
+ * <ol>
+ *     <li>the threads reading from the database hand copies of their batches to a bounded queue;</li>
+ *     <li>serializer threads take batches from it and put request bodies on a second bounded queue;</li>
+ *     <li>publisher threads take request bodies from that and send them.</li>
+ * </ol>
+ *
+ * <p>A full queue holds up the stage before it, so memory use stays bounded however far apart the stages' speeds
+ * are. The first failure in any stage stops every stage, and is thrown to the reading thread the next time it hands
+ * over a batch or when the session is finished. When the session finishes, the depth of each queue and the time each
+ * stage spent working and waiting are logged.</p>
+ */
+class PipelinedSession implements StatsPublisher.Session {
+    private static final StageResultBatch END_OF_BATCHES = new StageResultBatch(new ChannelDictionary(), 1);
+    private static final StatsPublisher.RequestBody END_OF_BODIES = new StatsPublisher.RequestBody(new byte[0], 0, 0);
+    private static final long FAILURE_CHECK_MILLIS = 100;
+
+    private final StatsPublisher publisher;
+    private final int serializerThreads;
+    private final int publisherThreads;
+    private final OpsLogger<CollectorLogMessage> logger;
+
+    private final BlockingQueue<StageResultBatch> batches;
+    private final BlockingQueue<StatsPublisher.RequestBody> bodies;
+    private final QueueStats batchQueueStats;
+    private final QueueStats bodyQueueStats;
+    private final StageStats readStage = new StageStats("read");
+    private final StageStats serializeStage = new StageStats("serialize");
+    private final StageStats publishStage = new StageStats("publish");
+
+    private final ExecutorService serializers;
+    private final ExecutorService publishers;
+    private final List<Future<?>> serializerFutures = new ArrayList<>();
+    private final List<Future<?>> publisherFutures = new ArrayList<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger publishedCount = new AtomicInteger();
+    private final long openedAt = System.nanoTime();
+
+    PipelinedSession(StatsPublisher publisher, int serializerThreads, int publisherThreads, int queueCapacity, OpsLogger<CollectorLogMessage> logger) {
+        this.publisher = publisher;
+        this.serializerThreads = serializerThreads;
+        this.publisherThreads = publisherThreads;
+        this.logger = logger;
+        this.batches = new ArrayBlockingQueue<>(queueCapacity);
+        this.bodies = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchQueueStats = new QueueStats("batch", queueCapacity);
+        this.bodyQueueStats = new QueueStats("request body", queueCapacity);
+
+        serializers = Executors.newFixedThreadPool(serializerThreads);
+        publishers = Executors.newFixedThreadPool(publisherThreads);
+        for (int i = 0; i < serializerThreads; i++) {
+            serializerFutures.add(serializers.submit(new Serializer()));
+        }
+        for (int i = 0; i < publisherThreads; i++) {
+            publisherFutures.add(publishers.submit(new Publisher()));
+        }
+    }
+
+    @Override
+    public void accept(StageResultBatch batch) throws IOException {
+        readStage.items.addAndGet(batch.size());
+        readStage.waitingNanos.addAndGet(put(batches, batch.copy(), batchQueueStats));
+    }
+
+    @Override
+    public void finish() throws IOException {
+        try {
+            for (int i = 0; i < serializerThreads; i++) {
+                readStage.waitingNanos.addAndGet(put(batches, END_OF_BATCHES, null));
+            }
+            waitFor(serializerFutures);
+            for (int i = 0; i < publisherThreads; i++) {
+                put(bodies, END_OF_BODIES, null);
+            }
+            waitFor(publisherFutures);
+            throwIfFailed();
+        } finally {
+            close();
+            readStage.busyNanos.set(System.nanoTime() - openedAt - readStage.waitingNanos.get());
+            logStats();
+        }
+    }
+
+    @Override
+    public int getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    @Override
+    public void close() {
+        serializers.shutdownNow();
+        publishers.shutdownNow();
+    }
+
+    private void logStats() {
+        for (QueueStats queue : new QueueStats[]{batchQueueStats, bodyQueueStats}) {
+            logger.log(CollectorLogMessage.PipelineQueueDepth, queue.name, queue.peakDepth.get(), queue.capacity, queue.meanDepth());
+        }
+        for (StageStats stage : new StageStats[]{readStage, serializeStage, publishStage}) {
+            logger.log(CollectorLogMessage.PipelineStageTimings, stage.name, stage.items.get(),
+                    TimeUnit.NANOSECONDS.toMillis(stage.busyNanos.get()), TimeUnit.NANOSECONDS.toMillis(stage.waitingNanos.get()));
+        }
+    }
+
+    /**
+     * @return how long it took to find room on the queue, in nanoseconds
+     */
+    private <T> long put(BlockingQueue<T> queue, T item, QueueStats queueStats) throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(item, FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                throwIfFailed();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throwIfFailed();
+            throw new InterruptedIOException("interrupted waiting for the publishing pipeline");
+        }
+        if (queueStats != null) {
+            queueStats.sample(queue.size());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private <T> T take(BlockingQueue<T> queue, StageStats stage) throws InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return queue.take();
+        } finally {
+            stage.waitingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void waitFor(List<Future<?>> futures) throws IOException {
+        for (Future<?> future : futures) {
+            try {
+                while (!isDone(future)) {
+                    throwIfFailed();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the publishing pipeline");
+            } catch (ExecutionException | CancellationException e) {
+                //the stage records its own failures, so this only means it was stopped because of one
+                throwIfFailed();
+            }
+        }
+    }
+
+    private boolean isDone(Future<?> future) throws InterruptedException, ExecutionException {
+        try {
+            future.get(FAILURE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void fail(Throwable cause) {
+        if (failure.compareAndSet(null, cause)) {
+            close();
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        Throwable cause = failure.get();
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    private class Serializer implements Runnable, StatsPublisher.RequestBodyConsumer {
+        private final StatsPublisher.RequestBodyBuilder builder = publisher.new RequestBodyBuilder(this);
+        private long waitingNanos;
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    StageResultBatch batch = take(batches, serializeStage);
+                    long start = System.nanoTime();
+                    waitingNanos = 0;
+                    if (batch == END_OF_BATCHES) {
+                        builder.flush();
+                    } else {
+                        builder.add(batch);
+                        serializeStage.items.addAndGet(batch.size());
+                    }
+                    //time spent waiting for room on the request body queue is not time spent working
+                    serializeStage.busyNanos.addAndGet(System.nanoTime() - start - waitingNanos);
+                    if (batch == END_OF_BATCHES) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException | InterruptedIOException e) {
+                //stopped because another stage failed
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        @Override
+        public void accept(StatsPublisher.RequestBody body) throws IOException {
+            long waited = put(bodies, body, bodyQueueStats);
+            waitingNanos += waited;
+            serializeStage.waitingNanos.addAndGet(waited);
+        }
+    }
+
+    private class Publisher implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    StatsPublisher.RequestBody body = take(bodies, publishStage);
+                    if (body == END_OF_BODIES) {
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    publisher.sendAndWait(body);
+                    publishedCount.addAndGet(body.getRecords());
+                    publishStage.items.addAndGet(body.getRecords());
+                    publishStage.busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                //stopped because another stage failed
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    private static class StageStats {
+        private final String name;
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong waitingNanos = new AtomicLong();
+
+        private StageStats(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class QueueStats {
+        private final String name;
+        private final int capacity;
+        private final AtomicInteger peakDepth = new AtomicInteger();
+        private final AtomicLong totalDepth = new AtomicLong();
+        private final AtomicLong samples = new AtomicLong();
+
+        private QueueStats(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        void sample(int depth) {
+            totalDepth.addAndGet(depth);
+            samples.incrementAndGet();
+            int peak;
+            while (depth > (peak = peakDepth.get()) && !peakDepth.compareAndSet(peak, depth)) {
+                //another thread raised the peak first; try again
+            }
+        }
+
+        long meanDepth() {
+            long count = samples.get();
+            return count == 0 ? 0 : totalDepth.get() / count;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package uk.gov.gds.performance.collector;
+
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Remembers a fingerprint of the last payload published for each record {@code _id}, so that a record which has not
+ * changed since it was last published can be dropped instead of being sent again.
+ *
+ * <p>The ledger file holds a short header followed by fixed-size entries sorted by id: the 16 bytes of the MD5
+ * {@code _id} and an 8 byte FNV-1a hash of the record's JSON. It is memory mapped and binary searched rather than
+ * read onto the heap. The records that change during a run are gathered in a buffer of fixed size, which is sorted
+ * and appended to a spill file next to the ledger whenever it fills up, so a run takes the same amount of heap
+ * however many records change. Once the publishing session has finished successfully, the ledger and the sorted
+ * runs in the spill file are merged into a new file that replaces the old one. The spill file is deleted when the
+ * sink is finished or closed, so a failed run leaves the ledger as it was.</p>
+ *
+ * <p>Only the first appearance of a record in a run is compared with the ledger: if the same id is read again in the
+ * run, as it is when a table holds several rows for it, it is published every time, because the platform keeps the
+ * last of them. The sink returned by {@link #decorate(StageResultSink)} must not be called from several threads at
+ * once. Deleting the ledger file makes the next run publish every record again.</p>
+ */
+public class PublishedRecordLedger implements StageResultSinkDecorator {
+    private static final int MAGIC = 0x50504C47;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 24;
+    private static final int DEFAULT_CHANGE_BUFFER_SIZE = 1 << 18;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File file;
+    private final File spillFile;
+    private final StageResultToJsonConverter converter;
+    private final int changeBufferSize;
+    private final OpsLogger<CollectorLogMessage> logger;
+    private ByteBuffer entries;
+    private int entryCount;
+
+    public PublishedRecordLedger(File file, StageResultToJsonConverter converter, OpsLogger<CollectorLogMessage> logger) throws IOException {
+        this(file, converter, DEFAULT_CHANGE_BUFFER_SIZE, logger);
+    }
+
+    /**
+     * @param changeBufferSize how many changed records are held on the heap before they are spilled to disk
+     */
+    PublishedRecordLedger(File file, StageResultToJsonConverter converter, int changeBufferSize, OpsLogger<CollectorLogMessage> logger) throws IOException {
+        this.file = file;
+        this.spillFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".changes");
+        this.converter = converter;
+        this.changeBufferSize = changeBufferSize;
+        this.logger = logger;
+        map();
+    }
+
+    public int size() {
+        return entryCount;
+    }
+
+    @Override
+    public StageResultSink decorate(final StageResultSink sink) {
+        return new StageResultSink() {
+            private final BitSet seen = new BitSet(entryCount);
+            private final byte[] digest = new byte[16];
+            private ChangeLog changes;
+            private StageResultBatch changedRows;
+            private final FingerprintOutputStream payload = new FingerprintOutputStream();
+            private int skipped = 0;
+
+            @Override
+            public void accept(StageResultBatch batch) throws IOException {
+                if (changedRows == null || changedRows.capacity() < batch.size() || changedRows.getChannels() != batch.getChannels()) {
+                    changedRows = new StageResultBatch(batch.getChannels(), batch.capacity());
+                }
+                changedRows.clear();
+                for (int i = 0; i < batch.size(); i++) {
+                    StageResult.idDigestOf(batch.getTimestamp(i), batch.getPeriod(i), batch.getChannel(i), digest);
+                    long high = toLong(digest, 0);
+                    long low = toLong(digest, 8);
+                    payload.reset();
+                    converter.write(batch, i, payload);
+                    long fingerprint = payload.getFingerprint();
+                    int index = find(high, low);
+                    if (index >= 0) {
+                        boolean unchanged = !seen.get(index) && fingerprintAt(index) == fingerprint;
+                        seen.set(index);
+                        if (unchanged) {
+                            skipped++;
+                            continue;
+                        }
+                    }
+                    if (changes == null) {
+                        changes = new ChangeLog();
+                    }
+                    changes.add(high, low, fingerprint);
+                    changedRows.add(batch, i);
+                }
+                if (!changedRows.isEmpty()) {
+                    sink.accept(changedRows);
+                }
+            }
+
+            @Override
+            public void finish() throws IOException {
+                try {
+                    sink.finish();
+                    if (skipped > 0) {
+                        logger.log(CollectorLogMessage.UnchangedRecordsSkipped, skipped);
+                    }
+                    if (changes != null) {
+                        write(changes);
+                    }
+                } finally {
+                    deleteChanges();
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    deleteChanges();
+                } finally {
+                    sink.close();
+                }
+            }
+
+            private void deleteChanges() {
+                if (changes != null) {
+                    changes.delete();
+                    changes = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the index of the entry with the id, or -1 if there is none
+     */
+    private int find(long high, long low) {
+        int first = 0;
+        int last = entryCount - 1;
+        while (first <= last) {
+            int mid = (first + last) >>> 1;
+            int offset = HEADER_SIZE + mid * ENTRY_SIZE;
+            int cmp = compareIds(high, low, entries.getLong(offset), entries.getLong(offset + 8));
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                last = mid - 1;
+            } else {
+                first = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    private long fingerprintAt(int index) {
+        return entries.getLong(HEADER_SIZE + index * ENTRY_SIZE + 16);
+    }
+
+    /**
+     * Merges the entries of the ledger with the sorted runs of changes into a new ledger file. Where several of them
+     * hold the same id, the latest run wins, and any run wins over the ledger.
+     */
+    private void write(ChangeLog changes) throws IOException {
+        List<ByteBuffer> runs = changes.finish();
+        PriorityQueue<Run> heads = new PriorityQueue<>(runs.size() + 1);
+        if (entryCount > 0) {
+            ByteBuffer existing = entries.duplicate();
+            existing.position(HEADER_SIZE);
+            new Run(existing, -1).addTo(heads);
+        }
+        for (int i = 0; i < runs.size(); i++) {
+            new Run(runs.get(i), i).addTo(heads);
+        }
+
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        long written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0);
+            while (!heads.isEmpty()) {
+                Run winner = heads.poll();
+                out.writeLong(winner.high);
+                out.writeLong(winner.low);
+                out.writeLong(winner.fingerprint);
+                written++;
+                while (!heads.isEmpty() && heads.peek().hasSameId(winner)) {
+                    heads.poll().addTo(heads);
+                }
+                winner.addTo(heads);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.seek(8);
+            raf.writeLong(written);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+    }
+
+    private void map() throws IOException {
+        if (!file.exists()) {
+            entries = null;
+            entryCount = 0;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException(file.getAbsolutePath() + " is not a published record ledger");
+            }
+            long count = mapped.getLong(8);
+            if (mapped.limit() != HEADER_SIZE + count * ENTRY_SIZE) {
+                throw new IOException("The published record ledger " + file.getAbsolutePath() + " is incomplete");
+            }
+            entries = mapped;
+            entryCount = (int) count;
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static int compareIds(long high, long low, long otherHigh, long otherLow) {
+        int cmp = Long.compare(high, otherHigh);
+        return cmp != 0 ? cmp : Long.compare(low, otherLow);
+    }
+
+    /**
+     * The changes made during a run. They are added to parallel arrays, which grow up to the size of the change buffer,
+     * until those are full, then sorted by id, with only the last change of each id kept, and appended to the spill
+     * file as a run of ledger entries.
+     */
+    private final class ChangeLog {
+        private long[] highs = new long[Math.min(1024, changeBufferSize)];
+        private long[] lows = new long[highs.length];
+        private long[] fingerprints = new long[highs.length];
+        private int[] order = new int[highs.length];
+        private int[] scratch = new int[highs.length];
+        private int size = 0;
+        private final DataOutputStream spill;
+        private final List<Integer> runLengths = new ArrayList<>();
+
+        private ChangeLog() throws IOException {
+            spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+        }
+
+        void add(long high, long low, long fingerprint) throws IOException {
+            if (size == highs.length) {
+                grow();
+            }
+            highs[size] = high;
+            lows[size] = low;
+            fingerprints[size] = fingerprint;
+            size++;
+            if (size == changeBufferSize) {
+                spillRun();
+            }
+        }
+
+        private void grow() {
+            int capacity = Math.min(highs.length * 2, changeBufferSize);
+            highs = Arrays.copyOf(highs, capacity);
+            lows = Arrays.copyOf(lows, capacity);
+            fingerprints = Arrays.copyOf(fingerprints, capacity);
+            order = new int[capacity];
+            scratch = new int[capacity];
+        }
+
+        /**
+         * @return the sorted runs, in the order they were spilled
+         */
+        List<ByteBuffer> finish() throws IOException {
+            spillRun();
+            spill.close();
+            List<ByteBuffer> result = new ArrayList<>(runLengths.size());
+            try (FileChannel channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ)) {
+                long offset = 0;
+                for (int length : runLengths) {
+                    result.add(channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) length * ENTRY_SIZE));
+                    offset += (long) length * ENTRY_SIZE;
+                }
+            }
+            return result;
+        }
+
+        void delete() {
+            try {
+                spill.close();
+            } catch (IOException ignore) {}
+            if (spillFile.exists() && !spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+        }
+
+        private void spillRun() throws IOException {
+            if (size == 0) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            sort(0, size);
+            int length = 0;
+            for (int i = 0; i < size; i++) {
+                int entry = order[i];
+                //the sort is stable, so the last of several changes to an id is the one added last
+                if (i + 1 < size && highs[order[i + 1]] == highs[entry] && lows[order[i + 1]] == lows[entry]) {
+                    continue;
+                }
+                spill.writeLong(highs[entry]);
+                spill.writeLong(lows[entry]);
+                spill.writeLong(fingerprints[entry]);
+                length++;
+            }
+            runLengths.add(length);
+            size = 0;
+        }
+
+        /**
+         * A merge sort of the indexes in {@code order[from, to)} by the ids they point at, which keeps indexes with the
+         * same id in the order they were added.
+         */
+        private void sort(int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            sort(from, middle);
+            sort(middle, to);
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++) {
+                if (right == to || (left < middle && compare(order[left], order[right]) <= 0)) {
+                    scratch[i] = order[left++];
+                } else {
+                    scratch[i] = order[right++];
+                }
+            }
+            System.arraycopy(scratch, from, order, from, to - from);
+        }
+
+        private int compare(int entry, int other) {
+            return compareIds(highs[entry], lows[entry], highs[other], lows[other]);
+        }
+    }
+
+    /**
+     * The next entry of a sorted run of entries, or of the ledger itself. Among runs whose next entries have the same
+     * id, the latest comes first.
+     */
+    private static final class Run implements Comparable<Run> {
+        private final ByteBuffer entries;
+        private final int number;
+        private long high;
+        private long low;
+        private long fingerprint;
+
+        private Run(ByteBuffer entries, int number) {
+            this.entries = entries;
+            this.number = number;
+        }
+
+        /**
+         * Moves on to the next entry and adds the run to the queue, unless it has none left.
+         */
+        void addTo(PriorityQueue<Run> heads) {
+            if (entries.remaining() < ENTRY_SIZE) {
+                return;
+            }
+            high = entries.getLong();
+            low = entries.getLong();
+            fingerprint = entries.getLong();
+            heads.add(this);
+        }
+
+        boolean hasSameId(Run other) {
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            int cmp = compareIds(high, low, other.high, other.low);
+            return cmp != 0 ? cmp : Integer.compare(other.number, number);
+        }
+    }
+
+    /**
+     * Computes the fingerprint of everything written to it without keeping any of it.
+     */
+    private static final class FingerprintOutputStream extends OutputStream {
+        private long hash = FNV_OFFSET_BASIS;
+
+        void reset() {
+            hash = FNV_OFFSET_BASIS;
+        }
+
+        long getFingerprint() {
+            return hash;
+        }
+
+        @Override
+        public void write(int b) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            long h = hash;
+            for (int i = offset; i < offset + length; i++) {
+                h ^= bytes[i] & 0xff;
+                h *= FNV_PRIME;
+            }
+            hash = h;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeUtils;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+import uk.gov.gds.performance.collector.metrics.Counter;
+import uk.gov.gds.performance.collector.metrics.Gauge;
+import uk.gov.gds.performance.collector.metrics.Histogram;
+import uk.gov.gds.performance.collector.metrics.MetricsRegistry;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The numbers that describe how collection runs performed. They are added to by the repository, the publisher and
+ * the collector while a run is under way. At the end of each run a summary of that run is logged and, if a file is
+ * configured, every metric is written to it in the Prometheus text format for node_exporter's textfile collector.
+ */
+public class RunMetrics {
+    private static final double[] LATENCY_BOUNDS_SECONDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final File textFile;
+
+    private final Counter rowsRead = registry.counter("collector_rows_read_total", "Rows read from the database");
+    private final Counter recordsPublished = registry.counter("collector_records_published_total", "Records published to the performance platform");
+    private final Counter bytesSent = registry.counter("collector_bytes_sent_total", "Bytes of request body sent to the performance platform in requests that succeeded");
+    private final Histogram queryTime = registry.histogram("collector_database_query_seconds", "Time taken by each database query to start returning rows", LATENCY_BOUNDS_SECONDS);
+    private final Histogram serializationTime = registry.histogram("collector_serialization_seconds", "Time taken to turn each batch of results into request bodies", LATENCY_BOUNDS_SECONDS);
+    private final Histogram publishTime = registry.histogram("collector_publish_request_seconds", "Time taken by each request to the performance platform, including failed ones", LATENCY_BOUNDS_SECONDS);
+    private final Gauge lastRunTimestamp = registry.gauge("collector_last_run_timestamp_seconds", "When the last run finished, in seconds since the epoch");
+    private final Gauge lastRunDuration = registry.gauge("collector_last_run_duration_seconds", "How long the last run took");
+    private final Gauge lastRunSuccess = registry.gauge("collector_last_run_success", "1 if the last run succeeded, otherwise 0");
+
+    private long runStartMillis;
+    private final long[] runStartValues = new long[6];
+
+    public RunMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param textFile where to write the metrics at the end of each run, or null to only log the summary
+     */
+    public RunMetrics(File textFile) {
+        this.textFile = textFile;
+    }
+
+    public Counter getRowsRead() {
+        return rowsRead;
+    }
+
+    public Counter getRecordsPublished() {
+        return recordsPublished;
+    }
+
+    public Counter getBytesSent() {
+        return bytesSent;
+    }
+
+    public Histogram getQueryTime() {
+        return queryTime;
+    }
+
+    public Histogram getSerializationTime() {
+        return serializationTime;
+    }
+
+    public Histogram getPublishTime() {
+        return publishTime;
+    }
+
+    public Gauge getLastRunTimestamp() {
+        return lastRunTimestamp;
+    }
+
+    public Gauge getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+    public Gauge getLastRunSuccess() {
+        return lastRunSuccess;
+    }
+
+    /**
+     * Notes where the metrics stand, so that the summary logged at the end of the run covers only this run.
+     */
+    public synchronized void startRun() {
+        runStartMillis = DateTimeUtils.currentTimeMillis();
+        long[] values = currentValues();
+        System.arraycopy(values, 0, runStartValues, 0, values.length);
+    }
+
+    /**
+     * Logs a summary of the run and writes the metrics file. A file that cannot be written is logged, but does not
+     * fail the run.
+     */
+    public synchronized void finishRun(boolean success, OpsLogger<CollectorLogMessage> logger) {
+        long now = DateTimeUtils.currentTimeMillis();
+        lastRunTimestamp.setSeconds(now);
+        lastRunDuration.setSeconds(now - runStartMillis);
+        lastRunSuccess.set(success ? 1 : 0);
+
+        long[] values = currentValues();
+        for (int i = 0; i < values.length; i++) {
+            values[i] -= runStartValues[i];
+        }
+        logger.log(CollectorLogMessage.RunMetricsSummary, values[0], values[1], values[2], values[3], values[4], values[5]);
+
+        if (textFile != null) {
+            try {
+                registry.writeTextFile(textFile);
+            } catch (IOException e) {
+                logger.log(CollectorLogMessage.MetricsFileNotWritten, e, textFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private long[] currentValues() {
+        return new long[]{
+                rowsRead.get(),
+                recordsPublished.get(),
+                bytesSent.get(),
+                queryTime.getSumMillis(),
+                serializationTime.getSumMillis(),
+                publishTime.getSumMillis()
+        };
+    }
+
+    MetricsRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,27 @@
+package uk.gov.gds.performance.collector;
+
+/**
+ * When a daemon runs its collections.
+ */
+public abstract class Schedule {
+
+    /**
+     * @return the first time, in milliseconds since the epoch, strictly after {@code millis} at which a collection
+     * is due
+     */
+    public abstract long nextRunAfter(long millis);
+
+    /**
+     * Parses a schedule from configuration: either a whole number of seconds between runs, counted from
+     * {@code startMillis}, or a five field cron expression.
+     *
+     * @throws IllegalArgumentException when the schedule is not valid, with a message saying why
+     */
+    public static Schedule parse(String value, long startMillis) {
+        String trimmed = value.trim();
+        if (trimmed.matches("[0-9]+")) {
+            return new FixedRateSchedule(startMillis, Long.parseLong(trimmed) * 1000);
+        }
+        return new CronSchedule(trimmed);
+    }
+}
@@ -2,14 +2,26 @@ package uk.gov.gds.performance.collector;
 
 import org.joda.time.LocalDate;
 
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 public class StageResult {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<IdDigest> ID_DIGESTS = new ThreadLocal<IdDigest>() {
+        @Override
+        protected IdDigest initialValue() {
+            return new IdDigest();
+        }
+    };
+
     private final LocalDate timestamp;
     private final Period period;
     private final String channel;
     private final int count;
+    private String id;
 
     public StageResult(LocalDate timestamp, Period period, String channel, int count) {
         this.timestamp = timestamp;
@@ -19,12 +31,28 @@ public class StageResult {
     }
 
     public String get_id()  {
-        String key = timestamp.toString() + period.toString() + channel;
-        try {
-            return bytesToHex(MessageDigest.getInstance("MD5").digest(key.getBytes()));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("MD5 hashing not supported on this machine", e);
+        String result = id;
+        if (result == null) {
+            result = idOf(timestamp, period, channel);
+            id = result;
         }
+        return result;
+    }
+
+    /**
+     * @return the {@code _id} that a result with these fields is published with: the hex MD5 of the UTF-8 encoding of
+     * the date, period and channel run together
+     */
+    public static String idOf(LocalDate timestamp, Period period, String channel) {
+        return ID_DIGESTS.get().digest(timestamp, period, channel);
+    }
+
+    /**
+     * Writes the 16 bytes of the MD5 that {@link #idOf(LocalDate, Period, String)} gives as hex into {@code digest},
+     * for callers that only need to compare ids.
+     */
+    public static void idDigestOf(LocalDate timestamp, Period period, String channel, byte[] digest) {
+        ID_DIGESTS.get().digest(timestamp, period, channel, digest);
     }
 
     public LocalDate getTimestamp() {
@@ -43,11 +71,94 @@ public class StageResult {
         return count;
     }
 
-    private String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for(byte b: bytes) {
-            sb.append(String.format("%02x", b&0xff));
+    /**
+     * Works out ids without allocating anything but the id itself. MessageDigest is not thread-safe, so each thread
+     * has its own.
+     */
+    private static final class IdDigest {
+        private final MessageDigest md5;
+        private byte[] key = new byte[64];
+        private final byte[] digest = new byte[16];
+        private final char[] hex = new char[32];
+
+        private IdDigest() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("MD5 hashing not supported on this machine", e);
+            }
+        }
+
+        String digest(LocalDate timestamp, Period period, String channel) {
+            digest(timestamp, period, channel, digest);
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+            return new String(hex);
+        }
+
+        void digest(LocalDate timestamp, Period period, String channel, byte[] result) {
+            int length = appendDate(timestamp, 0);
+            length = appendAscii(period.name(), length);
+            length = appendUtf8(channel, length);
+
+            md5.update(key, 0, length);
+            try {
+                md5.digest(result, 0, 16);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException("An MD5 needs 16 bytes, but there are only " + result.length, e);
+            }
+        }
+
+        private int appendDate(LocalDate date, int length) {
+            int year = date.getYear();
+            if (year < 0 || year > 9999) {
+                return appendAscii(date.toString(), length);
+            }
+            ensureCapacity(length + 10);
+            length = appendDigits(year, 4, length);
+            key[length++] = '-';
+            length = appendDigits(date.getMonthOfYear(), 2, length);
+            key[length++] = '-';
+            return appendDigits(date.getDayOfMonth(), 2, length);
+        }
+
+        private int appendDigits(int value, int digits, int length) {
+            for (int i = length + digits - 1; i >= length; i--) {
+                key[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return length + digits;
+        }
+
+        private int appendAscii(String value, int length) {
+            ensureCapacity(length + value.length());
+            for (int i = 0; i < value.length(); i++) {
+                key[length++] = (byte) value.charAt(i);
+            }
+            return length;
+        }
+
+        private int appendUtf8(String value, int length) {
+            ensureCapacity(length + value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) {
+                    byte[] encoded = value.substring(i).getBytes(StandardCharsets.UTF_8);
+                    ensureCapacity(length + encoded.length);
+                    System.arraycopy(encoded, 0, key, length, encoded.length);
+                    return length + encoded.length;
+                }
+                key[length++] = (byte) c;
+            }
+            return length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > key.length) {
+                key = Arrays.copyOf(key, Math.max(capacity, key.length * 2));
+            }
         }
-        return sb.toString();
     }
 }
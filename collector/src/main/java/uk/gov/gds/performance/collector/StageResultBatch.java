@@ -0,0 +1,182 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A batch of stage results held column by column in primitive arrays: the event date as a count of days since
+ * 1970-01-01, the period as its ordinal, the channel as an id from a {@link ChannelDictionary} and the count. Reading
+ * and publishing a batch allocates nothing per row, unlike a {@link StageResult} per row.
+ *
+ * <p>Batches are reused: a sink that wants to keep any of the rows it is given must copy them before it returns.</p>
+ */
+public final class StageResultBatch {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final Period[] PERIODS = Period.values();
+    private static final int CHANNEL_ID_BITS = 28;
+    private static final long CHANNEL_ID_MASK = (1L << CHANNEL_ID_BITS) - 1;
+
+    private final ChannelDictionary channels;
+    private final int[] epochDays;
+    private final byte[] periods;
+    private final int[] channelIds;
+    private final int[] counts;
+    private int size = 0;
+
+    public StageResultBatch(ChannelDictionary channels, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.channels = channels;
+        this.epochDays = new int[capacity];
+        this.periods = new byte[capacity];
+        this.channelIds = new int[capacity];
+        this.counts = new int[capacity];
+    }
+
+    public static StageResultBatch of(List<StageResult> results) {
+        StageResultBatch batch = new StageResultBatch(new ChannelDictionary(), Math.max(1, results.size()));
+        for (StageResult result : results) {
+            batch.add(result);
+        }
+        return batch;
+    }
+
+    public void add(int epochDay, Period period, int channelId, int count) {
+        if (isFull()) {
+            throw new IllegalStateException("the batch is full");
+        }
+        epochDays[size] = epochDay;
+        periods[size] = (byte) period.ordinal();
+        channelIds[size] = channelId;
+        counts[size] = count;
+        size++;
+    }
+
+    public void add(StageResult result) {
+        add(toEpochDay(result.getTimestamp()), result.getPeriod(), channels.idOf(result.getChannel()), result.getCount());
+    }
+
+    /**
+     * Copies a row of another batch that uses the same channel dictionary into this one.
+     */
+    public void add(StageResultBatch other, int index) {
+        add(other.epochDays[index], PERIODS[other.periods[index]], other.channelIds[index], other.counts[index]);
+    }
+
+    /**
+     * @return a new batch holding just the rows of this one, which is safe to keep after this one is reused
+     */
+    public StageResultBatch copy() {
+        StageResultBatch result = new StageResultBatch(channels, Math.max(1, size));
+        System.arraycopy(epochDays, 0, result.epochDays, 0, size);
+        System.arraycopy(periods, 0, result.periods, 0, size);
+        System.arraycopy(channelIds, 0, result.channelIds, 0, size);
+        System.arraycopy(counts, 0, result.counts, 0, size);
+        result.size = size;
+        return result;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return counts.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == counts.length;
+    }
+
+    public ChannelDictionary getChannels() {
+        return channels;
+    }
+
+    public int getEpochDay(int index) {
+        return epochDays[index];
+    }
+
+    public LocalDate getTimestamp(int index) {
+        return new LocalDate(epochDays[index] * MILLIS_PER_DAY, DateTimeZone.UTC);
+    }
+
+    public Period getPeriod(int index) {
+        return PERIODS[periods[index]];
+    }
+
+    public int getChannelId(int index) {
+        return channelIds[index];
+    }
+
+    public String getChannel(int index) {
+        return channels.nameOf(channelIds[index]);
+    }
+
+    public int getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return the row's date, period and channel packed into a long, as {@link #keyOf(int, Period, int)} does
+     */
+    public long getKey(int index) {
+        return keyOf(epochDays[index], periods[index], channelIds[index]);
+    }
+
+    public StageResult get(int index) {
+        return new StageResult(getTimestamp(index), getPeriod(index), getChannel(index), getCount(index));
+    }
+
+    /**
+     * Packs what identifies a result, and so its {@code _id}, into a long: the epoch day in the top 32 bits, then the
+     * period's ordinal in 4 bits and the channel id in the rest. Results with the same key are published as the same
+     * record.
+     */
+    public static long keyOf(int epochDay, Period period, int channelId) {
+        return keyOf(epochDay, period.ordinal(), channelId);
+    }
+
+    private static long keyOf(int epochDay, int periodOrdinal, int channelId) {
+        if ((channelId & ~CHANNEL_ID_MASK) != 0) {
+            throw new IllegalArgumentException("channel id " + channelId + " is too large to pack into a key");
+        }
+        return ((long) epochDay << 32) | ((long) periodOrdinal << CHANNEL_ID_BITS) | channelId;
+    }
+
+    public static int epochDayOf(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static Period periodOf(long key) {
+        return PERIODS[(int) ((key >>> CHANNEL_ID_BITS) & 0xf)];
+    }
+
+    public static int channelIdOf(long key) {
+        return (int) (key & CHANNEL_ID_MASK);
+    }
+
+    public static int toEpochDay(LocalDate date) {
+        return (int) (date.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() / MILLIS_PER_DAY);
+    }
+
+    /**
+     * @return the epoch day of the date in the default time zone, which is the same date as {@code new LocalDate(date)}
+     */
+    public static int toEpochDay(Date date) {
+        long millis = date.getTime();
+        long localMillis = millis + DateTimeZone.getDefault().getOffset(millis);
+        return (int) (localMillis >= 0 ? localMillis / MILLIS_PER_DAY : (localMillis - MILLIS_PER_DAY + 1) / MILLIS_PER_DAY);
+    }
+}
@@ -0,0 +1,21 @@
+package uk.gov.gds.performance.collector;
+
+import java.io.IOException;
+
+/**
+ * Receives stage results a batch at a time as they are read, so that a run never needs to hold the whole date range
+ * in memory. {@link #finish()} is called exactly once after the last batch has been accepted. The batch may be
+ * cleared and refilled once {@code accept} returns.
+ */
+public interface StageResultSink {
+    void accept(StageResultBatch batch) throws IOException;
+
+    void finish() throws IOException;
+
+    /**
+     * Releases anything the sink holds. It is called exactly once at the end of every run, after {@link #finish()}
+     * or, if the run failed, instead of it. A sink that decorates another closes that one too, even if closing itself
+     * fails.
+     */
+    void close();
+}
@@ -0,0 +1,9 @@
+package uk.gov.gds.performance.collector;
+
+/**
+ * Adds a step between reading stage results and publishing them, such as filtering or combining results. A new
+ * sink is decorated for every run, so implementations may keep per-run state in the sink they return.
+ */
+public interface StageResultSinkDecorator {
+    StageResultSink decorate(StageResultSink sink);
+}
@@ -1,20 +1,271 @@
 package uk.gov.gds.performance.collector;
 
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.joda.time.format.ISODateTimeFormat;
 
 import javax.json.Json;
 import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 
 public class StageResultToJsonConverter {
+    private static final byte[] ID_FIELD = ascii("{\"_id\":\"");
+    private static final byte[] TIMESTAMP_FIELD = ascii("\",\"_timestamp\":\"");
+    private static final byte[] PERIOD_FIELD = ascii("\",\"period\":\"");
+    private static final byte[] CHANNEL_FIELD = ascii("\",\"channel\":\"");
+    private static final byte[] COUNT_FIELD = ascii("\",\"count\":");
+    private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+    private static final int CACHE_SIZE = 256;
+
+    private final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
 
     public JsonObject convert(StageResult stageResult) {
         return Json.createObjectBuilder()
                 .add("_id", stageResult.get_id())
-                .add("_timestamp", stageResult.getTimestamp().toDateTimeAtStartOfDay().toString(ISODateTimeFormat.dateTimeNoMillis()))
+                .add("_timestamp", formatTimestamp(stageResult.getTimestamp()))
                 .add("period", stageResult.getPeriod().toString())
                 .add("channel", stageResult.getChannel().toLowerCase())
                 .add("count", stageResult.getCount())
                 .build();
     }
 
-}
\ No newline at end of file
+    /**
+     * Writes a row of the batch to the stream as UTF-8 JSON, exactly as {@link #convert(StageResult)} followed by a
+     * {@code JsonWriter} would, but without building a {@code JsonObject} or any intermediate strings for it.
+     */
+    public void write(StageResultBatch batch, int index, OutputStream out) throws IOException {
+        Encoder encoder = encoders.get();
+        encoder.checkTimeZone();
+        int day = encoder.cacheDay(batch.getEpochDay(index));
+        Period period = batch.getPeriod(index);
+        String channel = batch.getChannel(index);
+
+        Utf8Writer writer = encoder.writer;
+        writer.reset();
+        writer.append(ID_FIELD);
+        writer.appendAscii(StageResult.idOf(encoder.dates[day], period, channel));
+        writer.append(TIMESTAMP_FIELD);
+        writer.append(encoder.timestamps[day]);
+        writer.append(PERIOD_FIELD);
+        writer.appendAscii(period.name());
+        writer.append(CHANNEL_FIELD);
+        writer.append(encoder.channelBytes(channel));
+        writer.append(COUNT_FIELD);
+        writer.appendInt(batch.getCount(index));
+        writer.append((byte) '}');
+        writer.writeTo(out);
+    }
+
+    private static String formatTimestamp(LocalDate timestamp) {
+        return timestamp.toDateTimeAtStartOfDay().toString(ISODateTimeFormat.dateTimeNoMillis());
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] result = new byte[value.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) value.charAt(i);
+        }
+        return result;
+    }
+
+    /**
+     * One thread's buffer, along with small caches of the encoded fields that a run repeats over and over: there are
+     * only a handful of distinct dates and channels in a run. The caches are direct mapped, so they never hold more
+     * than {@value #CACHE_SIZE} entries each and a lookup allocates nothing. The timestamps depend on the default time
+     * zone, so they are forgotten if it changes.
+     */
+    private static final class Encoder {
+        private final Utf8Writer writer = new Utf8Writer();
+        private final Utf8Writer scratch = new Utf8Writer();
+        private DateTimeZone zone = DateTimeZone.getDefault();
+
+        private final int[] epochDays = new int[CACHE_SIZE];
+        private final LocalDate[] dates = new LocalDate[CACHE_SIZE];
+        private final byte[][] timestamps = new byte[CACHE_SIZE][];
+
+        private final String[] channels = new String[CACHE_SIZE];
+        private final byte[][] encodedChannels = new byte[CACHE_SIZE][];
+
+        void checkTimeZone() {
+            if (DateTimeZone.getDefault() != zone) {
+                zone = DateTimeZone.getDefault();
+                Arrays.fill(dates, null);
+                Arrays.fill(timestamps, null);
+            }
+        }
+
+        /**
+         * @return the slot holding the date and encoded timestamp of the epoch day
+         */
+        int cacheDay(int epochDay) {
+            int slot = epochDay & (CACHE_SIZE - 1);
+            if (dates[slot] == null || epochDays[slot] != epochDay) {
+                LocalDate date = new LocalDate(epochDay * 86400000L, DateTimeZone.UTC);
+                epochDays[slot] = epochDay;
+                dates[slot] = date;
+                timestamps[slot] = ascii(formatTimestamp(date));
+            }
+            return slot;
+        }
+
+        /**
+         * @return the channel lower cased, escaped and encoded as UTF-8
+         */
+        byte[] channelBytes(String channel) {
+            int slot = channel.hashCode() & (CACHE_SIZE - 1);
+            if (!channel.equals(channels[slot])) {
+                scratch.reset();
+                scratch.appendEscaped(channel.toLowerCase());
+                channels[slot] = channel;
+                encodedChannels[slot] = scratch.toByteArray();
+            }
+            return encodedChannels[slot];
+        }
+    }
+
+    /**
+     * A reusable buffer that a record is encoded into before being written to the stream in one go.
+     */
+    private static final class Utf8Writer {
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        void reset() {
+            length = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        void append(byte b) {
+            ensureCapacity(1);
+            bytes[length++] = b;
+        }
+
+        void append(byte[] ascii) {
+            ensureCapacity(ascii.length);
+            System.arraycopy(ascii, 0, bytes, length, ascii.length);
+            length += ascii.length;
+        }
+
+        void appendAscii(String value) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                bytes[length++] = (byte) value.charAt(i);
+            }
+        }
+
+        void appendInt(int value) {
+            if (value == Integer.MIN_VALUE) {
+                appendAscii(Integer.toString(value));
+                return;
+            }
+            ensureCapacity(11);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte digit = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = digit;
+            }
+        }
+
+        /**
+         * Escapes the characters that a JSON string cannot hold as they are, in the same way as the javax.json
+         * reference implementation: quotes, backslashes and control characters.
+         */
+        void appendEscaped(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                    append((byte) c);
+                } else if (c >= 0x80) {
+                    appendUtf8(value, i);
+                    if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        i++;
+                    }
+                } else {
+                    appendEscape(c);
+                }
+            }
+        }
+
+        private void appendEscape(char c) {
+            append((byte) '\\');
+            switch (c) {
+                case '"':
+                case '\\':
+                    append((byte) c);
+                    break;
+                case '\b':
+                    append((byte) 'b');
+                    break;
+                case '\f':
+                    append((byte) 'f');
+                    break;
+                case '\n':
+                    append((byte) 'n');
+                    break;
+                case '\r':
+                    append((byte) 'r');
+                    break;
+                case '\t':
+                    append((byte) 't');
+                    break;
+                default:
+                    append((byte) 'u');
+                    append((byte) '0');
+                    append((byte) '0');
+                    append(HEX_DIGITS[c >> 4]);
+                    append(HEX_DIGITS[c & 0xf]);
+            }
+        }
+
+        private void appendUtf8(String value, int index) {
+            int codePoint = value.codePointAt(index);
+            if (Character.isSurrogate(value.charAt(index)) && !Character.isSupplementaryCodePoint(codePoint)) {
+                //an unpaired surrogate cannot be encoded, so do what String.getBytes does
+                append((byte) '?');
+                return;
+            }
+            ensureCapacity(4);
+            if (codePoint < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (codePoint >> 6));
+            } else if (codePoint < 0x10000) {
+                bytes[length++] = (byte) (0xe0 | (codePoint >> 12));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            } else {
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            }
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+}
@@ -1,22 +1,401 @@
 package uk.gov.gds.performance.collector;
 
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StatsPublisher {
     private final WebTarget target;
     private StageResultToJsonConverter converter;
+    private final int maxRecordsPerRequest;
+    private final int maxBytesPerRequest;
+    private final int maxRequestsInFlight;
+    private final int serializerThreads;
+    private final int queueCapacity;
+    private final RunMetrics metrics;
+    private final OpsLogger<CollectorLogMessage> logger;
+
+    public StatsPublisher(WebTarget target, StageResultToJsonConverter converter, OpsLogger<CollectorLogMessage> logger) {
+        this(target, converter, 1, Integer.MAX_VALUE, 1, logger);
+    }
 
-    public StatsPublisher(WebTarget target, StageResultToJsonConverter converter) {
+    /**
+     * @param maxRecordsPerRequest when greater than 1, results are sent as JSON arrays of up to this many records
+     *                             instead of one POST per record
+     * @param maxBytesPerRequest   the largest request body a batch may grow to, although a single record that is
+     *                             bigger than this is still sent on its own
+     * @param maxRequestsInFlight  when greater than 1, requests are sent asynchronously and accepting more results
+     *                             blocks while this many requests are still waiting for a response
+     */
+    public StatsPublisher(WebTarget target, StageResultToJsonConverter converter, int maxRecordsPerRequest, int maxBytesPerRequest, int maxRequestsInFlight, OpsLogger<CollectorLogMessage> logger) {
+        this(target, converter, maxRecordsPerRequest, maxBytesPerRequest, maxRequestsInFlight, 0, 0, logger);
+    }
+
+    /**
+     * @param serializerThreads when greater than 0, sessions are run as a {@link PipelinedSession}: this many threads
+     *                          turn results into request bodies and {@code maxRequestsInFlight} threads send them,
+     *                          while the caller carries on reading
+     * @param queueCapacity     how many batches of results, and how many request bodies, may wait between the stages
+     *                          of a pipelined session
+     */
+    public StatsPublisher(WebTarget target, StageResultToJsonConverter converter, int maxRecordsPerRequest, int maxBytesPerRequest, int maxRequestsInFlight, int serializerThreads, int queueCapacity, OpsLogger<CollectorLogMessage> logger) {
+        this(target, converter, maxRecordsPerRequest, maxBytesPerRequest, maxRequestsInFlight, serializerThreads, queueCapacity, new RunMetrics(), logger);
+    }
+
+    /**
+     * @param metrics told how long serializing and each request take, and how many bytes were sent
+     */
+    public StatsPublisher(WebTarget target, StageResultToJsonConverter converter, int maxRecordsPerRequest, int maxBytesPerRequest, int maxRequestsInFlight, int serializerThreads, int queueCapacity, RunMetrics metrics, OpsLogger<CollectorLogMessage> logger) {
         this.target = target;
         this.converter = converter;
+        this.maxRecordsPerRequest = maxRecordsPerRequest;
+        this.maxBytesPerRequest = maxBytesPerRequest;
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        this.serializerThreads = serializerThreads;
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+        this.logger = logger;
     }
 
     public void publish(List<StageResult> results) throws IOException {
-        for (StageResult result : results) {
-            target.request().buildPost(Entity.json(converter.convert(result))).invoke(String.class);
+        Session session = openSession();
+        try {
+            if (!results.isEmpty()) {
+                session.accept(StageResultBatch.of(results));
+            }
+            session.finish();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Opens a session that publishes results as they are accepted, for use when the results are being streamed
+     * from the database. In batch mode the last partial batch is only sent when the session is finished, and in
+     * concurrent mode finishing the session waits for every outstanding request to complete. The session must be
+     * closed once it is no longer needed, whether or not it was finished.
+     */
+    public Session openSession() {
+        if (serializerThreads > 0) {
+            return new PipelinedSession(this, serializerThreads, Math.max(1, maxRequestsInFlight), Math.max(1, queueCapacity), logger);
+        }
+        return new DirectSession();
+    }
+
+    private boolean isBatching() {
+        return maxRecordsPerRequest > 1;
+    }
+
+    private boolean isConcurrent() {
+        return maxRequestsInFlight > 1;
+    }
+
+    public interface Session extends StageResultSink {
+        int getPublishedCount();
+
+        /**
+         * Releases anything the session holds. If the session has not been finished, results that have not yet been
+         * sent are abandoned.
+         */
+        void close();
+    }
+
+    /**
+     * Receives request bodies from a {@link RequestBodyBuilder}.
+     */
+    interface RequestBodyConsumer {
+        void accept(RequestBody body) throws IOException;
+    }
+
+    /**
+     * A request body: the first {@code length} bytes of an array that nothing else writes to once the body has been
+     * built. It is posted as it is, without being copied into an array of its own.
+     */
+    static final class RequestBody implements StreamingOutput {
+        private final byte[] bytes;
+        private final int length;
+        private final int records;
+
+        RequestBody(byte[] bytes, int length, int records) {
+            this.bytes = bytes;
+            this.length = length;
+            this.records = records;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getRecords() {
+            return records;
+        }
+
+        @Override
+        public void write(OutputStream output) throws IOException {
+            output.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Turns results into request bodies: a JSON object per record, or JSON arrays that respect the batch limits.
+     * Records are written straight into the body being built. The body's array is handed over with it, and the next
+     * body starts in an array as big as the last one, so it seldom has to grow. Not thread-safe.
+     */
+    class RequestBodyBuilder {
+        private BodyBuffer body = new BodyBuffer(256);
+        private int recordsInBody = 0;
+        private final RequestBodyConsumer consumer;
+
+        RequestBodyBuilder(RequestBodyConsumer consumer) {
+            this.consumer = consumer;
+        }
+
+        void add(StageResultBatch results) throws IOException {
+            long start = System.nanoTime();
+            long waiting = 0;
+            for (int i = 0; i < results.size(); i++) {
+                waiting += isBatching() ? addToBatch(results, i) : addOnItsOwn(results, i);
+            }
+            //time spent by the consumer, such as sending a request, is not time spent serializing
+            metrics.getSerializationTime().observeNanos(System.nanoTime() - start - waiting);
+        }
+
+        /**
+         * @return how long the consumer took over the request body, in nanoseconds
+         */
+        private long addOnItsOwn(StageResultBatch results, int index) throws IOException {
+            converter.write(results, index, body);
+            recordsInBody = 1;
+            return handOver();
+        }
+
+        /**
+         * @return how long the consumer took over any request body it was handed, in nanoseconds
+         */
+        private long addToBatch(StageResultBatch results, int index) throws IOException {
+            long waiting = 0;
+            if (recordsInBody == maxRecordsPerRequest) {
+                waiting = flush();
+            }
+            int start = body.size();
+            body.write(recordsInBody == 0 ? '[' : ',');
+            converter.write(results, index, body);
+            if (recordsInBody > 0 && body.size() + 1 > maxBytesPerRequest) {
+                //send the batch without this record, which starts the next one instead
+                BodyBuffer full = body;
+                int end = full.size();
+                full.truncate(start);
+                waiting += flush();
+                body.write('[');
+                body.write(full.array(), start + 1, end - start - 1);
+            }
+            recordsInBody++;
+            return waiting;
+        }
+
+        /**
+         * Hands over the last partial batch, if there is one.
+         *
+         * @return how long the consumer took over it, in nanoseconds
+         */
+        long flush() throws IOException {
+            if (recordsInBody == 0) {
+                return 0;
+            }
+            body.write(']');
+            return handOver();
+        }
+
+        private long handOver() throws IOException {
+            RequestBody result = new RequestBody(body.array(), body.size(), recordsInBody);
+            body = new BodyBuffer(Math.max(256, body.size()));
+            recordsInBody = 0;
+            long start = System.nanoTime();
+            consumer.accept(result);
+            return System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * A {@code ByteArrayOutputStream} that lets its array be handed over without a copy.
+     */
+    private static final class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Drops everything after the first {@code length} bytes, which stay in the array until they are written over.
+         */
+        void truncate(int length) {
+            count = length;
+        }
+    }
+
+    /**
+     * Sends a request body and waits for the response, logging the outcome.
+     *
+     * @throws ApplicationException when the request fails, which has already been logged
+     */
+    void sendAndWait(RequestBody body) {
+        long start = System.nanoTime();
+        try {
+            target.request().buildPost(Entity.entity(body, MediaType.APPLICATION_JSON_TYPE)).invoke(String.class);
+        } catch (WebApplicationException | ProcessingException e) {
+            metrics.getPublishTime().observeSince(start);
+            logger.log(CollectorLogMessage.BatchPublishFailed, e, body.getRecords(), body.getLength());
+            throw new ApplicationException();
+        }
+        logRequestCompleted(body.getRecords(), body.getLength(), start);
+    }
+
+    private void logRequestCompleted(int records, int bytes, long start) {
+        metrics.getPublishTime().observeSince(start);
+        metrics.getBytesSent().add(bytes);
+        if (isBatching()) {
+            logger.log(CollectorLogMessage.BatchPublished, records, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Serializes and sends results on the thread that accepts them, although in concurrent mode the responses are
+     * waited for in the background.
+     */
+    private class DirectSession implements Session, RequestBodyConsumer {
+        private final RequestBodyBuilder bodies = new RequestBodyBuilder(this);
+        private final AtomicInteger publishedCount = new AtomicInteger();
+        private final Semaphore requestsInFlight = new Semaphore(maxRequestsInFlight);
+        private int requestsSent = 0;
+        private final AtomicInteger requestsFailed = new AtomicInteger();
+
+        @Override
+        public void accept(StageResultBatch results) throws IOException {
+            bodies.add(results);
+        }
+
+        @Override
+        public void accept(RequestBody body) throws IOException {
+            if (!isBatching() && !isConcurrent()) {
+                long start = System.nanoTime();
+                try {
+                    target.request().buildPost(Entity.entity(body, MediaType.APPLICATION_JSON_TYPE)).invoke(String.class);
+                } finally {
+                    metrics.getPublishTime().observeSince(start);
+                }
+                metrics.getBytesSent().add(body.getLength());
+                publishedCount.incrementAndGet();
+                return;
+            }
+            send(body);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            bodies.flush();
+            if (isConcurrent()) {
+                awaitOutstandingRequests();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        public int getPublishedCount() {
+            return publishedCount.get();
+        }
+
+        private void send(RequestBody body) throws IOException {
+            if (!isConcurrent()) {
+                sendAndWait(body);
+                publishedCount.addAndGet(body.getRecords());
+                return;
+            }
+
+            if (requestsFailed.get() > 0) {
+                //stop sending as soon as anything has gone wrong; finishing reports every failure so far
+                awaitOutstandingRequests();
+            }
+            acquireRequestSlot();
+            requestsSent++;
+            target.request().async().post(Entity.entity(body, MediaType.APPLICATION_JSON_TYPE), new PublishCallback(body.getRecords(), body.getLength()));
+        }
+
+        private void requestCompleted(int records, int bytes, long start) {
+            logRequestCompleted(records, bytes, start);
+            publishedCount.addAndGet(records);
+        }
+
+        private void acquireRequestSlot() throws InterruptedIOException {
+            try {
+                requestsInFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting to publish to the performance platform");
+            }
+        }
+
+        private void awaitOutstandingRequests() throws InterruptedIOException {
+            try {
+                requestsInFlight.acquire(maxRequestsInFlight);
+                requestsInFlight.release(maxRequestsInFlight);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for requests to the performance platform to complete");
+            }
+            if (requestsFailed.get() > 0) {
+                logger.log(CollectorLogMessage.PublishRequestsFailed, requestsFailed.get(), requestsSent);
+                throw new ApplicationException();
+            }
+        }
+
+        private class PublishCallback implements InvocationCallback<String> {
+            private final int records;
+            private final int bytes;
+            private final long start = System.nanoTime();
+
+            private PublishCallback(int records, int bytes) {
+                this.records = records;
+                this.bytes = bytes;
+            }
+
+            @Override
+            public void completed(String response) {
+                try {
+                    requestCompleted(records, bytes, start);
+                } finally {
+                    requestsInFlight.release();
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                try {
+                    metrics.getPublishTime().observeSince(start);
+                    requestsFailed.incrementAndGet();
+                    logger.log(CollectorLogMessage.BatchPublishFailed, throwable, records, bytes);
+                } finally {
+                    requestsInFlight.release();
+                }
+            }
         }
     }
 }
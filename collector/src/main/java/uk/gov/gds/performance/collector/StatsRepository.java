@@ -2,45 +2,154 @@ package uk.gov.gds.performance.collector;
 
 import org.joda.time.LocalDate;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 
-public class StatsRepository {
-    private final Connection conn;
+public class StatsRepository implements StatsSource {
+    public static final int DEFAULT_FETCH_SIZE = 500;
 
-    public StatsRepository(Connection conn) {
-        this.conn = conn;
+    private final DataSource dataSource;
+    private final int fetchSize;
+    private final boolean aggregate;
+    private final IncrementalCollection incremental;
+    private final RunMetrics metrics;
+    private final ChannelDictionary channels = new ChannelDictionary();
+
+    public StatsRepository(DataSource dataSource) {
+        this(dataSource, DEFAULT_FETCH_SIZE, false);
+    }
+
+    public StatsRepository(DataSource dataSource, int fetchSize) {
+        this(dataSource, fetchSize, false);
+    }
+
+    /**
+     * @param aggregate when true, rows that share an event time, period and channel are summed by the database so
+     *                  that a single result with the true total is returned for each of them
+     */
+    public StatsRepository(DataSource dataSource, int fetchSize, boolean aggregate) {
+        this(dataSource, fetchSize, aggregate, null);
+    }
+
+    /**
+     * @param incremental when not null, only rows beyond its committed high water mark are read, and the mark of every
+     *                    row read is reported to it. When aggregating, a total is read again in full if any of the
+     *                    rows that make it up have changed.
+     */
+    public StatsRepository(DataSource dataSource, int fetchSize, boolean aggregate, IncrementalCollection incremental) {
+        this(dataSource, fetchSize, aggregate, incremental, new RunMetrics());
+    }
+
+    /**
+     * @param metrics told how long each query takes to start returning rows
+     */
+    public StatsRepository(DataSource dataSource, int fetchSize, boolean aggregate, IncrementalCollection incremental, RunMetrics metrics) {
+        this.dataSource = dataSource;
+        this.fetchSize = fetchSize;
+        this.aggregate = aggregate;
+        this.incremental = incremental;
+        this.metrics = metrics;
     }
 
     public List<StageResult> findStatsBetween(LocalDateRange localDateRange) throws SQLException {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "select EVENT_TIME, PERIOD, CHANNEL, EVENT_COUNT " +
-                "from PP_DATA " +
-                "where EVENT_TIME between ? and ?")) {
+        final List<StageResult> results = new ArrayList<>();
+        try {
+            streamStatsBetween(localDateRange, new StageResultSink() {
+                @Override
+                public void accept(StageResultBatch batch) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        results.add(batch.get(i));
+                    }
+                }
+
+                @Override
+                public void finish() {}
+
+                @Override
+                public void close() {}
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("an in-memory sink cannot fail", e);
+        }
+        return results;
+    }
+
+    /**
+     * Reads the stats in the given date range and hands them to the sink a batch at a time as they are read, rather
+     * than building a list of them first. Each batch holds up to a fetch size's worth of rows. The sink is not finished
+     * by this method; that is the caller's responsibility. Each call uses its own connection from the data source, so
+     * calls may safely be made concurrently.
+     *
+     * @return the number of rows read
+     */
+    @Override
+    public int streamStatsBetween(LocalDateRange localDateRange, StageResultSink sink) throws SQLException, IOException {
+        HighWaterMark since = incremental != null ? incremental.getCommittedMark() : null;
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(buildQuery(since))) {
+            stmt.setFetchSize(fetchSize);
             stmt.setDate(1, toSqlDate(localDateRange.getStartDate()));
             stmt.setDate(2, toSqlDate(localDateRange.getEndDate()));
+            if (since != null) {
+                since.bind(stmt, 3);
+            }
+            long queryStart = System.nanoTime();
             ResultSet resultSet = stmt.executeQuery();
+            metrics.getQueryTime().observeSince(queryStart);
 
-            return convertResultSetToStageResults(resultSet);
+            return streamResultSetToSink(resultSet, sink);
         }
     }
 
-    private List<StageResult> convertResultSetToStageResults(ResultSet resultSet) throws SQLException {
-        List<StageResult> results = new ArrayList<>();
-        while (resultSet.next()) {
-            results.add(convertSingleRowToStageResult(resultSet));
+    private String buildQuery(HighWaterMark since) {
+        StringBuilder sql = new StringBuilder("select EVENT_TIME, PERIOD, CHANNEL, ");
+        sql.append(aggregate ? "sum(EVENT_COUNT) as EVENT_COUNT" : "EVENT_COUNT");
+        String markColumn = null;
+        if (incremental != null) {
+            markColumn = aggregate ? "max(" + incremental.getColumn() + ")" : incremental.getColumn();
+            sql.append(", ").append(markColumn).append(" as HIGH_WATER_MARK");
         }
-        return results;
+        sql.append(" from PP_DATA where EVENT_TIME between ? and ?");
+        if (aggregate) {
+            sql.append(" group by EVENT_TIME, PERIOD, CHANNEL");
+        }
+        if (since != null) {
+            sql.append(aggregate ? " having " : " and ").append(markColumn).append(" > ?");
+        }
+        return sql.toString();
     }
 
-    private StageResult convertSingleRowToStageResult(ResultSet resultSet) throws SQLException {
-        return new StageResult(
-                new LocalDate(resultSet.getDate("EVENT_TIME")),
-                Period.valueOf(resultSet.getString("PERIOD")),
-                resultSet.getString("CHANNEL"),
-                resultSet.getInt("EVENT_COUNT")
-        );
+    private int streamResultSetToSink(ResultSet resultSet, StageResultSink sink) throws SQLException, IOException {
+        StageResultBatch batch = new StageResultBatch(channels, Math.max(1, fetchSize));
+        int rowsRead = 0;
+        while (resultSet.next()) {
+            if (Thread.interrupted()) {
+                //the driver does not notice interrupts, so check for them here
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted reading from the database");
+            }
+            batch.add(
+                    StageResultBatch.toEpochDay(resultSet.getDate("EVENT_TIME")),
+                    Period.valueOf(resultSet.getString("PERIOD")),
+                    channels.idOf(resultSet.getString("CHANNEL")),
+                    resultSet.getInt("EVENT_COUNT"));
+            if (incremental != null) {
+                incremental.observe(HighWaterMark.fromColumnValue(resultSet.getObject("HIGH_WATER_MARK")));
+            }
+            rowsRead++;
+            if (batch.isFull()) {
+                sink.accept(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            sink.accept(batch);
+        }
+        return rowsRead;
     }
 
     private Date toSqlDate(LocalDate startDate) {
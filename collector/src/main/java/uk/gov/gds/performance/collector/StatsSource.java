@@ -0,0 +1,15 @@
+package uk.gov.gds.performance.collector;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Somewhere stage results can be read from. Implementations hand each result to the sink as it is read and leave
+ * finishing the sink to the caller.
+ */
+public interface StatsSource {
+    /**
+     * @return the number of rows read
+     */
+    int streamStatsBetween(LocalDateRange localDateRange, StageResultSink sink) throws SQLException, IOException;
+}
@@ -0,0 +1,124 @@
+package uk.gov.gds.performance.collector.logging;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link LogMessage} pattern parsed once, so that messages can be formatted straight into a buffer without a
+ * {@link java.util.Formatter}. Only the conversions the log messages use are understood: {@code %s}, {@code %d},
+ * {@code %n} and {@code %%}, with no flags, widths or argument indexes. {@link #appendTo(StringBuilder, Object[])}
+ * refuses anything that a {@code Formatter} would format differently, so the caller can fall back to one.
+ */
+final class LogMessageFormat {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final String[] literals;
+    private final char[] conversions;
+    private final boolean simple;
+
+    private LogMessageFormat(String[] literals, char[] conversions, boolean simple) {
+        this.literals = literals;
+        this.conversions = conversions;
+        this.simple = simple;
+    }
+
+    static LogMessageFormat parse(String pattern) {
+        List<String> literals = new ArrayList<>();
+        StringBuilder conversions = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            char conversion = i + 1 < pattern.length() ? pattern.charAt(++i) : 0;
+            if (conversion == '%') {
+                literal.append('%');
+            } else if (conversion == 'n') {
+                literal.append(LINE_SEPARATOR);
+            } else if (conversion == 's' || conversion == 'd') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                conversions.append(conversion);
+            } else {
+                return new LogMessageFormat(null, null, false);
+            }
+        }
+        literals.add(literal.toString());
+        return new LogMessageFormat(literals.toArray(new String[literals.size()]), conversions.toString().toCharArray(), true);
+    }
+
+    /**
+     * @return true if every conversion in the pattern is one that can be formatted without a {@code Formatter}
+     */
+    boolean isSimple() {
+        return simple;
+    }
+
+    /**
+     * Appends the formatted message to the buffer, if the pattern and arguments allow it.
+     *
+     * @return false, having appended nothing, when a {@code Formatter} is needed: because the pattern uses a
+     * conversion that is not understood here, there are too few arguments, an argument cannot be converted as
+     * {@code %d} or is {@link Formattable}, or the default locale does not write numbers with ASCII digits
+     */
+    boolean appendTo(StringBuilder out, Object[] args) {
+        if (!simple || !canFormat(args)) {
+            return false;
+        }
+        for (int i = 0; i < conversions.length; i++) {
+            out.append(literals[i]);
+            Object arg = args[i];
+            if (arg == null) {
+                out.append("null");
+            } else if (conversions[i] == 's') {
+                if (arg instanceof String) {
+                    out.append((String) arg);
+                } else {
+                    out.append(arg.toString());
+                }
+            } else if (arg instanceof Long) {
+                out.append(((Long) arg).longValue());
+            } else {
+                out.append(((Number) arg).intValue());
+            }
+        }
+        out.append(literals[conversions.length]);
+        return true;
+    }
+
+    private boolean canFormat(Object[] args) {
+        if (conversions.length == 0) {
+            return true;
+        }
+        if (args == null || args.length < conversions.length) {
+            return false;
+        }
+        for (int i = 0; i < conversions.length; i++) {
+            Object arg = args[i];
+            if (arg instanceof Formattable) {
+                return false;
+            }
+            if (conversions[i] == 'd' && arg != null) {
+                if (!(arg instanceof Integer || arg instanceof Long || arg instanceof Short || arg instanceof Byte)) {
+                    return false;
+                }
+                if (!AsciiDigits.DEFAULT_LOCALE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a {@code Formatter} in the default locale writes %d with ASCII digits. Worked out when first needed.
+     */
+    private static final class AsciiDigits {
+        private static final boolean DEFAULT_LOCALE = DecimalFormatSymbols.getInstance(Locale.getDefault(Locale.Category.FORMAT)).getZeroDigit() == '0';
+    }
+}
@@ -1,36 +1,313 @@
 package uk.gov.gds.performance.collector.logging;
 
+import org.joda.time.DateTimeUtils;
 import org.joda.time.Instant;
 
 import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Formatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes coded, timestamped log messages. Each message is formatted into a buffer that the logging thread keeps for
+ * the next one, using its pattern parsed once per logger and a timestamp that is only rendered again once the clock
+ * has moved on, so logging allocates next to nothing. Messages are written by the thread that logs them until
+ * {@link #startAsync(int, OverflowPolicy)} is called, after which they are formatted by that thread but handed to
+ * a single writer thread through a bounded buffer, and written out in batches. {@link #close()} waits for every
+ * message in the buffer to be written and goes back to writing on the logging thread.
+ */
+public class OpsLogger <T extends Enum<T> & LogMessage> implements AutoCloseable {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
-public class OpsLogger <T extends Enum<T> & LogMessage> {
     private final PrintStream output;
+    private volatile AsyncWriter asyncWriter;
+    private T droppedMessage;
+    private volatile LogMessageFormat[] formats;
+    private final ThreadLocal<ThreadBuffer> threadBuffers = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            return new ThreadBuffer();
+        }
+    };
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * What to do with a message when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** wait for the writer thread to make room */
+        BLOCK,
+        /** throw the message away and count it */
+        DROP
+    }
 
     public OpsLogger(PrintStream output) {
         this.output = output;
     }
 
     public void log(T message, Object... details) {
-        StringBuilder result = buildBasicLogMessage(message, details);
-        output.println(result);
+        ThreadBuffer buffer = threadBuffers.get().acquire();
+        try {
+            StringBuilder result = buildBasicLogMessage(buffer, message, details);
+            result.append(LINE_SEPARATOR);
+            write(buffer);
+        } finally {
+            buffer.release();
+        }
     }
 
     public void log(T message, Throwable cause, Object... details) {
-        StringBuilder result = buildBasicLogMessage(message, details);
-        result.append(" "); //the gap between the basic message and the stack trace
-        output.print(result);
-        cause.printStackTrace(output);
+        ThreadBuffer buffer = threadBuffers.get().acquire();
+        try {
+            StringBuilder result = buildBasicLogMessage(buffer, message, details);
+            result.append(" "); //the gap between the basic message and the stack trace
+            StringWriter stackTrace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(stackTrace));
+            result.append(stackTrace.getBuffer());
+            write(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Hands messages to a writer thread from now on.
+     *
+     * @param bufferSize how many messages may wait to be written
+     */
+    public void startAsync(int bufferSize, OverflowPolicy overflowPolicy) {
+        startAsync(bufferSize, overflowPolicy, null);
+    }
+
+    /**
+     * @param droppedMessage when not null, logged by {@link #close()} with the number of messages thrown away because
+     *                       the buffer was full, if there were any
+     */
+    public synchronized void startAsync(int bufferSize, OverflowPolicy overflowPolicy, T droppedMessage) {
+        if (asyncWriter != null) {
+            throw new IllegalStateException("already logging asynchronously");
+        }
+        this.droppedMessage = droppedMessage;
+        asyncWriter = new AsyncWriter(bufferSize, overflowPolicy);
+        asyncWriter.start();
+    }
+
+    /**
+     * @return the number of messages thrown away because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Writes every message still in the buffer and stops the writer thread, then logs how many messages were thrown
+     * away if it was asked to. Messages logged afterwards are written by the thread that logs them. Does nothing if
+     * the logger is not asynchronous.
+     */
+    @Override
+    public synchronized void close() {
+        AsyncWriter writer = asyncWriter;
+        if (writer == null) {
+            return;
+        }
+        asyncWriter = null;
+        writer.stop();
+        if (droppedMessage != null && droppedCount.get() > 0) {
+            log(droppedMessage, droppedCount.get());
+        }
     }
 
-    private StringBuilder buildBasicLogMessage(T message, Object[] details) {
-        Instant timestamp = new Instant();
-        StringBuilder result = new StringBuilder(timestamp.toString());
+    private StringBuilder buildBasicLogMessage(ThreadBuffer buffer, T message, Object[] details) {
+        StringBuilder result = buffer.text;
+        buffer.appendTimestamp(DateTimeUtils.currentTimeMillis());
         result.append(" ");
         result.append(message.getMessageCode());
         result.append(": ");
-        new Formatter(result).format(message.getMessagePattern(), details);
+        if (!formatOf(message).appendTo(result, details)) {
+            new Formatter(result).format(message.getMessagePattern(), details);
+        }
         return result;
     }
-}
\ No newline at end of file
+
+    private LogMessageFormat formatOf(T message) {
+        LogMessageFormat[] result = formats;
+        if (result == null) {
+            T[] constants = message.getDeclaringClass().getEnumConstants();
+            result = new LogMessageFormat[constants.length];
+            for (T constant : constants) {
+                result[constant.ordinal()] = LogMessageFormat.parse(constant.getMessagePattern());
+            }
+            formats = result;
+        }
+        return result[message.ordinal()];
+    }
+
+    private void write(ThreadBuffer buffer) {
+        AsyncWriter writer = asyncWriter;
+        if (writer == null || !writer.enqueue(buffer.text.toString())) {
+            buffer.writeTo(output);
+        }
+    }
+
+    /**
+     * What a thread formats its messages in, kept from one message to the next: the text, the timestamp of the last
+     * millisecond it logged in, and the bytes the text is encoded to. Messages are encoded in the default charset, as
+     * a {@code PrintStream} does unless it is told otherwise.
+     */
+    private static final class ThreadBuffer {
+        private final StringBuilder text = new StringBuilder(256);
+        private long timestampMillis = Long.MIN_VALUE;
+        private final StringBuilder timestamp = new StringBuilder(32);
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(256);
+        private ByteBuffer bytes = ByteBuffer.allocate(256);
+        private boolean inUse = false;
+
+        /**
+         * @return this buffer, or a new one if this thread is already formatting a message, as it would be if an
+         * argument's {@code toString} logged something
+         */
+        ThreadBuffer acquire() {
+            ThreadBuffer result = inUse ? new ThreadBuffer() : this;
+            result.inUse = true;
+            result.text.setLength(0);
+            return result;
+        }
+
+        void release() {
+            inUse = false;
+        }
+
+        void appendTimestamp(long millis) {
+            if (millis != timestampMillis) {
+                timestamp.setLength(0);
+                timestamp.append(new Instant(millis));
+                timestampMillis = millis;
+            }
+            text.append(timestamp);
+        }
+
+        void writeTo(PrintStream output) {
+            int length = text.length();
+            if (chars.capacity() < length) {
+                chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+            }
+            int maxBytes = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < maxBytes) {
+                bytes = ByteBuffer.allocate(Math.max(maxBytes, bytes.capacity() * 2));
+            }
+
+            chars.clear();
+            text.getChars(0, length, chars.array(), 0);
+            chars.limit(length);
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(chars, bytes, true);
+            encoder.flush(bytes);
+            output.write(bytes.array(), 0, bytes.position());
+        }
+    }
+
+    private class AsyncWriter implements Runnable {
+        private static final long POLL_MILLIS = 100;
+
+        private final BlockingQueue<String> buffer;
+        private final int batchSize;
+        private final OverflowPolicy overflowPolicy;
+        private final Thread thread = new Thread(this, "ops-logger");
+        private volatile boolean stopping = false;
+
+        AsyncWriter(int bufferSize, OverflowPolicy overflowPolicy) {
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+            this.batchSize = bufferSize;
+            this.overflowPolicy = overflowPolicy;
+            thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * @return false if the caller should write the entry itself
+         */
+        boolean enqueue(String entry) {
+            if (stopping) {
+                return false;
+            }
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                if (!buffer.offer(entry)) {
+                    droppedCount.incrementAndGet();
+                    return true;
+                }
+            } else {
+                try {
+                    buffer.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            //if the writer stopped before taking it, it never will
+            return !(stopping && buffer.remove(entry));
+        }
+
+        void stop() {
+            stopping = true;
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<String> batch = new ArrayList<>(batchSize);
+            StringBuilder text = new StringBuilder();
+            while (true) {
+                String first;
+                try {
+                    first = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    first = null;
+                }
+                if (first == null) {
+                    if (stopping && buffer.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+
+                batch.add(first);
+                buffer.drainTo(batch, batchSize - 1);
+                for (String entry : batch) {
+                    text.append(entry);
+                }
+                output.print(text);
+                output.flush();
+                batch.clear();
+                text.setLength(0);
+            }
+        }
+    }
+}
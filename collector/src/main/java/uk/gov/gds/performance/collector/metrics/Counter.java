@@ -0,0 +1,38 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up. Safe to use from several threads at once.
+ */
+public class Counter extends Metric {
+    private final AtomicLong value = new AtomicLong();
+
+    Counter(String name, String help) {
+        super(name, help);
+    }
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    String getType() {
+        return "counter";
+    }
+
+    @Override
+    void writeSamples(Writer out) throws IOException {
+        out.write(getName() + " " + get() + "\n");
+    }
+}
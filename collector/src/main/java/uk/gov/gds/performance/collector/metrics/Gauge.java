@@ -0,0 +1,38 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+
+/**
+ * A value that is set rather than counted.
+ */
+public class Gauge extends Metric {
+    private volatile BigDecimal value = BigDecimal.ZERO;
+
+    Gauge(String name, String help) {
+        super(name, help);
+    }
+
+    public void set(long value) {
+        this.value = BigDecimal.valueOf(value);
+    }
+
+    public void setSeconds(long millis) {
+        this.value = BigDecimal.valueOf(millis, 3);
+    }
+
+    public BigDecimal get() {
+        return value;
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(Writer out) throws IOException {
+        out.write(getName() + " " + MetricsRegistry.format(value) + "\n");
+    }
+}
@@ -0,0 +1,84 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how many times took up to each of a fixed set of bounds, along with how many times were observed and their
+ * total. Safe to use from several threads at once.
+ */
+public class Histogram extends Metric {
+    private final long[] boundsNanos;
+    private final BigDecimal[] boundsSeconds;
+    private final AtomicLongArray bucketCounts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    Histogram(String name, String help, double... boundsSeconds) {
+        super(name, help);
+        this.boundsNanos = new long[boundsSeconds.length];
+        this.boundsSeconds = new BigDecimal[boundsSeconds.length];
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            if (i > 0 && boundsSeconds[i] <= boundsSeconds[i - 1]) {
+                throw new IllegalArgumentException("bucket bounds must be in increasing order");
+            }
+            this.boundsSeconds[i] = BigDecimal.valueOf(boundsSeconds[i]);
+            this.boundsNanos[i] = this.boundsSeconds[i].movePointRight(9).longValue();
+        }
+        this.bucketCounts = new AtomicLongArray(boundsSeconds.length);
+    }
+
+    public void observeNanos(long nanos) {
+        for (int i = 0; i < boundsNanos.length; i++) {
+            if (nanos <= boundsNanos[i]) {
+                bucketCounts.incrementAndGet(i);
+                break;
+            }
+        }
+        sumNanos.addAndGet(nanos);
+        count.incrementAndGet();
+    }
+
+    /**
+     * Observes the time since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void observeSince(long startNanos) {
+        observeNanos(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    public long getSumMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(sumNanos.get());
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(Writer out) throws IOException {
+        //read the total first, so that the buckets never add up to more than it
+        long total = count.get();
+        long sum = sumNanos.get();
+        long cumulative = 0;
+        for (int i = 0; i < boundsSeconds.length; i++) {
+            cumulative += bucketCounts.get(i);
+            out.write(getName() + "_bucket{le=\"" + MetricsRegistry.format(boundsSeconds[i]) + "\"} " + Math.min(cumulative, total) + "\n");
+        }
+        out.write(getName() + "_bucket{le=\"+Inf\"} " + total + "\n");
+        out.write(getName() + "_sum " + MetricsRegistry.format(BigDecimal.valueOf(sum, 9)) + "\n");
+        out.write(getName() + "_count " + total + "\n");
+    }
+}
@@ -0,0 +1,32 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A named value held by a {@link MetricsRegistry}.
+ */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+
+    Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    abstract String getType();
+
+    /**
+     * Writes the samples of this metric, without its HELP and TYPE lines, in the Prometheus text format.
+     */
+    abstract void writeSamples(Writer out) throws IOException;
+}
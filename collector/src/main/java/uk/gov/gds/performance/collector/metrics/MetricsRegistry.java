@@ -0,0 +1,73 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Holds a process's metrics and writes them in the Prometheus text format. Counters and histograms only ever go
+ * up for as long as the process runs, as Prometheus expects.
+ */
+public class MetricsRegistry {
+    private static final Pattern METRIC_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    private final List<Metric> metrics = new ArrayList<>();
+
+    public synchronized Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public synchronized Gauge gauge(String name, String help) {
+        return register(new Gauge(name, help));
+    }
+
+    /**
+     * @param boundsSeconds the upper bounds of the buckets, in increasing order; a bucket for everything larger is
+     *                      always added
+     */
+    public synchronized Histogram histogram(String name, String help, double... boundsSeconds) {
+        return register(new Histogram(name, help, boundsSeconds));
+    }
+
+    private <M extends Metric> M register(M metric) {
+        if (!METRIC_NAME.matcher(metric.getName()).matches()) {
+            throw new IllegalArgumentException("Invalid metric name " + metric.getName());
+        }
+        for (Metric existing : metrics) {
+            if (existing.getName().equals(metric.getName())) {
+                throw new IllegalArgumentException("A metric called " + metric.getName() + " is already registered");
+            }
+        }
+        metrics.add(metric);
+        return metric;
+    }
+
+    public synchronized void writeTo(Writer out) throws IOException {
+        for (Metric metric : metrics) {
+            out.write("# HELP " + metric.getName() + " " + metric.getHelp().replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            out.write("# TYPE " + metric.getName() + " " + metric.getType() + "\n");
+            metric.writeSamples(out);
+        }
+    }
+
+    /**
+     * Replaces the file with the current metrics in one step, so that a reader such as node_exporter's textfile
+     * collector never sees it half written.
+     */
+    public void writeTextFile(File file) throws IOException {
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            writeTo(out);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String format(BigDecimal value) {
+        return value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+    }
+}
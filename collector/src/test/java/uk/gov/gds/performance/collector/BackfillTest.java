@@ -0,0 +1,121 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
+
+public class BackfillTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
+
+    private final Collector collector = mock(Collector.class);
+    private final RunMetrics metrics = new RunMetrics();
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
+
+    @Test
+    public void run_shouldCollectTheWholeRangeInChunks() throws Exception {
+        File checkpoint = tempFiles.createTempFileThatDoesNotExist("properties");
+        when(collector.collect(any(LocalDateRange.class))).thenReturn(10);
+
+        backfill(checkpoint, "2014-01-01", "2014-01-10").run();
+
+        List<LocalDateRange> chunks = collectedChunks(3);
+        assertChunk("2014-01-01", "2014-01-04", chunks.get(0));
+        assertChunk("2014-01-05", "2014-01-08", chunks.get(1));
+        assertChunk("2014-01-09", "2014-01-10", chunks.get(2));
+        verify(logger).log(eq(CollectorLogMessage.BackfillProgress), eq(new LocalDate("2014-01-05")), eq(new LocalDate("2014-01-08")), eq(0L), eq(10),
+                eq(8), eq(10), anyLong(), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.BackfillCompleted), eq(new LocalDate("2014-01-01")), eq(new LocalDate("2014-01-10")), eq(0L), eq(30L), anyLong());
+        assertFalse(checkpoint.exists());
+    }
+
+    @Test
+    public void run_shouldReportTheRowsReadAsWellAsTheRecordsPublished() throws Exception {
+        File checkpoint = tempFiles.createTempFileThatDoesNotExist("properties");
+        when(collector.collect(any(LocalDateRange.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                metrics.getRowsRead().add(25); //most of them unchanged, and so not published
+                return 2;
+            }
+        });
+
+        backfill(checkpoint, "2014-01-01", "2014-01-08").run();
+
+        verify(logger).log(eq(CollectorLogMessage.BackfillProgress), eq(new LocalDate("2014-01-05")), eq(new LocalDate("2014-01-08")), eq(25L), eq(2),
+                eq(8), eq(8), anyLong(), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.BackfillCompleted), eq(new LocalDate("2014-01-01")), eq(new LocalDate("2014-01-08")), eq(50L), eq(4L), anyLong());
+    }
+
+    @Test
+    public void run_shouldCarryOnFromTheLastChunkPublished_whenAnEarlierBackfillOfTheSameRangeFailed() throws Exception {
+        File checkpoint = tempFiles.createTempFileThatDoesNotExist("properties");
+        SQLException expected = new SQLException("expected");
+        when(collector.collect(any(LocalDateRange.class))).thenReturn(10).thenThrow(expected).thenReturn(10);
+
+        try {
+            backfill(checkpoint, "2014-01-01", "2014-01-10").run();
+            fail("Expected an exception");
+        } catch (SQLException e) {
+            assertSame(expected, e);
+        }
+        assertTrue(checkpoint.exists());
+        backfill(checkpoint, "2014-01-01", "2014-01-10").run();
+
+        List<LocalDateRange> chunks = collectedChunks(4);
+        assertChunk("2014-01-05", "2014-01-08", chunks.get(2));
+        assertChunk("2014-01-09", "2014-01-10", chunks.get(3));
+        verify(logger).log(CollectorLogMessage.BackfillResumed, new LocalDate("2014-01-01"), new LocalDate("2014-01-10"), new LocalDate("2014-01-05"));
+        assertFalse(checkpoint.exists());
+    }
+
+    @Test
+    public void run_shouldStartFromTheBeginning_whenTheCheckpointIsForADifferentRange() throws Exception {
+        File checkpoint = tempFiles.createTempFileThatDoesNotExist("properties");
+        when(collector.collect(any(LocalDateRange.class))).thenReturn(10).thenThrow(new SQLException("expected")).thenReturn(10);
+        try {
+            backfill(checkpoint, "2014-01-01", "2014-01-10").run();
+            fail("Expected an exception");
+        } catch (SQLException e) {
+            //expected
+        }
+
+        backfill(checkpoint, "2014-01-01", "2014-01-08").run();
+
+        List<LocalDateRange> chunks = collectedChunks(4);
+        assertChunk("2014-01-01", "2014-01-04", chunks.get(2));
+        verify(logger, never()).log(eq(CollectorLogMessage.BackfillResumed), any(), any(), any());
+    }
+
+    private Backfill backfill(File checkpoint, String from, String to) throws Exception {
+        CommandLineArguments arguments = CommandLineArguments.parse("--backfill", "--from", from, "--to", to);
+        return new Backfill(collector, 4, checkpoint, metrics, arguments, logger);
+    }
+
+    private List<LocalDateRange> collectedChunks(int expectedCount) throws SQLException, IOException {
+        ArgumentCaptor<LocalDateRange> ranges = ArgumentCaptor.forClass(LocalDateRange.class);
+        verify(collector, times(expectedCount)).collect(ranges.capture());
+        return ranges.getAllValues();
+    }
+
+    private static void assertChunk(String expectedStart, String expectedEnd, LocalDateRange chunk) {
+        assertEquals(new LocalDate(expectedStart), chunk.getStartDate());
+        assertEquals(new LocalDate(expectedEnd), chunk.getEndDate());
+    }
+}
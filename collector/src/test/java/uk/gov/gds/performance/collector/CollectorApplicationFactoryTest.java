@@ -7,14 +7,19 @@ import org.junit.Test;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
 import uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.*;
@@ -135,6 +140,277 @@ public class CollectorApplicationFactoryTest {
         }
     }
 
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenRunningAsADaemonWithAnInvalidSchedule() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.daemon.schedule", "every day");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        doReturn(true).when(mockArguments).isDaemon();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.InvalidDaemonSchedule, "every day", "expected five fields (minute hour day-of-month month day-of-week) but found 2");
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenARollupPeriodCannotBeWorkedOutFromTheDayRows() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.rollup.periods", "week, day");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.InvalidRollupPeriods, "week, day", "only week, month and quarter can be worked out from the day rows");
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenARollupPeriodDoesNotExist() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.rollup.periods", "week,fortnight");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.InvalidRollupPeriods, "week,fortnight", "there is no period called fortnight");
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenRollingUpWithIncrementalCollection() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.rollup.periods", "month");
+        p.setProperty("database.incremental.column", "LAST_UPDATED");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(eq(CollectorLogMessage.InvalidRollupPeriods), eq("month"), anyString());
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldSucceed_whenRollingUpWeeksMonthsAndQuarters() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.rollup.periods", "week,month,quarter");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        stubServer.getServer().expect(StubMethod.post("/foo")).thenReturn(200, "text/plain", "awake");
+
+        assertNotNull(collectorApplicationFactory.build());
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenTheDatabasePoolIsSmallerThanTheParallelism() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("database.parallelism", "8");
+        p.setProperty("database.pool.maxSize", "4");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.DatabasePoolTooSmall, 4, 8);
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenBackfillingWithIncrementalCollection() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("database.incremental.column", "LAST_UPDATED");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        doReturn(true).when(mockArguments).isBackfill();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.BackfillWithIncrementalCollection, "LAST_UPDATED");
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenTheMergePolicyDoesNotExist() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.merge.policy", "first");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(CollectorLogMessage.InvalidMergePolicy, "first", "it must be one of sum, last and max");
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenSummingDuplicatesWithIncrementalCollection() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.merge.policy", "sum");
+        p.setProperty("database.incremental.column", "LAST_UPDATED");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(eq(CollectorLogMessage.InvalidMergePolicy), eq("sum"), anyString());
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenKeepingTheLargestDuplicateWhileRollingUp() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.merge.policy", "max");
+        p.setProperty("collector.rollup.periods", "week");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+        try {
+            collectorApplicationFactory.build();
+            fail("expected an exception");
+        } catch(ApplicationException e) {
+            verify(mockLogger).log(eq(CollectorLogMessage.InvalidMergePolicy), eq("max"), anyString());
+            verifyNoMoreInteractions(mockLogger);
+        }
+    }
+
+    @Test
+    public void build_shouldSucceed_whenMergingDuplicates() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.merge.policy", "Last");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        stubServer.getServer().expect(StubMethod.post("/foo")).thenReturn(200, "text/plain", "awake");
+
+        assertNotNull(collectorApplicationFactory.build());
+    }
+
+    @Test
+    public void build_shouldIgnoreTheSchedule_whenNotRunningAsADaemon() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.daemon.schedule", "every day");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        stubServer.getServer().expect(StubMethod.post("/foo")).thenReturn(200, "text/plain", "awake");
+
+        assertNotNull(collectorApplicationFactory.build());
+    }
+
+    @Test
+    public void build_shouldLogHowLongEachConnectivityCheckTook_whenTheyAllPass() throws Exception {
+        File configFile = saveConfigFile(createValidApplicationProperties());
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        stubServer.getServer().expect(StubMethod.post("/foo")).thenReturn(200, "text/plain", "awake");
+
+        collectorApplicationFactory.build();
+
+        verify(mockLogger).log(eq(CollectorLogMessage.ConnectivityCheckTimed), eq("database"), anyLong());
+        verify(mockLogger).log(eq(CollectorLogMessage.ConnectivityCheckTimed), eq("performance platform"), anyLong());
+    }
+
+    @Test
+    public void build_shouldLogAMessageAndThrowAnApplicationException_whenThePerformancePlatformDoesNotRespondInTime() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            Properties p = createValidApplicationProperties();
+            p.setProperty("performance.platform.url", "http://localhost:" + silentServer.getLocalPort() + "/foo");
+            p.setProperty("collector.startup.platformTimeoutSeconds", "1");
+            File configFile = saveConfigFile(p);
+            doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+            try {
+                collectorApplicationFactory.build();
+                fail("expected an exception");
+            } catch (ApplicationException e) {
+                verify(mockLogger).log(CollectorLogMessage.ConnectivityCheckTimedOut, "performance platform", 1);
+                verifyNoMoreInteractions(mockLogger);
+            }
+        }
+    }
+
+    @Test
+    public void build_shouldCloseTheConnectionToThePerformancePlatform_whenItOnlyRespondsAfterTheCheckTimedOut() throws Exception {
+        try (ServerSocket slowServer = new ServerSocket(0)) {
+            Properties p = createValidApplicationProperties();
+            p.setProperty("performance.platform.url", "http://localhost:" + slowServer.getLocalPort() + "/foo");
+            p.setProperty("collector.startup.platformTimeoutSeconds", "1");
+            File configFile = saveConfigFile(p);
+            doReturn(configFile).when(mockArguments).getConfigurationFile();
+
+            try {
+                collectorApplicationFactory.build();
+                fail("expected an exception");
+            } catch (ApplicationException e) {
+                verify(mockLogger).log(CollectorLogMessage.ConnectivityCheckTimedOut, "performance platform", 1);
+            }
+
+            //answer the test request that is still waiting, which keeps the connection alive unless it is closed
+            slowServer.setSoTimeout(5000);
+            try (Socket connection = slowServer.accept()) {
+                connection.setSoTimeout(5000);
+                InputStream in = connection.getInputStream();
+                readRequestHeaders(in);
+                connection.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nawake".getBytes("US-ASCII"));
+                connection.getOutputStream().flush();
+                while (in.read() >= 0) {
+                    //the rest of the test request
+                }
+            }
+        }
+    }
+
+    private static void readRequestHeaders(InputStream in) throws IOException {
+        int matched = 0;
+        byte[] endOfHeaders = "\r\n\r\n".getBytes("US-ASCII");
+        while (matched < endOfHeaders.length) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("the request ended before its headers did");
+            }
+            matched = b == endOfHeaders[matched] ? matched + 1 : (b == endOfHeaders[0] ? 1 : 0);
+        }
+    }
+
+    @Test
+    public void build_shouldStartLoggingAsynchronously_whenTheConfigurationSaysTo() throws Exception {
+        Properties p = createValidApplicationProperties();
+        p.setProperty("collector.logging.async", "true");
+        p.setProperty("collector.logging.overflow", "drop");
+        File configFile = saveConfigFile(p);
+        doReturn(configFile).when(mockArguments).getConfigurationFile();
+        stubServer.getServer().expect(StubMethod.post("/foo")).thenReturn(200, "text/plain", "awake");
+
+        collectorApplicationFactory.build();
+
+        verify(mockLogger).startAsync(64, OpsLogger.OverflowPolicy.DROP, CollectorLogMessage.LogMessagesDropped);
+    }
+
     @Test
     public void build_shouldSetAGlobalErrorHandlerThatDoesNotWriteToSystemOutOrError() throws Exception {
         File configFile = saveConfigFile(createValidApplicationProperties());
@@ -176,6 +452,39 @@ public class CollectorApplicationFactoryTest {
         result.setProperty("performance.platform.proxyHost", "");
         result.setProperty("performance.platform.proxyUsername", "");
         result.setProperty("performance.platform.proxyPassword", "");
+        result.setProperty("database.fetchSize", "500");
+        result.setProperty("performance.platform.batch.maxRecords", "1000");
+        result.setProperty("performance.platform.batch.maxBytes", "1048576");
+        result.setProperty("performance.platform.maxRequestsInFlight", "4");
+        result.setProperty("performance.platform.connections.maxTotal", "20");
+        result.setProperty("performance.platform.connections.maxPerRoute", "20");
+        result.setProperty("performance.platform.connections.idleTimeoutSeconds", "30");
+        result.setProperty("performance.platform.connections.staleCheck", "true");
+        result.setProperty("performance.platform.connectTimeoutMillis", "10000");
+        result.setProperty("performance.platform.readTimeoutMillis", "60000");
+        result.setProperty("database.parallelism", "1");
+        result.setProperty("database.partitionDays", "7");
+        result.setProperty("database.pool.minIdle", "1");
+        result.setProperty("database.pool.maxSize", "4");
+        result.setProperty("database.pool.validationQuery", "");
+        result.setProperty("database.pool.maxLifetimeSeconds", "1800");
+        result.setProperty("database.pool.leakDetectionSeconds", "0");
+        result.setProperty("database.aggregate", "false");
+        result.setProperty("database.incremental.column", "");
+        result.setProperty("collector.state.directory", "target/collector-state");
+        result.setProperty("collector.ledger.enabled", "false");
+        result.setProperty("collector.pipeline.serializerThreads", "0");
+        result.setProperty("collector.pipeline.queueCapacity", "4");
+        result.setProperty("collector.daemon.schedule", "900");
+        result.setProperty("collector.backfill.chunkDays", "7");
+        result.setProperty("collector.startup.databaseTimeoutSeconds", "30");
+        result.setProperty("collector.startup.platformTimeoutSeconds", "30");
+        result.setProperty("collector.logging.async", "false");
+        result.setProperty("collector.logging.bufferSize", "64");
+        result.setProperty("collector.logging.overflow", "block");
+        result.setProperty("collector.metrics.file", "");
+        result.setProperty("collector.rollup.periods", "");
+        result.setProperty("collector.merge.policy", "");
         return result;
     }
 
@@ -1,14 +1,13 @@
 package uk.gov.gds.performance.collector;
 
 
+import com.zaxxer.hikari.HikariDataSource;
 import org.hamcrest.CoreMatchers;
 import org.joda.time.LocalDate;
 import org.junit.Test;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
 
 import javax.ws.rs.client.Client;
-import java.sql.Connection;
-import java.sql.SQLException;
 
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
@@ -20,12 +19,13 @@ import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mock
 
 public class CollectorApplicationTest {
 
-    private final Connection connection = mock(Connection.class);
+    private final HikariDataSource dataSource = mock(HikariDataSource.class);
     private final Client client = mock(Client.class);
+    private final HttpConnectionPool connectionPool = mock(HttpConnectionPool.class);
     private final Collector collector = mock(Collector.class);
     private final CommandLineArguments arguments = mock(CommandLineArguments.class);
     private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
-    private final CollectorApplication application = new CollectorApplication(connection, client, collector, arguments, logger);
+    private final CollectorApplication application = new CollectorApplication(dataSource, client, connectionPool, collector, arguments, logger);
 
     @Test
     public void execute_shouldDoNothing_whenDryRunIsSet() throws Exception {
@@ -34,7 +34,7 @@ public class CollectorApplicationTest {
         application.execute();
 
         verifyZeroInteractions(collector);
-        verifyZeroInteractions(connection, client, logger); //true, but interactions with the collector are what we really care about
+        verifyZeroInteractions(dataSource, client, logger); //true, but interactions with the collector are what we really care about
     }
 
     @Test
@@ -48,6 +48,39 @@ public class CollectorApplicationTest {
         verify(collector).collect(expectedDateRange);
     }
 
+    @Test
+    public void execute_shouldRunTheDaemonInsteadOfASingleCollection_whenThereIsADaemon() throws Exception {
+        CollectorDaemon daemon = mock(CollectorDaemon.class);
+        CollectorApplication daemonApplication = new CollectorApplication(dataSource, client, connectionPool, collector, daemon, null, arguments, logger);
+
+        daemonApplication.execute();
+
+        verify(daemon).run();
+        verifyZeroInteractions(collector);
+    }
+
+    @Test
+    public void execute_shouldNotRunTheDaemon_whenDryRunIsSet() throws Exception {
+        CollectorDaemon daemon = mock(CollectorDaemon.class);
+        CollectorApplication daemonApplication = new CollectorApplication(dataSource, client, connectionPool, collector, daemon, null, arguments, logger);
+        when(arguments.isDryRun()).thenReturn(true);
+
+        daemonApplication.execute();
+
+        verifyZeroInteractions(daemon, collector);
+    }
+
+    @Test
+    public void execute_shouldRunTheBackfillInsteadOfASingleCollection_whenThereIsABackfill() throws Exception {
+        Backfill backfill = mock(Backfill.class);
+        CollectorApplication backfillApplication = new CollectorApplication(dataSource, client, connectionPool, collector, null, backfill, arguments, logger);
+
+        backfillApplication.execute();
+
+        verify(backfill).run();
+        verifyZeroInteractions(collector);
+    }
+
     @Test
     public void execute_shouldRethrowWithoutLogging_whenAnApplicationExceptionIsThrown() throws Exception {
         ApplicationException expected = new ApplicationException();
@@ -89,18 +122,42 @@ public class CollectorApplicationTest {
     }
 
     @Test
-    public void close_shouldCloseTheDatabaseConnection() throws Exception {
+    public void close_shouldCloseTheHttpConnectionPool() throws Exception {
+        application.close();
+
+        verify(connectionPool).close();
+    }
+
+    @Test
+    public void close_shouldLeaveTheLoggerForItsOwnerToClose() throws Exception {
+        application.close();
+
+        verify(logger, never()).close();
+    }
+
+    @Test
+    public void close_shouldCloseTheDatabaseConnectionPool() throws Exception {
+        application.close();
+
+        verify(dataSource).close();
+    }
+
+    @Test
+    public void close_shouldIgnoreTheException_whenAnExceptionIsThrownClosingTheDatabaseConnectionPool() throws Exception {
+        doThrow(new IllegalStateException()).when(dataSource).close();
+
         application.close();
 
-        verify(connection).close();
+        verify(dataSource).close();
     }
 
     @Test
-    public void close_shouldIgnoreTheException_whenAnExceptionIsThrownClosingTheDatabaseConnection() throws Exception {
-        doThrow(new SQLException()).when(connection).close();
+    public void close_shouldStillCloseTheConnectionPools_whenAnExceptionIsThrownClosingTheRestClient() throws Exception {
+        doThrow(new IllegalStateException()).when(client).close();
 
         application.close();
 
-        verify(connection).close();
+        verify(connectionPool).close();
+        verify(dataSource).close();
     }
 }
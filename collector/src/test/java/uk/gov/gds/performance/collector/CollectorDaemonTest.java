@@ -0,0 +1,158 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
+
+public class CollectorDaemonTest {
+    private static final long START = new DateTime("2014-01-22T23:59:00").getMillis();
+    private static final long MINUTE = 60000;
+
+    private final Collector collector = mock(Collector.class);
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
+    private final FakeSleeper sleeper = new FakeSleeper();
+    private final Schedule everyMinute = new FixedRateSchedule(START, MINUTE);
+
+    @Before
+    public void fixTheClock() {
+        DateTimeUtils.setCurrentMillisFixed(START);
+    }
+
+    @After
+    public void resetTheClock() {
+        DateTimeUtils.setCurrentMillisSystem();
+        Thread.interrupted();
+    }
+
+    @Test
+    public void run_shouldCollectOnTheSchedule_untilInterrupted() throws Exception {
+        sleeper.stopAfter = 3;
+
+        daemon(CommandLineArguments.parse()).run();
+
+        assertEquals(3, sleeper.wokenAt.size());
+        assertEquals(START, (long) sleeper.wokenAt.get(0));
+        assertEquals(START + MINUTE, (long) sleeper.wokenAt.get(1));
+        assertEquals(START + 2 * MINUTE, (long) sleeper.wokenAt.get(2));
+        verify(collector, times(3)).collect(any(LocalDateRange.class));
+        verify(logger).log(CollectorLogMessage.DaemonStarted, everyMinute, new DateTime(START));
+        assertTrue(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void run_shouldWorkOutTheDateRangeAfreshForEveryCollection() throws Exception {
+        sleeper.stopAfter = 3;
+
+        daemon(CommandLineArguments.parse()).run();
+
+        //the clock passes midnight between the first and second collections
+        ArgumentCaptor<LocalDateRange> ranges = ArgumentCaptor.forClass(LocalDateRange.class);
+        verify(collector, times(3)).collect(ranges.capture());
+        assertEquals(new LocalDate("2014-01-19"), ranges.getAllValues().get(0).getStartDate());
+        assertEquals(new LocalDate("2014-01-22"), ranges.getAllValues().get(0).getEndDate());
+        assertEquals(new LocalDate("2014-01-20"), ranges.getAllValues().get(1).getStartDate());
+        assertEquals(new LocalDate("2014-01-23"), ranges.getAllValues().get(1).getEndDate());
+        assertEquals(new LocalDate("2014-01-23"), ranges.getAllValues().get(2).getEndDate());
+    }
+
+    @Test
+    public void run_shouldSkipTheCollectionsThatFallDue_whileOneIsStillRunning() throws Exception {
+        sleeper.stopAfter = 2;
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                DateTimeUtils.setCurrentMillisFixed(DateTimeUtils.currentTimeMillis() + 2 * MINUTE + 1);
+                return 0;
+            }
+        }).doReturn(0).when(collector).collect(any(LocalDateRange.class));
+
+        daemon(CommandLineArguments.parse()).run();
+
+        assertEquals(START + 3 * MINUTE, (long) sleeper.wokenAt.get(1));
+        verify(logger).log(CollectorLogMessage.ScheduledCollectionsSkipped, 2, new DateTime(START + 3 * MINUTE));
+        verify(collector, times(2)).collect(any(LocalDateRange.class));
+    }
+
+    @Test
+    public void run_shouldCarryOn_whenACollectionFails() throws Exception {
+        sleeper.stopAfter = 3;
+        RuntimeException unexpected = new RuntimeException("unexpected");
+        doThrow(new ApplicationException()).doThrow(unexpected).doReturn(0).when(collector).collect(any(LocalDateRange.class));
+
+        daemon(CommandLineArguments.parse()).run();
+
+        verify(collector, times(3)).collect(any(LocalDateRange.class));
+        verify(logger).log(CollectorLogMessage.UnknownError, unexpected);
+    }
+
+    @Test
+    public void run_shouldStopWithoutLoggingAnError_whenACollectionIsInterrupted() throws Exception {
+        sleeper.stopAfter = 3;
+        doThrow(new InterruptedIOException()).when(collector).collect(any(LocalDateRange.class));
+
+        daemon(CommandLineArguments.parse()).run();
+
+        verify(collector, times(1)).collect(any(LocalDateRange.class));
+        verify(logger, never()).log(eq(CollectorLogMessage.UnknownError), any(Throwable.class));
+        assertTrue(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void run_shouldNotLogAnError_whenACollectionFailsBecauseItWasInterrupted() throws Exception {
+        sleeper.stopAfter = 3;
+        doAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted");
+            }
+        }).when(collector).collect(any(LocalDateRange.class));
+
+        daemon(CommandLineArguments.parse()).run();
+
+        verify(collector, times(1)).collect(any(LocalDateRange.class));
+        verify(logger, never()).log(eq(CollectorLogMessage.UnknownError), any(Throwable.class));
+    }
+
+    private CollectorDaemon daemon(CommandLineArguments arguments) {
+        return new CollectorDaemon(collector, everyMinute, arguments, logger, sleeper);
+    }
+
+    /**
+     * Moves the clock on instead of sleeping, and interrupts the thread when it has been asked to sleep once more than
+     * it should.
+     */
+    private static class FakeSleeper implements CollectorDaemon.Sleeper {
+        private final List<Long> wokenAt = new ArrayList<>();
+        private int stopAfter;
+
+        @Override
+        public void sleepUntil(long millis) throws InterruptedException {
+            if (wokenAt.size() == stopAfter) {
+                throw new InterruptedException();
+            }
+            if (millis > DateTimeUtils.currentTimeMillis()) {
+                DateTimeUtils.setCurrentMillisFixed(millis);
+            }
+            wokenAt.add(millis);
+        }
+    }
+}
@@ -1,41 +1,69 @@
 package uk.gov.gds.performance.collector;
 
 import org.joda.time.LocalDate;
+import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.stubbing.OngoingStubbing;
 import uk.gov.gds.performance.collector.logging.OpsLogger;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
 
 public class CollectorTest {
 
     private final StatsPublisher publisher = mock(StatsPublisher.class);
+    private final StatsPublisher.Session session = mock(StatsPublisher.Session.class);
     private final StatsRepository repository = mock(StatsRepository.class);
     private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
     private final Collector collector = new Collector(repository, publisher, logger);
 
+    @Before
+    public void setup() {
+        when(publisher.openSession()).thenReturn(session);
+    }
+
     @Test
     public void collect_shouldCallTheRepository_thenPassTheResultToThePublisher() throws Exception {
         LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
         List<StageResult> expectedResults = buildStageResults(3);
-        when(repository.findStatsBetween(dateRange)).thenReturn(expectedResults);
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(expectedResults));
 
         collector.collect(dateRange);
 
-        verify(repository).findStatsBetween(dateRange);
-        verify(publisher).publish(expectedResults);
+        InOrder inOrder = inOrder(repository, session);
+        inOrder.verify(repository).streamStatsBetween(dateRange, session);
+        ArgumentCaptor<StageResultBatch> batch = ArgumentCaptor.forClass(StageResultBatch.class);
+        inOrder.verify(session).accept(batch.capture());
+        inOrder.verify(session).finish();
+        assertEquals(expectedResults.size(), batch.getValue().size());
+        for (int i = 0; i < expectedResults.size(); i++) {
+            assertEquals(expectedResults.get(i).get_id(), batch.getValue().get(i).get_id());
+            assertEquals(expectedResults.get(i).getCount(), batch.getValue().getCount(i));
+        }
     }
 
     @Test
     public void collect_shouldLogASuccessMessageWithTheAppropriateNumberOfRecords_whenNoErrorsOccurAndRecordsAreReturned() throws Exception {
         LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
-        List<StageResult> expectedResults = buildStageResults(1);
-        when(repository.findStatsBetween(dateRange)).thenReturn(expectedResults);
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(buildStageResults(1)));
+        when(session.getPublishedCount()).thenReturn(1);
 
-        collector.collect(dateRange);
+        assertEquals(1, collector.collect(dateRange));
 
         verify(logger).log(CollectorLogMessage.Success, 1);
     }
@@ -43,19 +71,163 @@ public class CollectorTest {
     @Test
     public void collect_shouldLogAFailureMessage_whenNoRecordsAreFound() throws Exception {
         LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
-        when(repository.findStatsBetween(dateRange)).thenReturn(new ArrayList<StageResult>());
+        whenTheRepositoryIsQueried(dateRange).thenReturn(0);
 
-        collector.collect(dateRange);
+        assertEquals(0, collector.collect(dateRange));
 
         verify(logger).log(CollectorLogMessage.NoResultsFoundForDateRange, dateRange.getStartDate(), dateRange.getEndDate());
-        verifyZeroInteractions(publisher);
+        verify(session, never()).accept(any(StageResultBatch.class));
+        verify(session, never()).finish();
+        verify(session).close();
+    }
+
+    @Test
+    public void collect_shouldCloseTheSessionWithoutFinishingIt_whenReadingFails() throws Exception {
+        LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
+        SQLException expectedException = new SQLException("expected");
+        whenTheRepositoryIsQueried(dateRange).thenThrow(expectedException);
+
+        try {
+            collector.collect(dateRange);
+            fail("Expected an exception");
+        } catch (SQLException e) {
+            assertSame(expectedException, e);
+        }
+
+        verify(session, never()).finish();
+        verify(session).close();
+    }
+
+    @Test
+    public void collect_shouldPassResultsThroughTheDecoratorsInOrder_beforeTheyReachThePublisher() throws Exception {
+        LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
+        List<StageResult> expectedResults = buildStageResults(2);
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(expectedResults));
+        List<String> calls = new ArrayList<>();
+        Collector decoratedCollector = new Collector(repository,
+                Arrays.<StageResultSinkDecorator>asList(new RecordingDecorator("first", calls), new RecordingDecorator("second", calls)),
+                publisher, logger);
+
+        decoratedCollector.collect(dateRange);
+
+        assertEquals(Arrays.asList("first accept", "second accept", "first finish", "second finish", "first close", "second close"), calls);
+        verify(session).accept(any(StageResultBatch.class));
+        verify(session).finish();
+        verify(session).close();
+    }
+
+    @Test
+    public void collect_shouldCloseTheDecoratorsAndTheSessionWithoutFinishingThem_whenPublishingFails() throws Exception {
+        LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(buildStageResults(2)));
+        IOException expectedException = new IOException("expected");
+        doThrow(expectedException).when(session).accept(any(StageResultBatch.class));
+        List<String> calls = new ArrayList<>();
+        Collector decoratedCollector = new Collector(repository,
+                Arrays.<StageResultSinkDecorator>asList(new RecordingDecorator("first", calls), new RecordingDecorator("second", calls)),
+                publisher, logger);
+
+        try {
+            decoratedCollector.collect(dateRange);
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertSame(expectedException, e);
+        }
+
+        assertEquals(Arrays.asList("first accept", "second accept", "first close", "second close"), calls);
+        verify(session, never()).finish();
+        verify(session).close();
     }
 
+    @Test
+    public void collect_shouldCountTheRowsReadAndRecordsPublished_andLogASummaryOfTheRun() throws Exception {
+        RunMetrics metrics = new RunMetrics();
+        Collector measuredCollector = new Collector(repository, new ArrayList<StageResultSinkDecorator>(), publisher, metrics, logger);
+        LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(buildStageResults(3)));
+        when(session.getPublishedCount()).thenReturn(2);
+
+        measuredCollector.collect(dateRange);
+        measuredCollector.collect(dateRange);
+
+        assertEquals(6, metrics.getRowsRead().get());
+        assertEquals(4, metrics.getRecordsPublished().get());
+        assertEquals(BigDecimal.ONE, metrics.getLastRunSuccess().get());
+        verify(logger, times(2)).log(CollectorLogMessage.RunMetricsSummary, 3L, 2L, 0L, 0L, 0L, 0L);
+    }
+
+    @Test
+    public void collect_shouldLogASummaryOfTheRun_whenItFails() throws Exception {
+        RunMetrics metrics = new RunMetrics();
+        Collector measuredCollector = new Collector(repository, new ArrayList<StageResultSinkDecorator>(), publisher, metrics, logger);
+        LocalDateRange dateRange = new LocalDateRange(LocalDate.now().minusDays(2), LocalDate.now());
+        whenTheRepositoryIsQueried(dateRange).thenAnswer(streamResults(buildStageResults(3)));
+        doThrow(new ApplicationException()).when(session).finish();
+        when(session.getPublishedCount()).thenReturn(1);
+
+        try {
+            measuredCollector.collect(dateRange);
+            fail("Expected an exception");
+        } catch (ApplicationException e) {
+            //expected
+        }
+
+        assertEquals(BigDecimal.ZERO, metrics.getLastRunSuccess().get());
+        verify(logger).log(CollectorLogMessage.RunMetricsSummary, 3L, 1L, 0L, 0L, 0L, 0L);
+    }
+
+    private OngoingStubbing<Integer> whenTheRepositoryIsQueried(LocalDateRange dateRange) throws Exception {
+        return when(repository.streamStatsBetween(eq(dateRange), any(StageResultSink.class)));
+    }
+
+    private Answer<Integer> streamResults(final List<StageResult> results) {
+        return new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                StageResultSink sink = (StageResultSink) invocation.getArguments()[1];
+                sink.accept(StageResultBatch.of(results));
+                return results.size();
+            }
+        };
+    }
+
+    private static class RecordingDecorator implements StageResultSinkDecorator {
+        private final String name;
+        private final List<String> calls;
+
+        RecordingDecorator(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        @Override
+        public StageResultSink decorate(final StageResultSink sink) {
+            return new StageResultSink() {
+                @Override
+                public void accept(StageResultBatch batch) throws IOException {
+                    calls.add(name + " accept");
+                    sink.accept(batch);
+                }
+
+                @Override
+                public void finish() throws IOException {
+                    calls.add(name + " finish");
+                    sink.finish();
+                }
+
+                @Override
+                public void close() {
+                    calls.add(name + " close");
+                    sink.close();
+                }
+            };
+        }
+    }
 
     private List<StageResult> buildStageResults(int resultsToBuild) {
         List<StageResult> results = new ArrayList<>();
         for (int i = 0; i < resultsToBuild; i++) {
-            StageResult sr = new StageResult(new LocalDate(), Period.day, "blah", 42);
+            StageResult sr = new StageResult(new LocalDate(), Period.day, "blah" + i, 42 + i);
             results.add(sr);
         }
         return results;
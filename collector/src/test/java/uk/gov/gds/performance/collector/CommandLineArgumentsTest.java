@@ -1,6 +1,7 @@
 package uk.gov.gds.performance.collector;
 
 import org.joda.time.DateTimeUtils;
+import org.joda.time.Duration;
 import org.joda.time.Instant;
 import org.joda.time.LocalDate;
 import org.junit.*;
@@ -137,6 +138,45 @@ public class CommandLineArgumentsTest {
         assertTrue(arguments.isDryRun());
     }
 
+    @Test
+    public void isDaemon_shouldReturnFalse_whenTheDaemonFlagIsNotSpecified() throws Exception {
+        CommandLineArguments arguments = CommandLineArguments.parse();
+
+        assertFalse(arguments.isDaemon());
+    }
+
+    @Test
+    public void isDaemon_shouldReturnTrue_whenTheDaemonFlagIsSpecified() throws Exception {
+        CommandLineArguments arguments = CommandLineArguments.parse("--daemon");
+
+        assertTrue(arguments.isDaemon());
+    }
+
+    @Test
+    public void isBackfill_shouldReturnTrue_whenTheBackfillFlagIsSpecified() throws Exception {
+        assertFalse(CommandLineArguments.parse().isBackfill());
+        assertTrue(CommandLineArguments.parse("--backfill").isBackfill());
+    }
+
+    @Test(expected = CmdLineException.class)
+    public void parsingCommandLineArguments_shouldBlowUp_givenBothTheBackfillAndDaemonFlags() throws Exception {
+        CommandLineArguments.parse("--backfill", "--daemon");
+    }
+
+    @Test
+    public void getDateRange_shouldMoveOnWithTheClock_whenNoArgumentsAreSpecified() throws Exception {
+        CommandLineArguments arguments = CommandLineArguments.parse();
+        try {
+            DateTimeUtils.setCurrentMillisFixed(RIGHT_NOW_ACCORDING_TO_THIS_TEST.plus(Duration.standardDays(1)).getMillis());
+
+            LocalDateRange range = arguments.getDateRange();
+            assertEquals(new LocalDate(RIGHT_NOW_ACCORDING_TO_THIS_TEST).minusDays(2), range.getStartDate());
+            assertEquals(new LocalDate(RIGHT_NOW_ACCORDING_TO_THIS_TEST).plusDays(1), range.getEndDate());
+        } finally {
+            DateTimeUtils.setCurrentMillisFixed(RIGHT_NOW_ACCORDING_TO_THIS_TEST.getMillis());
+        }
+    }
+
     @Test
     public void parse_shouldPrintUsageToSystemErrAndRethrowTheException_givenABadCommandLineOption() throws Exception {
         try {
@@ -43,6 +43,39 @@ public class ConfigurationLoaderTest {
         assertEquals("f", properties.getProperty("performance.platform.proxyHost"));
         assertEquals("g", properties.getProperty("performance.platform.proxyUsername"));
         assertEquals("h", properties.getProperty("performance.platform.proxyPassword"));
+        assertEquals("i", properties.getProperty("database.fetchSize"));
+        assertEquals("j", properties.getProperty("performance.platform.batch.maxRecords"));
+        assertEquals("k", properties.getProperty("performance.platform.batch.maxBytes"));
+        assertEquals("l", properties.getProperty("performance.platform.maxRequestsInFlight"));
+        assertEquals("m", properties.getProperty("performance.platform.connections.maxTotal"));
+        assertEquals("n", properties.getProperty("performance.platform.connections.maxPerRoute"));
+        assertEquals("o", properties.getProperty("performance.platform.connections.idleTimeoutSeconds"));
+        assertEquals("p", properties.getProperty("performance.platform.connections.staleCheck"));
+        assertEquals("q", properties.getProperty("performance.platform.connectTimeoutMillis"));
+        assertEquals("r", properties.getProperty("performance.platform.readTimeoutMillis"));
+        assertEquals("s", properties.getProperty("database.parallelism"));
+        assertEquals("t", properties.getProperty("database.partitionDays"));
+        assertEquals("u", properties.getProperty("database.pool.minIdle"));
+        assertEquals("v", properties.getProperty("database.pool.maxSize"));
+        assertEquals("w", properties.getProperty("database.pool.validationQuery"));
+        assertEquals("x", properties.getProperty("database.pool.maxLifetimeSeconds"));
+        assertEquals("y", properties.getProperty("database.pool.leakDetectionSeconds"));
+        assertEquals("z", properties.getProperty("database.aggregate"));
+        assertEquals("aa", properties.getProperty("database.incremental.column"));
+        assertEquals("ab", properties.getProperty("collector.state.directory"));
+        assertEquals("ac", properties.getProperty("collector.ledger.enabled"));
+        assertEquals("ad", properties.getProperty("collector.pipeline.serializerThreads"));
+        assertEquals("ae", properties.getProperty("collector.pipeline.queueCapacity"));
+        assertEquals("af", properties.getProperty("collector.daemon.schedule"));
+        assertEquals("ag", properties.getProperty("collector.backfill.chunkDays"));
+        assertEquals("ah", properties.getProperty("collector.startup.databaseTimeoutSeconds"));
+        assertEquals("ai", properties.getProperty("collector.startup.platformTimeoutSeconds"));
+        assertEquals("aj", properties.getProperty("collector.logging.async"));
+        assertEquals("ak", properties.getProperty("collector.logging.bufferSize"));
+        assertEquals("al", properties.getProperty("collector.logging.overflow"));
+        assertEquals("am", properties.getProperty("collector.metrics.file"));
+        assertEquals("an", properties.getProperty("collector.rollup.periods"));
+        assertEquals("ao", properties.getProperty("collector.merge.policy"));
     }
 
     @Test
@@ -0,0 +1,94 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CronScheduleTest {
+    private DateTimeZone originalZone;
+
+    @Before
+    public void setDefaultTimeZone() {
+        originalZone = DateTimeZone.getDefault();
+        DateTimeZone.setDefault(DateTimeZone.forID("Europe/London"));
+    }
+
+    @After
+    public void restoreDefaultTimeZone() {
+        DateTimeZone.setDefault(originalZone);
+    }
+
+    @Test
+    public void nextRunAfter_shouldReturnTheNextMinute_givenAnExpressionThatMatchesEveryMinute() throws Exception {
+        assertNextRun("* * * * *", "2014-01-22T10:15:30", "2014-01-22T10:16:00");
+        assertNextRun("* * * * *", "2014-01-22T10:15:00", "2014-01-22T10:16:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldReturnTheSameTimeTomorrow_whenTodaysHasPassed() throws Exception {
+        assertNextRun("30 2 * * *", "2014-01-22T01:00:00", "2014-01-22T02:30:00");
+        assertNextRun("30 2 * * *", "2014-01-22T02:30:00", "2014-01-23T02:30:00");
+        assertNextRun("30 2 * * *", "2014-12-31T23:59:00", "2015-01-01T02:30:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldSupportListsRangesAndSteps() throws Exception {
+        assertNextRun("*/15 * * * *", "2014-01-22T10:16:00", "2014-01-22T10:30:00");
+        assertNextRun("0,20 9-17/4 * * *", "2014-01-22T09:20:00", "2014-01-22T13:00:00");
+        assertNextRun("0 9 * * 1-5", "2014-01-24T09:00:00", "2014-01-27T09:00:00"); //friday to monday
+        assertNextRun("0 0 1 */3 *", "2014-01-22T00:00:00", "2014-04-01T00:00:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldTreatSevenAsSunday() throws Exception {
+        assertNextRun("0 0 * * 7", "2014-01-22T00:00:00", "2014-01-26T00:00:00");
+        assertNextRun("0 0 * * 0", "2014-01-22T00:00:00", "2014-01-26T00:00:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldMatchEitherDay_whenTheDayOfMonthAndDayOfWeekAreBothRestricted() throws Exception {
+        assertNextRun("0 0 25 * 0", "2014-01-22T00:00:00", "2014-01-25T00:00:00");
+        assertNextRun("0 0 28 * 0", "2014-01-22T00:00:00", "2014-01-26T00:00:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldFindTheNextLeapDay() throws Exception {
+        assertNextRun("0 0 29 2 *", "2014-01-22T00:00:00", "2016-02-29T00:00:00");
+    }
+
+    @Test
+    public void nextRunAfter_shouldSkipATimeThatDoesNotExist_becauseTheClocksGoForward() throws Exception {
+        //in London, 01:30 on 30 March 2014 never happened
+        assertNextRun("30 1 * * *", "2014-03-29T12:00:00", "2014-03-31T01:30:00");
+    }
+
+    @Test
+    public void constructor_shouldThrowAnIllegalArgumentException_givenAnInvalidExpression() throws Exception {
+        assertInvalid("* * * *", "expected five fields (minute hour day-of-month month day-of-week) but found 4");
+        assertInvalid("60 * * * *", "the minute 60 is not between 0 and 59");
+        assertInvalid("* * 0 * *", "the day of month 0 is not between 1 and 31");
+        assertInvalid("* 5-2 * * *", "the hour range 5-2 runs backwards");
+        assertInvalid("* * * jan *", "the month field contains jan, which is not a number");
+        assertInvalid("1,,2 * * * *", "the minute field contains an empty value, which is not a number");
+        assertInvalid("0 0 30 2 *", "it never matches a date");
+    }
+
+    private void assertNextRun(String expression, String after, String expected) {
+        long next = new CronSchedule(expression).nextRunAfter(new DateTime(after).getMillis());
+        assertEquals(new DateTime(expected), new DateTime(next));
+    }
+
+    private void assertInvalid(String expression, String expectedMessage) {
+        try {
+            new CronSchedule(expression);
+            fail("Expected an exception for " + expression);
+        } catch (IllegalArgumentException e) {
+            assertEquals(expectedMessage, e.getMessage());
+        }
+    }
+}
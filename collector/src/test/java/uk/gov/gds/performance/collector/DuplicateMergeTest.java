@@ -0,0 +1,187 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DuplicateMergeTest {
+    private static final LocalDate JAN_22 = new LocalDate("2014-01-22");
+    private static final LocalDate JAN_23 = new LocalDate("2014-01-23");
+
+    private final RecordingSink downstream = new RecordingSink();
+
+    @Test
+    public void finish_shouldAddUpTheCountsOfEachRecord_whenSumming() throws Exception {
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.SUM).decorate(downstream);
+
+        acceptInBatchesOfTwo(sink,
+                new StageResult(JAN_22, Period.day, "DIGITAL", 10),
+                new StageResult(JAN_22, Period.day, "PAPER", 1),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 5),
+                new StageResult(JAN_22, Period.week, "DIGITAL", 7),
+                new StageResult(JAN_23, Period.day, "DIGITAL", 3),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 2));
+        assertTrue(downstream.results.isEmpty());
+        sink.finish();
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-01-22 day DIGITAL", 17);
+        expected.put("2014-01-22 day PAPER", 1);
+        expected.put("2014-01-22 week DIGITAL", 7);
+        expected.put("2014-01-23 day DIGITAL", 3);
+        assertEquals(expected, downstream.results);
+        assertTrue(downstream.finished);
+    }
+
+    @Test
+    public void finish_shouldKeepTheCountOfTheLastRowOfEachRecord_whenKeepingTheLast() throws Exception {
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.LAST).decorate(downstream);
+
+        acceptInBatchesOfTwo(sink,
+                new StageResult(JAN_22, Period.day, "DIGITAL", 10),
+                new StageResult(JAN_22, Period.day, "PAPER", 1),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 5),
+                new StageResult(JAN_22, Period.day, "PAPER", 0));
+        sink.finish();
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-01-22 day DIGITAL", 5);
+        expected.put("2014-01-22 day PAPER", 0);
+        assertEquals(expected, downstream.results);
+    }
+
+    @Test
+    public void finish_shouldKeepTheLargestCountOfEachRecord_whenKeepingTheLargest() throws Exception {
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.MAX).decorate(downstream);
+
+        acceptInBatchesOfTwo(sink,
+                new StageResult(JAN_22, Period.day, "DIGITAL", 10),
+                new StageResult(JAN_22, Period.day, "PAPER", -3),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 50),
+                new StageResult(JAN_22, Period.day, "PAPER", -5),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 20));
+        sink.finish();
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-01-22 day DIGITAL", 50);
+        expected.put("2014-01-22 day PAPER", -3);
+        assertEquals(expected, downstream.results);
+    }
+
+    @Test
+    public void finish_shouldPassOnTheMergedRecordsInBatchesNoLargerThanTheOnesItWasGiven() throws Exception {
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.SUM).decorate(downstream);
+
+        acceptInBatchesOfTwo(sink,
+                new StageResult(JAN_22, Period.day, "A", 1),
+                new StageResult(JAN_22, Period.day, "B", 1),
+                new StageResult(JAN_22, Period.day, "C", 1),
+                new StageResult(JAN_22, Period.day, "D", 1),
+                new StageResult(JAN_22, Period.day, "E", 1));
+        sink.finish();
+
+        assertEquals(5, downstream.results.size());
+        assertEquals(3, downstream.batches);
+    }
+
+    @Test
+    public void finish_shouldOnlyFinishTheDownstreamSink_whenNothingWasRead() throws Exception {
+        StageResultSink mockSink = mock(StageResultSink.class);
+
+        new DuplicateMerge(DuplicateMerge.Policy.SUM).decorate(mockSink).finish();
+
+        verify(mockSink).finish();
+        verifyNoMoreInteractions(mockSink);
+    }
+
+    @Test
+    public void finish_shouldPassOnTheRecordsBeforeFinishingTheDownstreamSink() throws Exception {
+        StageResultSink mockSink = mock(StageResultSink.class);
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.LAST).decorate(mockSink);
+
+        sink.accept(StageResultBatch.of(Arrays.asList(new StageResult(JAN_22, Period.day, "DIGITAL", 1))));
+        sink.finish();
+
+        InOrder inOrder = inOrder(mockSink);
+        inOrder.verify(mockSink).accept(any(StageResultBatch.class));
+        inOrder.verify(mockSink).finish();
+    }
+
+    @Test
+    public void finish_shouldThrowAnIllegalStateException_whenASumIsTooLargeToPublish() throws Exception {
+        StageResultSink sink = new DuplicateMerge(DuplicateMerge.Policy.SUM).decorate(downstream);
+        acceptInBatchesOfTwo(sink,
+                new StageResult(JAN_22, Period.day, "DIGITAL", Integer.MAX_VALUE),
+                new StageResult(JAN_22, Period.day, "DIGITAL", 1));
+
+        try {
+            sink.finish();
+            fail("expected an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("the merged count of 2147483648 for the day from 2014-01-22 for DIGITAL is too large to publish", e.getMessage());
+        }
+        assertFalse(downstream.finished);
+    }
+
+    @Test
+    public void decorate_shouldStartEachRunWithNoCounts() throws Exception {
+        DuplicateMerge merge = new DuplicateMerge(DuplicateMerge.Policy.SUM);
+        StageResultSink first = merge.decorate(mock(StageResultSink.class));
+        acceptInBatchesOfTwo(first, new StageResult(JAN_22, Period.day, "DIGITAL", 10));
+        first.finish();
+
+        StageResultSink second = merge.decorate(downstream);
+        acceptInBatchesOfTwo(second, new StageResult(JAN_22, Period.day, "DIGITAL", 4));
+        second.finish();
+
+        assertEquals(Integer.valueOf(4), downstream.results.get("2014-01-22 day DIGITAL"));
+    }
+
+    private static void acceptInBatchesOfTwo(StageResultSink sink, StageResult... results) throws IOException {
+        //reusing the batch as the repository does
+        StageResultBatch batch = new StageResultBatch(new ChannelDictionary(), 2);
+        for (StageResult result : results) {
+            batch.add(result);
+            if (batch.isFull()) {
+                sink.accept(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            sink.accept(batch);
+        }
+    }
+
+    private static class RecordingSink implements StageResultSink {
+        private final Map<String, Integer> results = new HashMap<>();
+        private int batches = 0;
+        private boolean finished = false;
+
+        @Override
+        public void accept(StageResultBatch batch) {
+            assertTrue(batch.size() <= 2);
+            batches++;
+            for (int i = 0; i < batch.size(); i++) {
+                String key = batch.getTimestamp(i) + " " + batch.getPeriod(i) + " " + batch.getChannel(i);
+                assertFalse("published twice: " + key, results.containsKey(key));
+                results.put(key, batch.getCount(i));
+            }
+        }
+
+        @Override
+        public void finish() {
+            finished = true;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,28 @@
+package uk.gov.gds.performance.collector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpConnectionPoolTest {
+
+    @Test
+    public void constructor_shouldConfigureTheSizeOfThePool() throws Exception {
+        try (HttpConnectionPool pool = new HttpConnectionPool(12, 7, 30)) {
+            assertEquals(12, pool.getMaxTotal());
+            assertEquals(7, pool.getMaxPerRoute());
+        }
+    }
+
+    @Test
+    public void close_shouldStopTheIdleConnectionEvictor() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool(1, 1, 30);
+        assertFalse(pool.isClosed());
+
+        pool.close();
+
+        assertTrue(pool.isClosed());
+    }
+}
@@ -0,0 +1,109 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class IncrementalCollectionTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
+
+    private final StageResultSink downstream = mock(StageResultSink.class);
+
+    @Test
+    public void constructor_shouldHaveNoCommittedMark_whenThereIsNoStateFile() throws Exception {
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", tempFiles.createTempFileThatDoesNotExist("properties"));
+
+        assertNull(incremental.getCommittedMark());
+    }
+
+    @Test
+    public void constructor_shouldThrowAnIllegalArgumentException_givenAColumnNameThatIsNotAnIdentifier() throws Exception {
+        try {
+            new IncrementalCollection("LOAD_ID; drop table PP_DATA", tempFiles.createTempFileThatDoesNotExist("properties"));
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid high water mark column name LOAD_ID; drop table PP_DATA", e.getMessage());
+        }
+    }
+
+    @Test
+    public void finish_shouldSaveTheLargestObservedMark_afterTheDownstreamSinkHasFinished() throws Exception {
+        File stateFile = tempFiles.createTempFileThatDoesNotExist("properties");
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", stateFile);
+        StageResultSink sink = incremental.decorate(downstream);
+
+        incremental.observe(HighWaterMark.fromColumnValue(3));
+        incremental.observe(HighWaterMark.fromColumnValue(7L));
+        incremental.observe(HighWaterMark.fromColumnValue(5));
+        assertFalse(stateFile.exists());
+        sink.finish();
+
+        verify(downstream).finish();
+        assertEquals(HighWaterMark.fromColumnValue(7), incremental.getCommittedMark());
+        assertEquals(HighWaterMark.fromColumnValue(7), new IncrementalCollection("LOAD_ID", stateFile).getCommittedMark());
+    }
+
+    @Test
+    public void finish_shouldSaveATimestampMarkWithoutLosingPrecision() throws Exception {
+        File stateFile = tempFiles.createTempFileThatDoesNotExist("properties");
+        IncrementalCollection incremental = new IncrementalCollection("LOADED_AT", stateFile);
+        Timestamp loadedAt = Timestamp.valueOf("2014-01-22 10:15:30.123456789");
+
+        StageResultSink sink = incremental.decorate(downstream);
+        incremental.observe(HighWaterMark.fromColumnValue(loadedAt));
+        sink.finish();
+
+        assertEquals(HighWaterMark.fromColumnValue(loadedAt), new IncrementalCollection("LOADED_AT", stateFile).getCommittedMark());
+    }
+
+    @Test
+    public void finish_shouldNotSaveTheMark_whenTheDownstreamSinkFails() throws Exception {
+        File stateFile = tempFiles.createTempFileThatDoesNotExist("properties");
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", stateFile);
+        doThrow(new IOException("expected")).when(downstream).finish();
+
+        StageResultSink sink = incremental.decorate(downstream);
+        incremental.observe(HighWaterMark.fromColumnValue(7));
+        try {
+            sink.finish();
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals("expected", e.getMessage());
+        }
+
+        assertNull(incremental.getCommittedMark());
+        assertFalse(stateFile.exists());
+    }
+
+    @Test
+    public void decorate_shouldForgetMarksObservedInAnEarlierRunThatWasNotFinished() throws Exception {
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", tempFiles.createTempFileThatDoesNotExist("properties"));
+
+        incremental.decorate(downstream);
+        incremental.observe(HighWaterMark.fromColumnValue(7));
+        StageResultSink sink = incremental.decorate(downstream);
+        incremental.observe(HighWaterMark.fromColumnValue(4));
+        sink.finish();
+
+        assertEquals(HighWaterMark.fromColumnValue(4), incremental.getCommittedMark());
+    }
+
+    @Test
+    public void decorate_shouldPassResultsStraightThroughToTheDownstreamSink() throws Exception {
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", tempFiles.createTempFileThatDoesNotExist("properties"));
+        StageResultBatch batch = StageResultBatch.of(Collections.singletonList(new StageResult(new LocalDate("2014-01-22"), Period.day, "DIGITAL", 52)));
+
+        incremental.decorate(downstream).accept(batch);
+
+        verify(downstream).accept(batch);
+    }
+}
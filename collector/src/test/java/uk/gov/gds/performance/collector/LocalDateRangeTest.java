@@ -3,6 +3,8 @@ package uk.gov.gds.performance.collector;
 import org.joda.time.LocalDate;
 import org.junit.Test;
 
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mutabilitydetector.unittesting.AllowedReason.provided;
@@ -61,4 +63,43 @@ public class LocalDateRangeTest {
         assertEquals(startDate, range.getStartDate());
         assertEquals(endDate, range.getEndDate());
     }
+
+    @Test
+    public void split_shouldReturnConsecutiveRangesOfTheGivenLength_withAShorterFinalRange() throws Exception {
+        LocalDateRange range = new LocalDateRange(new LocalDate("2014-01-01"), new LocalDate("2014-01-08"));
+
+        List<LocalDateRange> result = range.split(3);
+
+        assertEquals(3, result.size());
+        assertRange("2014-01-01", "2014-01-03", result.get(0));
+        assertRange("2014-01-04", "2014-01-06", result.get(1));
+        assertRange("2014-01-07", "2014-01-08", result.get(2));
+    }
+
+    @Test
+    public void split_shouldReturnASingleRange_whenTheRangeIsShorterThanTheGivenLength() throws Exception {
+        LocalDateRange range = new LocalDateRange(new LocalDate("2014-01-01"), new LocalDate("2014-01-01"));
+
+        List<LocalDateRange> result = range.split(7);
+
+        assertEquals(1, result.size());
+        assertRange("2014-01-01", "2014-01-01", result.get(0));
+    }
+
+    @Test
+    public void split_shouldThrowAnIllegalArgumentException_givenALengthLessThanOne() throws Exception {
+        LocalDateRange range = new LocalDateRange(new LocalDate("2014-01-01"), new LocalDate("2014-01-08"));
+
+        try {
+            range.split(0);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("daysPerRange must be at least 1", e.getMessage());
+        }
+    }
+
+    private void assertRange(String expectedStart, String expectedEnd, LocalDateRange actual) {
+        assertEquals(new LocalDate(expectedStart), actual.getStartDate());
+        assertEquals(new LocalDate(expectedEnd), actual.getEndDate());
+    }
 }
@@ -0,0 +1,76 @@
+package uk.gov.gds.performance.collector;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongLongHashMapTest {
+    private final LongLongHashMap map = new LongLongHashMap();
+
+    @Test
+    public void get_shouldReturnTheDefault_whenTheKeyIsNotInTheMap() throws Exception {
+        assertEquals(-1, map.get(42, -1));
+        assertFalse(map.containsKey(42));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void put_shouldReplaceTheValue_andReturnThePreviousOne() throws Exception {
+        assertEquals(-1, map.put(0, 10, -1));
+        assertEquals(10, map.put(0, 20, -1));
+
+        assertEquals(20, map.get(0, -1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void addTo_shouldStartFromZero_andAddToTheValueAfterThat() throws Exception {
+        assertEquals(5, map.addTo(Long.MAX_VALUE, 5));
+        assertEquals(12, map.addTo(Long.MAX_VALUE, 7));
+
+        assertEquals(12, map.get(Long.MAX_VALUE, -1));
+    }
+
+    @Test
+    public void shouldKeepEveryEntry_asTheMapGrows() throws Exception {
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            //keys that differ only in their low bits, as packed keys mostly do, as well as random ones
+            long key = i % 2 == 0 ? StageResultBatch.keyOf(i % 400, Period.day, i % 7) : random.nextLong();
+            long amount = random.nextInt(1000);
+            map.addTo(key, amount);
+            Long previous = expected.get(key);
+            expected.put(key, previous == null ? amount : previous + amount);
+        }
+
+        assertEquals(expected.size(), map.size());
+        int entries = 0;
+        for (int slot = map.nextSlot(0); slot >= 0; slot = map.nextSlot(slot + 1)) {
+            assertEquals(expected.get(map.keyAt(slot)).longValue(), map.valueAt(slot));
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+
+    @Test
+    public void clear_shouldRemoveEveryEntry() throws Exception {
+        map.addTo(1, 1);
+        map.addTo(2, 2);
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(1));
+        assertEquals(-1, map.nextSlot(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addTo_shouldRejectTheKeyThatMarksAnEmptySlot() throws Exception {
+        map.addTo(Long.MIN_VALUE, 1);
+    }
+}
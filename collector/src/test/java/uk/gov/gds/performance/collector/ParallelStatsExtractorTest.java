@@ -0,0 +1,157 @@
+package uk.gov.gds.performance.collector;
+
+import org.hsqldb.cmdline.SqlFile;
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ParallelStatsExtractorTest {
+
+    private Connection conn;
+    private DataSource dataSource;
+
+    @Before
+    public void initDatabase() throws Exception {
+        Properties props = new Properties();
+        props.load(this.getClass().getResourceAsStream("/unittest-db.properties"));
+        JDBCDataSource jdbcDataSource = new JDBCDataSource();
+        jdbcDataSource.setUrl(props.getProperty("jdbc.url"));
+        jdbcDataSource.setUser(props.getProperty("username"));
+        jdbcDataSource.setPassword(props.getProperty("password"));
+        dataSource = jdbcDataSource;
+        conn = dataSource.getConnection();
+        SqlFile sqlFile = new SqlFile(new File(getClass().getResource("/test.sql").getFile()));
+        sqlFile.setConnection(conn);
+        sqlFile.execute();
+        sqlFile.closeReader();
+        conn.commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("drop table PP_DATA");
+        }
+        conn.close();
+    }
+
+    @Test
+    public void streamStatsBetween_shouldReadEveryPartitionOfTheDateRange() throws Exception {
+        ParallelStatsExtractor extractor = new ParallelStatsExtractor(new StatsRepository(dataSource, 10), 3, 1);
+        CollectingSink sink = new CollectingSink();
+
+        int rowsRead = extractor.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-20"), new LocalDate("2014-01-26")), sink);
+
+        assertEquals(18, rowsRead);
+        assertEquals(18, sink.results.size());
+        Set<LocalDate> days = new HashSet<>();
+        for (StageResult result : sink.results) {
+            days.add(result.getTimestamp());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(new LocalDate("2014-01-22"), new LocalDate("2014-01-23"), new LocalDate("2014-01-25"))), days);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldReadTheSameRowsAsASingleQuery() throws Exception {
+        LocalDateRange range = new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23"));
+        List<StageResult> expected = new StatsRepository(dataSource).findStatsBetween(range);
+        CollectingSink sink = new CollectingSink();
+
+        new ParallelStatsExtractor(new StatsRepository(dataSource, 10), 2, 1).streamStatsBetween(range, sink);
+
+        assertEquals(expected.size(), sink.results.size());
+    }
+
+    @Test
+    public void streamStatsBetween_shouldRethrowTheSQLException_whenAPartitionCannotBeRead() throws Exception {
+        DataSource brokenDataSource = mock(DataSource.class);
+        SQLException expectedException = new SQLException("expected!");
+        when(brokenDataSource.getConnection()).thenThrow(expectedException);
+        ParallelStatsExtractor extractor = new ParallelStatsExtractor(new StatsRepository(brokenDataSource, 10), 2, 1);
+
+        try {
+            extractor.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-25")), new CollectingSink());
+            fail("Expected an exception to be thrown");
+        } catch (SQLException e) {
+            assertSame(expectedException, e);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void streamStatsBetween_shouldRethrowTheFirstFailure_afterTheOtherPartitionsHaveStopped() throws Exception {
+        StatsRepository repository = mock(StatsRepository.class);
+        final CountDownLatch slowPartitionStarted = new CountDownLatch(1);
+        final AtomicBoolean slowPartitionStopped = new AtomicBoolean(false);
+        final SQLException expectedException = new SQLException("expected!");
+        when(repository.streamStatsBetween(any(LocalDateRange.class), any(StageResultSink.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                LocalDateRange partition = (LocalDateRange) invocation.getArguments()[0];
+                if (partition.getStartDate().equals(new LocalDate("2014-01-23"))) {
+                    slowPartitionStarted.await();
+                    throw expectedException;
+                }
+                try {
+                    slowPartitionStarted.countDown();
+                    new CountDownLatch(1).await(); //until interrupted
+                    return 0;
+                } finally {
+                    slowPartitionStopped.set(true);
+                }
+            }
+        });
+        ParallelStatsExtractor extractor = new ParallelStatsExtractor(repository, 2, 1);
+
+        try {
+            extractor.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23")), new CollectingSink());
+            fail("Expected an exception to be thrown");
+        } catch (SQLException e) {
+            assertSame(expectedException, e);
+        }
+        assertTrue(slowPartitionStopped.get());
+    }
+
+    private static class CollectingSink implements StageResultSink {
+        private final List<StageResult> results = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void accept(StageResultBatch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                results.add(batch.get(i));
+            }
+        }
+
+        @Override
+        public void finish() {
+            fail("the extractor should leave finishing the sink to the caller");
+        }
+
+        @Override
+        public void close() {
+            fail("the extractor should leave closing the sink to the caller");
+        }
+    }
+}
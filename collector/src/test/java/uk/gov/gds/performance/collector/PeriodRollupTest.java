@@ -0,0 +1,204 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class PeriodRollupTest {
+    private final StatsSource source = mock(StatsSource.class);
+    private final RecordingSink sink = new RecordingSink();
+
+    @Test
+    public void streamStatsBetween_shouldReadFromTheStartOfTheLongestPeriod() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.week, Period.month));
+        when(source.streamStatsBetween(any(LocalDateRange.class), any(StageResultSink.class))).thenReturn(0);
+
+        rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-24")), sink);
+
+        verify(source).streamStatsBetween(argThat(isRange("2014-01-01", "2014-01-24")), any(StageResultSink.class));
+    }
+
+    @Test
+    public void streamStatsBetween_shouldPublishTheTotalOfEachWeekAndChannel_alongWithTheDaysInTheRange() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.week));
+        //Monday the 20th to Wednesday the 22nd of January 2014 are read, but only the 22nd was asked for
+        whenTheSourceIsReadReturn(
+                new StageResult(new LocalDate("2014-01-20"), Period.day, "DIGITAL", 10),
+                new StageResult(new LocalDate("2014-01-21"), Period.day, "DIGITAL", 20),
+                new StageResult(new LocalDate("2014-01-22"), Period.day, "DIGITAL", 30),
+                new StageResult(new LocalDate("2014-01-22"), Period.day, "PAPER", 4));
+
+        int rowsRead = rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-22")), sink);
+
+        assertEquals(4, rowsRead);
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-01-22 day DIGITAL", 30);
+        expected.put("2014-01-22 day PAPER", 4);
+        expected.put("2014-01-20 week DIGITAL", 60);
+        expected.put("2014-01-20 week PAPER", 4);
+        assertEquals(expected, sink.results);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldPublishMonthAndQuarterTotals_startingOnTheFirstOfTheMonth() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.month, Period.quarter));
+        whenTheSourceIsReadReturn(
+                new StageResult(new LocalDate("2014-04-01"), Period.day, "DIGITAL", 1),
+                new StageResult(new LocalDate("2014-05-31"), Period.day, "DIGITAL", 2),
+                new StageResult(new LocalDate("2014-06-02"), Period.day, "DIGITAL", 4));
+
+        rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-06-01"), new LocalDate("2014-06-02")), sink);
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-06-02 day DIGITAL", 4);
+        expected.put("2014-06-01 month DIGITAL", 4);
+        expected.put("2014-04-01 quarter DIGITAL", 7);
+        assertEquals(expected, sink.results);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldOnlyPublishPeriodsThatWereReadFromTheirFirstDay() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.week, Period.month));
+        //reading starts on Saturday the 1st of February, so the week that began on Monday the 27th of January is partial
+        whenTheSourceIsReadReturn(
+                new StageResult(new LocalDate("2014-02-01"), Period.day, "DIGITAL", 1),
+                new StageResult(new LocalDate("2014-02-03"), Period.day, "DIGITAL", 2));
+
+        rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-02-03"), new LocalDate("2014-02-03")), sink);
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-02-03 day DIGITAL", 2);
+        expected.put("2014-02-03 week DIGITAL", 2);
+        expected.put("2014-02-01 month DIGITAL", 3);
+        assertEquals(expected, sink.results);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldDropRowsForPeriodsThatAreRolledUp_andPassOnOtherPeriodsInTheRange() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.week));
+        whenTheSourceIsReadReturn(
+                new StageResult(new LocalDate("2014-01-20"), Period.week, "DIGITAL", 1000),
+                new StageResult(new LocalDate("2014-01-01"), Period.month, "DIGITAL", 5000),
+                new StageResult(new LocalDate("2014-01-20"), Period.month, "DIGITAL", 6000),
+                new StageResult(new LocalDate("2014-01-22"), Period.hour, "DIGITAL", 3),
+                new StageResult(new LocalDate("2014-01-22"), Period.day, "DIGITAL", 30));
+
+        rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-22")), sink);
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("2014-01-22 hour DIGITAL", 3);
+        expected.put("2014-01-22 day DIGITAL", 30);
+        expected.put("2014-01-20 week DIGITAL", 30);
+        assertEquals(expected, sink.results);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldPassOnBatchesUnchanged_whenEveryRowIsInTheRange() throws Exception {
+        PeriodRollup rollup = new PeriodRollup(source, EnumSet.of(Period.week));
+        final StageResultBatch batch = StageResultBatch.of(Arrays.asList(new StageResult(new LocalDate("2014-01-20"), Period.day, "DIGITAL", 10)));
+        when(source.streamStatsBetween(any(LocalDateRange.class), any(StageResultSink.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                ((StageResultSink) invocation.getArguments()[1]).accept(batch);
+                return 1;
+            }
+        });
+        StageResultSink downstream = mock(StageResultSink.class);
+
+        rollup.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-20"), new LocalDate("2014-01-20")), downstream);
+
+        verify(downstream).accept(same(batch));
+        verify(downstream, never()).finish();
+    }
+
+    @Test
+    public void startOfAndEndOf_shouldFollowTheCalendar() throws Exception {
+        int leapDay = StageResultBatch.toEpochDay(new LocalDate("2016-02-29"));
+
+        assertEquals(new LocalDate("2016-02-29"), dateOf(PeriodRollup.startOf(Period.week, leapDay)));
+        assertEquals(new LocalDate("2016-03-06"), dateOf(PeriodRollup.endOf(Period.week, leapDay)));
+        assertEquals(new LocalDate("2016-02-01"), dateOf(PeriodRollup.startOf(Period.month, leapDay)));
+        assertEquals(new LocalDate("2016-02-29"), dateOf(PeriodRollup.endOf(Period.month, PeriodRollup.startOf(Period.month, leapDay))));
+        assertEquals(new LocalDate("2016-01-01"), dateOf(PeriodRollup.startOf(Period.quarter, leapDay)));
+        assertEquals(new LocalDate("2016-03-31"), dateOf(PeriodRollup.endOf(Period.quarter, PeriodRollup.startOf(Period.quarter, leapDay))));
+        assertEquals(new LocalDate("1969-12-29"), dateOf(PeriodRollup.startOf(Period.week, 0)));
+        assertEquals(new LocalDate("1969-10-01"), dateOf(PeriodRollup.startOf(Period.quarter, -1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_shouldRejectDays() throws Exception {
+        new PeriodRollup(source, EnumSet.of(Period.week, Period.day));
+    }
+
+    private static LocalDate dateOf(int epochDay) {
+        StageResultBatch batch = new StageResultBatch(new ChannelDictionary(), 1);
+        batch.add(epochDay, Period.day, 0, 0);
+        return batch.getTimestamp(0);
+    }
+
+    private void whenTheSourceIsReadReturn(final StageResult... results) throws Exception {
+        when(source.streamStatsBetween(any(LocalDateRange.class), any(StageResultSink.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                StageResultSink rollupSink = (StageResultSink) invocation.getArguments()[1];
+                //two rows at a time, reusing the batch as the repository does
+                StageResultBatch batch = new StageResultBatch(new ChannelDictionary(), 2);
+                for (StageResult result : results) {
+                    batch.add(result);
+                    if (batch.isFull()) {
+                        rollupSink.accept(batch);
+                        batch.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    rollupSink.accept(batch);
+                }
+                return results.length;
+            }
+        });
+    }
+
+    private static org.hamcrest.Matcher<LocalDateRange> isRange(final String start, final String end) {
+        return new org.mockito.ArgumentMatcher<LocalDateRange>() {
+            @Override
+            public boolean matches(Object argument) {
+                LocalDateRange range = (LocalDateRange) argument;
+                return range.getStartDate().equals(new LocalDate(start)) && range.getEndDate().equals(new LocalDate(end));
+            }
+        };
+    }
+
+    private static class RecordingSink implements StageResultSink {
+        private final Map<String, Integer> results = new HashMap<>();
+
+        @Override
+        public void accept(StageResultBatch batch) throws IOException {
+            for (int i = 0; i < batch.size(); i++) {
+                String key = batch.getTimestamp(i) + " " + batch.getPeriod(i) + " " + batch.getChannel(i);
+                assertFalse("published twice: " + key, results.containsKey(key));
+                results.put(key, batch.getCount(i));
+            }
+        }
+
+        @Override
+        public void finish() {
+            fail("a source should not finish the sink");
+        }
+
+        @Override
+        public void close() {
+            fail("a source should not close the sink");
+        }
+    }
+}
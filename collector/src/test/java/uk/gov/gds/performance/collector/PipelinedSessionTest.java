@@ -0,0 +1,142 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
+
+public class PipelinedSessionTest {
+    private final WebTarget webTarget = mock(WebTarget.class);
+    private final Invocation.Builder requestBuilder = mock(Invocation.Builder.class);
+    private final Invocation invocation = mock(Invocation.class);
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
+    private final List<byte[]> bodies = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setup() {
+        doReturn(requestBuilder).when(webTarget).request();
+        when(requestBuilder.buildPost(isA(Entity.class))).thenAnswer(new Answer<Invocation>() {
+            @Override
+            public Invocation answer(InvocationOnMock call) throws Throwable {
+                bodies.add(StatsPublisherTest.bytesOf((Entity<?>) call.getArguments()[0]));
+                return invocation;
+            }
+        });
+    }
+
+    @Test
+    public void openSession_shouldReturnAPipelinedSession_whenThereAreSerializerThreads() throws Exception {
+        StatsPublisher.Session session = publisher(2, 3, 2).openSession();
+        try {
+            assertTrue(session instanceof PipelinedSession);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void finish_shouldPublishEveryRecordOnce_inBatchesNoBiggerThanTheLimit() throws Exception {
+        StatsPublisher.Session session = publisher(2, 3, 2).openSession();
+        StageResultBatch batch = new StageResultBatch(new ChannelDictionary(), 3);
+        int records = 0;
+        for (int i = 0; i < 10; i++) {
+            batch.clear();
+            for (int j = 0; j < 3; j++) {
+                batch.add(new StageResult(new LocalDate("2014-01-01").plusDays(records), Period.day, "DIGITAL", records++));
+            }
+            //the batch is reused at once, as the repository does
+            session.accept(batch);
+        }
+        session.finish();
+
+        assertEquals(30, session.getPublishedCount());
+        Set<Integer> counts = new HashSet<>();
+        for (byte[] body : bodies) {
+            JsonArray array = Json.createReader(new ByteArrayInputStream(body)).readArray();
+            assertTrue(array.size() <= 3);
+            for (int i = 0; i < array.size(); i++) {
+                counts.add(array.getJsonObject(i).getInt("count"));
+            }
+        }
+        assertEquals(30, counts.size());
+    }
+
+    @Test
+    public void finish_shouldLogTheQueueDepthsAndStageTimings() throws Exception {
+        StatsPublisher.Session session = publisher(1, 1, 1).openSession();
+        session.accept(StageResultBatch.of(buildStageResults(4)));
+        session.finish();
+
+        verify(logger).log(eq(CollectorLogMessage.PipelineQueueDepth), eq("batch"), anyInt(), eq(1), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.PipelineQueueDepth), eq("request body"), anyInt(), eq(1), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.PipelineStageTimings), eq("read"), eq(4L), anyLong(), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.PipelineStageTimings), eq("serialize"), eq(4L), anyLong(), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.PipelineStageTimings), eq("publish"), eq(4L), anyLong(), anyLong());
+    }
+
+    @Test
+    public void finish_shouldThrowAnApplicationException_whenARequestFails() throws Exception {
+        InternalServerErrorException expectedException = new InternalServerErrorException();
+        when(invocation.invoke(String.class)).thenThrow(expectedException);
+        StatsPublisher.Session session = publisher(2, 2, 2).openSession();
+
+        session.accept(StageResultBatch.of(buildStageResults(3)));
+        try {
+            session.finish();
+            fail("Expected an exception");
+        } catch (ApplicationException e) {
+            verify(logger, atLeastOnce()).log(eq(CollectorLogMessage.BatchPublishFailed), same(expectedException), anyInt(), anyInt());
+        }
+    }
+
+    @Test
+    public void accept_shouldThrowTheFirstFailure_ratherThanBlockForever_onceAStageHasFailed() throws Exception {
+        when(invocation.invoke(String.class)).thenThrow(new InternalServerErrorException());
+        StatsPublisher.Session session = publisher(1, 1, 1).openSession();
+        StageResultBatch batch = StageResultBatch.of(buildStageResults(1));
+
+        try {
+            for (int i = 0; i < 1000; i++) {
+                session.accept(batch);
+            }
+            fail("Expected an exception");
+        } catch (ApplicationException e) {
+            //expected
+        } finally {
+            session.close();
+        }
+    }
+
+    private StatsPublisher publisher(int maxRecordsPerRequest, int publisherThreads, int serializerThreads) {
+        return new StatsPublisher(webTarget, new StageResultToJsonConverter(), maxRecordsPerRequest, Integer.MAX_VALUE,
+                publisherThreads, serializerThreads, 1, logger);
+    }
+
+    private List<StageResult> buildStageResults(int resultsToBuild) {
+        List<StageResult> results = new ArrayList<>();
+        for (int i = 0; i < resultsToBuild; i++) {
+            results.add(new StageResult(new LocalDate("2014-01-22"), Period.day, "DIGITAL" + i, i));
+        }
+        return results;
+    }
+}
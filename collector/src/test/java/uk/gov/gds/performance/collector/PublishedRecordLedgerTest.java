@@ -0,0 +1,231 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.LocalDate;
+import org.junit.Rule;
+import org.junit.Test;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
+
+public class PublishedRecordLedgerTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
+
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
+    private final StageResultToJsonConverter converter = new StageResultToJsonConverter();
+
+    @Test
+    public void decorate_shouldPassEveryRecordThrough_whenTheLedgerIsEmpty() throws Exception {
+        PublishedRecordLedger ledger = new PublishedRecordLedger(tempFiles.createTempFileThatDoesNotExist("ledger"), converter, logger);
+
+        List<StageResult> published = run(ledger, result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "PAPER", 12));
+
+        assertEquals(2, published.size());
+        assertEquals(2, ledger.size());
+    }
+
+    @Test
+    public void decorate_shouldSkipRecordsThatHaveNotChangedSinceAnEarlierRun() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        run(new PublishedRecordLedger(file, converter, logger), result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "PAPER", 12));
+
+        PublishedRecordLedger ledger = new PublishedRecordLedger(file, converter, logger);
+        List<StageResult> published = run(ledger,
+                result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "PAPER", 13), result("2014-01-23", "PAPER", 5));
+
+        assertEquals(2, published.size());
+        assertEquals(13, published.get(0).getCount());
+        assertEquals(new LocalDate("2014-01-23"), published.get(1).getTimestamp());
+        assertEquals(3, ledger.size());
+        verify(logger).log(CollectorLogMessage.UnchangedRecordsSkipped, 1);
+    }
+
+    @Test
+    public void decorate_shouldPublishEveryRowSharingAnId_whenTheyDifferFromOneAnother() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        run(new PublishedRecordLedger(file, converter, logger), result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "DIGITAL", 20));
+
+        List<StageResult> published = run(new PublishedRecordLedger(file, converter, logger),
+                result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "DIGITAL", 20));
+
+        //the platform keeps the last of them, so skipping the second would leave it holding the first
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    public void finish_shouldNotUpdateTheLedger_whenTheDownstreamSinkFails() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        PublishedRecordLedger ledger = new PublishedRecordLedger(file, converter, logger);
+        StageResultSink failingSink = mock(StageResultSink.class);
+        doThrow(new IOException("expected")).when(failingSink).finish();
+
+        StageResultSink sink = ledger.decorate(failingSink);
+        sink.accept(StageResultBatch.of(Collections.singletonList(result("2014-01-22", "DIGITAL", 52))));
+        try {
+            sink.finish();
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals("expected", e.getMessage());
+        }
+
+        assertEquals(0, ledger.size());
+        assertFalse(file.exists());
+        assertEquals(1, run(new PublishedRecordLedger(file, converter, logger), result("2014-01-22", "DIGITAL", 52)).size());
+    }
+
+    @Test
+    public void decorate_shouldFindEveryRecord_inALargeLedger() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        List<StageResult> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            results.add(result(new LocalDate("2014-01-01").plusDays(i).toString(), "DIGITAL", i));
+        }
+        run(new PublishedRecordLedger(file, converter, logger), results.toArray(new StageResult[results.size()]));
+
+        List<StageResult> published = run(new PublishedRecordLedger(file, converter, logger), results.toArray(new StageResult[results.size()]));
+
+        assertEquals(0, published.size());
+        verify(logger).log(CollectorLogMessage.UnchangedRecordsSkipped, 1000);
+    }
+
+    @Test
+    public void finish_shouldMergeEveryRunOfChanges_whenMoreChangeThanTheBufferHolds() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        List<StageResult> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(result(new LocalDate("2014-01-01").plusDays(i).toString(), "DIGITAL", i));
+        }
+        run(new PublishedRecordLedger(file, converter, 7, logger), results.subList(0, 60).toArray(new StageResult[60]));
+
+        PublishedRecordLedger ledger = new PublishedRecordLedger(file, converter, 7, logger);
+        List<StageResult> published = run(ledger, results.toArray(new StageResult[results.size()]));
+
+        assertEquals(40, published.size());
+        assertEquals(100, ledger.size());
+        assertFalse(new File(file.getPath() + ".changes").exists());
+        assertEquals(0, run(new PublishedRecordLedger(file, converter, 7, logger), results.toArray(new StageResult[results.size()])).size());
+    }
+
+    @Test
+    public void finish_shouldRememberTheLastChangeToARecord_whenItsChangesAreSpilledInDifferentRuns() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        run(new PublishedRecordLedger(file, converter, 1, logger), result("2014-01-22", "DIGITAL", 52), result("2014-01-22", "DIGITAL", 20));
+
+        List<StageResult> published = run(new PublishedRecordLedger(file, converter, 1, logger), result("2014-01-22", "DIGITAL", 20));
+
+        assertEquals(0, published.size());
+    }
+
+    @Test
+    public void finish_shouldDeleteTheSpilledChanges_whenTheDownstreamSinkFails() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        StageResultSink failingSink = mock(StageResultSink.class);
+        doThrow(new IOException("expected")).when(failingSink).finish();
+        StageResultSink sink = new PublishedRecordLedger(file, converter, 1, logger).decorate(failingSink);
+        sink.accept(StageResultBatch.of(Arrays.asList(result("2014-01-22", "DIGITAL", 52), result("2014-01-23", "DIGITAL", 20))));
+
+        try {
+            sink.finish();
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals("expected", e.getMessage());
+        }
+        assertFalse(new File(file.getPath() + ".changes").exists());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void constructor_shouldThrowAnIOException_givenAFileThatIsNotALedger() throws Exception {
+        File file = tempFiles.createTempFile("ledger");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a ledger at all".getBytes("UTF-8"));
+        }
+
+        try {
+            new PublishedRecordLedger(file, converter, logger);
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals(file.getAbsolutePath() + " is not a published record ledger", e.getMessage());
+        }
+    }
+
+    @Test
+    public void close_shouldDeleteTheChangesOfARunThatFailed() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("ledger");
+        File spillFile = new File(file.getPath() + ".changes");
+        StageResultSink downstream = mock(StageResultSink.class);
+        doThrow(new IOException("expected")).when(downstream).accept(any(StageResultBatch.class));
+        StageResultSink sink = new PublishedRecordLedger(file, converter, logger).decorate(downstream);
+
+        try {
+            sink.accept(StageResultBatch.of(Arrays.asList(result("2014-01-22", "DIGITAL", 52))));
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals("expected", e.getMessage());
+        }
+        assertTrue(spillFile.exists());
+        sink.close();
+
+        assertFalse(spillFile.exists());
+        assertFalse(isOpen(spillFile));
+        assertFalse(file.exists());
+        verify(downstream).close();
+    }
+
+    /**
+     * @return whether this process has the file open, as far as {@code /proc} can tell; false where there is no
+     * {@code /proc}
+     */
+    private static boolean isOpen(File file) throws IOException {
+        File[] descriptors = new File("/proc/self/fd").listFiles();
+        if (descriptors == null) {
+            return false;
+        }
+        for (File descriptor : descriptors) {
+            try {
+                if (Files.readSymbolicLink(descriptor.toPath()).toString().startsWith(file.getAbsolutePath())) {
+                    return true;
+                }
+            } catch (IOException ignore) {
+                //closed while we were looking
+            }
+        }
+        return false;
+    }
+
+    private List<StageResult> run(PublishedRecordLedger ledger, StageResult... results) throws IOException {
+        final List<StageResult> published = new ArrayList<>();
+        StageResultSink sink = ledger.decorate(new StageResultSink() {
+            @Override
+            public void accept(StageResultBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    published.add(batch.get(i));
+                }
+            }
+
+            @Override
+            public void finish() {}
+
+            @Override
+            public void close() {}
+        });
+        sink.accept(StageResultBatch.of(Arrays.asList(results)));
+        sink.finish();
+        return published;
+    }
+
+    private StageResult result(String date, String channel, int count) {
+        return new StageResult(new LocalDate(date), Period.day, channel, count);
+    }
+}
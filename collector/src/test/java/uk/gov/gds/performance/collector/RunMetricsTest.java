@@ -0,0 +1,100 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
+
+public class RunMetricsTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
+
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
+
+    @After
+    public void resetClock() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void finishRun_shouldLogWhatHappenedDuringTheRunOnly() throws Exception {
+        RunMetrics metrics = new RunMetrics();
+        metrics.getRowsRead().add(100);
+        metrics.getPublishTime().observeNanos(TimeUnit.MILLISECONDS.toNanos(40));
+
+        metrics.startRun();
+        metrics.getRowsRead().add(10);
+        metrics.getRecordsPublished().add(8);
+        metrics.getBytesSent().add(800);
+        metrics.getQueryTime().observeNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.getSerializationTime().observeNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.getPublishTime().observeNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.getPublishTime().observeNanos(TimeUnit.MILLISECONDS.toNanos(22));
+        metrics.finishRun(true, logger);
+
+        verify(logger).log(CollectorLogMessage.RunMetricsSummary, 10L, 8L, 800L, 30L, 5L, 42L);
+        assertEquals(110, metrics.getRowsRead().get());
+    }
+
+    @Test
+    public void finishRun_shouldSetWhenTheLastRunFinishedHowLongItTookAndWhetherItSucceeded() throws Exception {
+        RunMetrics metrics = new RunMetrics();
+        DateTimeUtils.setCurrentMillisFixed(1400000000000L);
+        metrics.startRun();
+        DateTimeUtils.setCurrentMillisFixed(1400000002500L);
+
+        metrics.finishRun(false, logger);
+
+        assertEquals(new BigDecimal("1400000002.500"), metrics.getLastRunTimestamp().get());
+        assertEquals(new BigDecimal("2.500"), metrics.getLastRunDuration().get());
+        assertEquals(BigDecimal.ZERO, metrics.getLastRunSuccess().get());
+    }
+
+    @Test
+    public void finishRun_shouldWriteEveryMetricToTheTextFile_whenOneIsConfigured() throws Exception {
+        File file = tempFiles.createTempFileThatDoesNotExist("prom");
+        RunMetrics metrics = new RunMetrics(file);
+        metrics.startRun();
+        metrics.getRowsRead().add(10);
+
+        metrics.finishRun(true, logger);
+
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        for (String line : new String[]{
+                "collector_rows_read_total 10",
+                "collector_records_published_total 0",
+                "collector_bytes_sent_total 0",
+                "collector_database_query_seconds_count 0",
+                "collector_serialization_seconds_count 0",
+                "collector_publish_request_seconds_count 0",
+                "collector_last_run_success 1"}) {
+            assertTrue(line + " in\n" + text, text.contains("\n" + line + "\n"));
+        }
+    }
+
+    @Test
+    public void finishRun_shouldLogAndCarryOn_whenTheTextFileCannotBeWritten() throws Exception {
+        File file = new File(tempFiles.createTempFileThatDoesNotExist("dir"), "collector.prom");
+        RunMetrics metrics = new RunMetrics(file);
+        metrics.startRun();
+
+        metrics.finishRun(true, logger);
+
+        verify(logger).log(eq(CollectorLogMessage.MetricsFileNotWritten), any(IOException.class), eq(file.getAbsolutePath()));
+    }
+}
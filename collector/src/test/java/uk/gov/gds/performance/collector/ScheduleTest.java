@@ -0,0 +1,39 @@
+package uk.gov.gds.performance.collector;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScheduleTest {
+
+    @Test
+    public void parse_shouldReturnAFixedRateSchedule_givenANumberOfSeconds() throws Exception {
+        Schedule schedule = Schedule.parse(" 900 ", 1000000);
+
+        assertTrue(schedule instanceof FixedRateSchedule);
+        assertEquals("every 900 seconds", schedule.toString());
+    }
+
+    @Test
+    public void parse_shouldReturnACronSchedule_givenACronExpression() throws Exception {
+        Schedule schedule = Schedule.parse("30 2 * * *", 1000000);
+
+        assertTrue(schedule instanceof CronSchedule);
+        assertEquals("30 2 * * *", schedule.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_shouldThrowAnIllegalArgumentException_givenZeroSeconds() throws Exception {
+        Schedule.parse("0", 1000000);
+    }
+
+    @Test
+    public void nextRunAfter_shouldCountFromTheStartTime_forAFixedRateSchedule() throws Exception {
+        Schedule schedule = Schedule.parse("60", 1000000);
+
+        assertEquals(1000000, schedule.nextRunAfter(999999));
+        assertEquals(1060000, schedule.nextRunAfter(1000000));
+        assertEquals(1060000, schedule.nextRunAfter(1059999));
+        assertEquals(1120000, schedule.nextRunAfter(1060000));
+    }
+}
@@ -0,0 +1,105 @@
+package uk.gov.gds.performance.collector;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class StageResultBatchTest {
+    private final ChannelDictionary channels = new ChannelDictionary();
+
+    @Test
+    public void add_shouldStoreEachColumnOfTheRow() throws Exception {
+        StageResultBatch batch = new StageResultBatch(channels, 4);
+
+        batch.add(new StageResult(new LocalDate("2014-01-22"), Period.week, "DIGITAL", 52));
+
+        assertEquals(1, batch.size());
+        assertEquals(new LocalDate("2014-01-22"), batch.getTimestamp(0));
+        assertEquals(16092, batch.getEpochDay(0));
+        assertEquals(Period.week, batch.getPeriod(0));
+        assertEquals("DIGITAL", batch.getChannel(0));
+        assertEquals(channels.idOf("DIGITAL"), batch.getChannelId(0));
+        assertEquals(52, batch.getCount(0));
+    }
+
+    @Test
+    public void getKey_shouldPackTheDatePeriodAndChannel_soThatTheyCanBeUnpacked() throws Exception {
+        StageResultBatch batch = new StageResultBatch(channels, 2);
+        batch.add(-3, Period.quarter, 12345, 1);
+        batch.add(16092, Period.hour, 0, 2);
+
+        long key = batch.getKey(0);
+        assertEquals(-3, StageResultBatch.epochDayOf(key));
+        assertEquals(Period.quarter, StageResultBatch.periodOf(key));
+        assertEquals(12345, StageResultBatch.channelIdOf(key));
+        assertEquals(StageResultBatch.keyOf(16092, Period.hour, 0), batch.getKey(1));
+        assertNotEquals(batch.getKey(0), batch.getKey(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keyOf_shouldRejectAChannelIdThatDoesNotFit() throws Exception {
+        StageResultBatch.keyOf(0, Period.day, 1 << 28);
+    }
+
+    @Test
+    public void get_shouldReturnAStageResultWithTheSameId() throws Exception {
+        StageResult result = new StageResult(new LocalDate("2014-01-22"), Period.day, "PAPER", 12);
+        StageResultBatch batch = StageResultBatch.of(Arrays.asList(result));
+
+        assertEquals(result.get_id(), batch.get(0).get_id());
+    }
+
+    @Test
+    public void add_shouldThrowAnIllegalStateException_whenTheBatchIsFull() throws Exception {
+        StageResultBatch batch = new StageResultBatch(channels, 1);
+        batch.add(0, Period.day, 0, 1);
+
+        assertTrue(batch.isFull());
+        try {
+            batch.add(1, Period.day, 0, 1);
+            fail("Expected an exception");
+        } catch (IllegalStateException e) {
+            assertEquals("the batch is full", e.getMessage());
+        }
+    }
+
+    @Test
+    public void clear_shouldLetTheBatchBeRefilled() throws Exception {
+        StageResultBatch batch = new StageResultBatch(channels, 1);
+        batch.add(0, Period.day, 0, 1);
+
+        batch.clear();
+        batch.add(1, Period.month, 0, 2);
+
+        assertEquals(1, batch.size());
+        assertEquals(Period.month, batch.getPeriod(0));
+    }
+
+    @Test
+    public void idOf_shouldGiveTheSameChannelTheSameId() throws Exception {
+        int digital = channels.idOf("DIGITAL");
+        int paper = channels.idOf("PAPER");
+
+        assertEquals(digital, channels.idOf("DIGITAL"));
+        assertNotEquals(digital, paper);
+        assertEquals("PAPER", channels.nameOf(paper));
+        assertEquals(2, channels.size());
+    }
+
+    @Test
+    public void toEpochDay_shouldGiveTheSameDateAsJodaTime_givenAJdbcDateInAZoneAheadOfUtc() throws Exception {
+        DateTimeZone originalZone = DateTimeZone.getDefault();
+        try {
+            DateTimeZone.setDefault(DateTimeZone.forID("Europe/Paris"));
+            java.sql.Date midnight = new java.sql.Date(new LocalDate("2014-07-01").toDateTimeAtStartOfDay().getMillis());
+
+            assertEquals(StageResultBatch.toEpochDay(new LocalDate(midnight)), StageResultBatch.toEpochDay(midnight));
+        } finally {
+            DateTimeZone.setDefault(originalZone);
+        }
+    }
+}
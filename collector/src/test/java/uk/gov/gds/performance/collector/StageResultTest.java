@@ -3,8 +3,12 @@ package uk.gov.gds.performance.collector;
 import org.joda.time.LocalDate;
 import org.junit.Test;
 
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 
 public class StageResultTest {
 
@@ -19,4 +23,42 @@ public class StageResultTest {
         assertNotEquals(result.get_id(), new StageResult(now, Period.week, "DIGITAL", 50).get_id());
         assertNotEquals(result.get_id(), new StageResult(now, Period.day, "DIGITA", 50).get_id());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void get_id_shouldBeTheHexMd5OfTheDatePeriodAndChannel() throws Exception {
+        String[] channels = {"DIGITAL", "paper", "", "caf\u00e9 \u2013 \uD83D\uDE00", "a\"b\\c"};
+        LocalDate[] dates = {new LocalDate("2014-01-22"), new LocalDate("0999-12-31"), new LocalDate("10000-01-01")};
+        for (LocalDate date : dates) {
+            for (Period period : Period.values()) {
+                for (String channel : channels) {
+                    assertEquals(md5Hex(date.toString() + period.toString() + channel), new StageResult(date, period, channel, 1).get_id());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void get_id_shouldOnlyWorkOutTheIdOnce() throws Exception {
+        StageResult result = new StageResult(LocalDate.now(), Period.day, "DIGITAL", 50);
+
+        assertSame(result.get_id(), result.get_id());
+    }
+
+    @Test
+    public void idDigestOf_shouldGiveTheMd5ThatTheIdIsTheHexOf() throws Exception {
+        LocalDate date = new LocalDate("2014-01-22");
+        byte[] digest = new byte[16];
+
+        StageResult.idDigestOf(date, Period.day, "DIGITAL", digest);
+
+        assertArrayEquals(MessageDigest.getInstance("MD5").digest("2014-01-22dayDIGITAL".getBytes("UTF-8")), digest);
+    }
+
+    private static String md5Hex(String key) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"))) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
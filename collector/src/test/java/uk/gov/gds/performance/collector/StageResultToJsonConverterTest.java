@@ -2,6 +2,7 @@ package uk.gov.gds.performance.collector;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.joda.time.format.ISODateTimeFormat;
 import org.junit.Test;
@@ -14,6 +15,7 @@ import uk.co.o2.json.schema.jaxrs.SchemaLookup;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.util.Collections;
@@ -24,6 +26,54 @@ import static org.junit.Assert.assertNotNull;
 
 public class StageResultToJsonConverterTest {
 
+    @Test
+    public void write_shouldWriteExactlyTheSameBytesAsAJsonWriter() throws Exception {
+        StageResultToJsonConverter convertor = new StageResultToJsonConverter();
+        StageResult result = new StageResult(new LocalDate("2014-01-22"), Period.month, "PAPER", 12);
+
+        assertEquals(toUtf8(convertor.convert(result)), write(convertor, result));
+    }
+
+    @Test
+    public void write_shouldEscapeAndEncodeChannelsExactlyAsAJsonWriterDoes() throws Exception {
+        StageResultToJsonConverter convertor = new StageResultToJsonConverter();
+        StringBuilder channel = new StringBuilder("\"quoted\" back\\slash / \uD83D\uDE00 ");
+        for (char c = 0; c < 0x300; c++) {
+            channel.append(c);
+        }
+        StageResult result = new StageResult(new LocalDate("2014-01-22"), Period.day, channel.toString(), -7);
+
+        assertEquals(toUtf8(convertor.convert(result)), write(convertor, result));
+    }
+
+    @Test
+    public void write_shouldKeepWritingTheRightValues_whenDatesAndChannelsOutnumberItsCaches() throws Exception {
+        StageResultToJsonConverter convertor = new StageResultToJsonConverter();
+        LocalDate firstDay = new LocalDate("2014-01-01");
+        for (int round = 0; round < 2; round++) {
+            for (int day = 0; day < 600; day += 7) {
+                StageResult result = new StageResult(firstDay.plusDays(day), Period.day, "Channel" + (day % 300), day);
+                assertEquals(toUtf8(convertor.convert(result)), write(convertor, result));
+            }
+        }
+    }
+
+    @Test
+    public void write_shouldFormatTimestampsInTheCurrentDefaultTimeZone_whenItChanges() throws Exception {
+        StageResultToJsonConverter convertor = new StageResultToJsonConverter();
+        StageResult result = new StageResult(new LocalDate("2014-07-01"), Period.day, "DIGITAL", 1);
+        DateTimeZone originalZone = DateTimeZone.getDefault();
+        try {
+            DateTimeZone.setDefault(DateTimeZone.UTC);
+            write(convertor, result);
+            DateTimeZone.setDefault(DateTimeZone.forID("Europe/London"));
+
+            assertEquals(toUtf8(convertor.convert(result)), write(convertor, result));
+        } finally {
+            DateTimeZone.setDefault(originalZone);
+        }
+    }
+
     @Test
     public void convert_shouldCreateAJsonObjectWithTheCorrectValues() throws Exception {
         StageResultToJsonConverter convertor = new StageResultToJsonConverter();
@@ -60,4 +110,18 @@ public class StageResultToJsonConverterTest {
         List<ErrorMessage> errorMessages = schema.validate(mapper.readTree(writer.toString()));
         assertEquals(Collections.<ErrorMessage>emptyList(), errorMessages);
     }
+
+    private String write(StageResultToJsonConverter convertor, StageResult result) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        convertor.write(StageResultBatch.of(Collections.singletonList(result)), 0, out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private String toUtf8(JsonObject json) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonWriter writer = Json.createWriter(out)) {
+            writer.writeObject(json);
+        }
+        return new String(out.toByteArray(), "UTF-8");
+    }
 }
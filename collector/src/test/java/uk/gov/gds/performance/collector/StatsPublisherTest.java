@@ -5,24 +5,39 @@ import org.joda.time.LocalDate;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import uk.gov.gds.performance.collector.logging.OpsLogger;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.client.AsyncInvoker;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.InvocationCallback;
 import javax.ws.rs.client.WebTarget;
-import java.io.StringWriter;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
+import static uk.gov.gds.performance.collector.logging.OpsLoggerMockFactory.mockLogger;
 
 public class StatsPublisherTest {
 
     private final WebTarget webTarget = mock(WebTarget.class);
     private final Invocation.Builder requestBuilder = mock(Invocation.Builder.class);
+    private final OpsLogger<CollectorLogMessage> logger = mockLogger(CollectorLogMessage.class);
 
     @Before
     public void setup() {
@@ -31,7 +46,7 @@ public class StatsPublisherTest {
 
     @Test
     public void publish_shouldPostStatsToThePerformancePlatform() throws Exception {
-        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter());
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), logger);
 
         Invocation invocation = mock(Invocation.class);
         when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(invocation);
@@ -52,17 +67,273 @@ public class StatsPublisherTest {
         List<StageResult> results = new ArrayList<>();
         results.add(expectedResult);
         StageResultToJsonConverter mockConverter = mock(StageResultToJsonConverter.class);
-        when(mockConverter.convert(expectedResult)).thenReturn(Json.createObjectBuilder().add("foo", "bar").build());
-        StatsPublisher publisher = new StatsPublisher(webTarget, mockConverter);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((OutputStream) invocation.getArguments()[2]).write("{\"foo\":\"bar\"}".getBytes("UTF-8"));
+                return null;
+            }
+        }).when(mockConverter).write(any(StageResultBatch.class), eq(0), any(OutputStream.class));
+        StatsPublisher publisher = new StatsPublisher(webTarget, mockConverter, logger);
 
         publisher.publish(results);
 
-        verify(mockConverter).convert(expectedResult);
+        ArgumentCaptor<StageResultBatch> batch = ArgumentCaptor.forClass(StageResultBatch.class);
+        verify(mockConverter).write(batch.capture(), eq(0), any(OutputStream.class));
+        assertEquals(expectedResult.get_id(), batch.getValue().get(0).get_id());
         verify(requestBuilder).buildPost(captor.capture());
-        JsonObject jsonObject = (JsonObject) captor.getValue().getEntity();
-        StringWriter writer = new StringWriter();
-        Json.createWriter(writer).writeObject(jsonObject);
-        String body = writer.toString();
+        String body = new String(bytesOf(captor.getValue()), "UTF-8");
         assertEquals("{\"foo\":\"bar\"}", body);
     }
+
+    @Test
+    public void openSession_shouldPostEachResultAsItIsAcceptedAndCountThem() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), logger);
+        Invocation invocation = mock(Invocation.class);
+        when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(invocation);
+
+        StatsPublisher.Session session = publisher.openSession();
+        session.accept(batchOf(new StageResult(new LocalDate(), Period.day, "DIGITAL", 15)));
+        verify(invocation).invoke(String.class);
+        session.accept(batchOf(new StageResult(new LocalDate(), Period.day, "PAPER", 3)));
+        session.finish();
+
+        verify(invocation, times(2)).invoke(String.class);
+        assertEquals(2, session.getPublishedCount());
+    }
+
+    @Test
+    public void publish_shouldSendJsonArraysOfAtMostTheMaximumNumberOfRecords_whenBatching() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 2, Integer.MAX_VALUE, 1, logger);
+        Invocation invocation = mock(Invocation.class);
+        ArgumentCaptor<Entity> captor = ArgumentCaptor.forClass(Entity.class);
+        when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(invocation);
+
+        publisher.publish(buildStageResults(5));
+
+        verify(requestBuilder, times(3)).buildPost(captor.capture());
+        assertEquals(2, toJsonArray(captor.getAllValues().get(0)).size());
+        assertEquals(2, toJsonArray(captor.getAllValues().get(1)).size());
+        assertEquals(1, toJsonArray(captor.getAllValues().get(2)).size());
+        assertEquals("digital0", toJsonArray(captor.getAllValues().get(0)).getJsonObject(0).getString("channel"));
+        assertEquals("digital4", toJsonArray(captor.getAllValues().get(2)).getJsonObject(0).getString("channel"));
+    }
+
+    @Test
+    public void publish_shouldStartANewBatchRatherThanExceedTheMaximumRequestSize_whenBatching() throws Exception {
+        StageResultToJsonConverter converter = new StageResultToJsonConverter();
+        int singleRecordSize = converter.convert(buildStageResults(1).get(0)).toString().length();
+        StatsPublisher publisher = new StatsPublisher(webTarget, converter, 100, 2 * singleRecordSize + 3, 1, logger);
+        Invocation invocation = mock(Invocation.class);
+        ArgumentCaptor<Entity> captor = ArgumentCaptor.forClass(Entity.class);
+        when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(invocation);
+
+        publisher.publish(buildStageResults(3));
+
+        verify(requestBuilder, times(2)).buildPost(captor.capture());
+        assertEquals(2, toJsonArray(captor.getAllValues().get(0)).size());
+        assertEquals(1, toJsonArray(captor.getAllValues().get(1)).size());
+    }
+
+    @Test
+    public void openSession_shouldCountAndLogEachBatchAsItIsSent_whenBatching() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 2, Integer.MAX_VALUE, 1, logger);
+        when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(mock(Invocation.class));
+
+        StatsPublisher.Session session = publisher.openSession();
+        for (StageResult result : buildStageResults(3)) {
+            session.accept(batchOf(result));
+        }
+        assertEquals(2, session.getPublishedCount());
+        session.finish();
+
+        assertEquals(3, session.getPublishedCount());
+        verify(logger).log(eq(CollectorLogMessage.BatchPublished), eq(2), anyInt(), anyLong());
+        verify(logger).log(eq(CollectorLogMessage.BatchPublished), eq(1), anyInt(), anyLong());
+    }
+
+    @Test
+    public void publish_shouldRecordTheBytesSentAndTimeTaken_whenBatching() throws Exception {
+        RunMetrics metrics = new RunMetrics();
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 2, Integer.MAX_VALUE, 1, 0, 0, metrics, logger);
+        ArgumentCaptor<Entity> captor = ArgumentCaptor.forClass(Entity.class);
+        when(requestBuilder.buildPost(captor.capture())).thenReturn(mock(Invocation.class));
+
+        publisher.publish(buildStageResults(3));
+
+        long bytes = 0;
+        for (Entity entity : captor.getAllValues()) {
+            bytes += bytesOf(entity).length;
+        }
+        assertEquals(bytes, metrics.getBytesSent().get());
+        assertEquals(2, metrics.getPublishTime().getCount());
+        assertEquals(1, metrics.getSerializationTime().getCount());
+    }
+
+    @Test
+    public void publish_shouldLogAMessageAndThrowAnApplicationException_whenABatchIsRejected() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 10, Integer.MAX_VALUE, 1, logger);
+        Invocation invocation = mock(Invocation.class);
+        InternalServerErrorException expectedException = new InternalServerErrorException();
+        when(invocation.invoke(String.class)).thenThrow(expectedException);
+        when(requestBuilder.buildPost(isA(Entity.class))).thenReturn(invocation);
+
+        try {
+            publisher.publish(buildStageResults(3));
+            fail("expected an exception");
+        } catch (ApplicationException e) {
+            verify(logger).log(eq(CollectorLogMessage.BatchPublishFailed), same(expectedException), eq(3), anyInt());
+        }
+    }
+
+    @Test
+    public void publish_shouldSendRequestsAsynchronouslyAndWaitForThemAllToComplete_whenConcurrent() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 2, Integer.MAX_VALUE, 3, logger);
+        AsyncInvoker asyncInvoker = mock(AsyncInvoker.class);
+        when(requestBuilder.async()).thenReturn(asyncInvoker);
+        final List<InvocationCallback<String>> callbacks = new CopyOnWriteArrayList<>();
+        when(asyncInvoker.post(isA(Entity.class), isA(InvocationCallback.class))).thenAnswer(new Answer<Object>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                callbacks.add((InvocationCallback<String>) invocation.getArguments()[1]);
+                return null;
+            }
+        });
+
+        final StatsPublisher.Session session = publisher.openSession();
+        for (StageResult result : buildStageResults(5)) {
+            session.accept(batchOf(result));
+        }
+        Thread finisher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    session.finish();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        finisher.start();
+        waitForCallbacks(callbacks, 3);
+        assertTrue("finish should wait for outstanding requests", finisher.isAlive());
+
+        for (InvocationCallback<String> callback : callbacks) {
+            callback.completed("ok");
+        }
+        finisher.join(5000);
+
+        assertFalse(finisher.isAlive());
+        assertEquals(5, session.getPublishedCount());
+        verify(requestBuilder, never()).buildPost(isA(Entity.class));
+    }
+
+    @Test
+    public void accept_shouldBlock_whenTheMaximumNumberOfRequestsAreInFlight() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 1, Integer.MAX_VALUE, 2, logger);
+        AsyncInvoker asyncInvoker = mock(AsyncInvoker.class);
+        when(requestBuilder.async()).thenReturn(asyncInvoker);
+        final List<InvocationCallback<String>> callbacks = new CopyOnWriteArrayList<>();
+        when(asyncInvoker.post(isA(Entity.class), isA(InvocationCallback.class))).thenAnswer(new Answer<Object>() {
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                callbacks.add((InvocationCallback<String>) invocation.getArguments()[1]);
+                return null;
+            }
+        });
+
+        final StatsPublisher.Session session = publisher.openSession();
+        final List<StageResult> results = buildStageResults(3);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (StageResult result : results) {
+                        session.accept(batchOf(result));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        producer.start();
+        waitForCallbacks(callbacks, 2);
+        Thread.sleep(100);
+        assertEquals("the third request should wait for a free slot", 2, callbacks.size());
+
+        callbacks.get(0).completed("ok");
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertEquals(3, callbacks.size());
+    }
+
+    @Test
+    public void finish_shouldLogEachFailureAndThrowAnApplicationException_whenConcurrentRequestsFail() throws Exception {
+        StatsPublisher publisher = new StatsPublisher(webTarget, new StageResultToJsonConverter(), 1, Integer.MAX_VALUE, 4, logger);
+        AsyncInvoker asyncInvoker = mock(AsyncInvoker.class);
+        when(requestBuilder.async()).thenReturn(asyncInvoker);
+        final InternalServerErrorException expectedException = new InternalServerErrorException();
+        when(asyncInvoker.post(isA(Entity.class), isA(InvocationCallback.class))).thenAnswer(new Answer<Object>() {
+            private int calls = 0;
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                InvocationCallback<String> callback = (InvocationCallback<String>) invocation.getArguments()[1];
+                if (calls++ == 1) {
+                    callback.failed(expectedException);
+                } else {
+                    callback.completed("ok");
+                }
+                return null;
+            }
+        });
+
+        StatsPublisher.Session session = publisher.openSession();
+        session.accept(batchOf(buildStageResults(1).get(0)));
+        session.accept(batchOf(buildStageResults(1).get(0)));
+        try {
+            session.finish();
+            fail("expected an exception");
+        } catch (ApplicationException e) {
+            verify(logger).log(eq(CollectorLogMessage.BatchPublishFailed), same(expectedException), eq(1), anyInt());
+            verify(logger).log(CollectorLogMessage.PublishRequestsFailed, 1, 2);
+            assertEquals(1, session.getPublishedCount());
+        }
+    }
+
+    private void waitForCallbacks(List<?> callbacks, int expected) throws InterruptedException {
+        for (int i = 0; i < 500 && callbacks.size() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, callbacks.size());
+    }
+
+    private List<StageResult> buildStageResults(int resultsToBuild) {
+        List<StageResult> results = new ArrayList<>();
+        for (int i = 0; i < resultsToBuild; i++) {
+            results.add(new StageResult(new LocalDate("2014-01-22"), Period.day, "DIGITAL" + i, i));
+        }
+        return results;
+    }
+
+    private JsonArray toJsonArray(Entity entity) throws IOException {
+        return Json.createReader(new ByteArrayInputStream(bytesOf(entity))).readArray();
+    }
+
+    /**
+     * @return the request body the entity is posted with
+     */
+    static byte[] bytesOf(Entity<?> entity) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) entity.getEntity()).write(out);
+        return out.toByteArray();
+    }
+
+    private static StageResultBatch batchOf(StageResult result) {
+        return StageResultBatch.of(Collections.singletonList(result));
+    }
 }
\ No newline at end of file
@@ -3,34 +3,48 @@ package uk.gov.gds.performance.collector;
 import org.hamcrest.*;
 import org.hsqldb.cmdline.SqlFile;
 import org.hsqldb.cmdline.SqlToolError;
+import org.hsqldb.jdbc.JDBCDataSource;
 import org.joda.time.LocalDate;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 public class StatsRepositoryTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
 
     private Connection conn;
+    private JDBCDataSource dataSource;
     private StatsRepository repo;
 
     @Before
     public void initDatabase() throws IOException, SQLException, SqlToolError {
         Properties props = new Properties();
         props.load(this.getClass().getResourceAsStream("/unittest-db.properties"));
-        conn = DriverManager.getConnection(props.getProperty("jdbc.url"), props.getProperty("username"), props.getProperty("password"));
-        repo = new StatsRepository(conn);
+        dataSource = new JDBCDataSource();
+        dataSource.setUrl(props.getProperty("jdbc.url"));
+        dataSource.setUser(props.getProperty("username"));
+        dataSource.setPassword(props.getProperty("password"));
+        conn = dataSource.getConnection();
+        repo = new StatsRepository(dataSource);
         String sqlFilePath = getClass().getResource("/test.sql").getFile();
         SqlFile sqlFile = new SqlFile(new File(sqlFilePath));
 
@@ -100,6 +114,139 @@ public class StatsRepositoryTest {
         assertThat(results, isEmpty());
     }
 
+    @Test
+    public void streamStatsBetween_shouldPassEveryRowToTheSinkAndReturnTheNumberOfRowsRead() throws Exception {
+        LocalDate startDate = new LocalDate("2014-01-22");
+        LocalDate endDate = new LocalDate("2014-01-23");
+        final List<StageResult> received = new ArrayList<>();
+
+        int rowsRead = repo.streamStatsBetween(new LocalDateRange(startDate, endDate), new StageResultSink() {
+            @Override
+            public void accept(StageResultBatch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    received.add(batch.get(i));
+                }
+            }
+
+            @Override
+            public void finish() {
+                fail("the repository should leave finishing the sink to the caller");
+            }
+
+            @Override
+            public void close() {
+                fail("the repository should leave closing the sink to the caller");
+            }
+        });
+
+        assertEquals(8, rowsRead);
+        assertEquals(8, received.size());
+    }
+
+    @Test
+    public void streamStatsBetween_shouldStopReading_whenTheThreadIsInterrupted() throws Exception {
+        StageResultSink sink = mock(StageResultSink.class);
+
+        Thread.currentThread().interrupt();
+        try {
+            repo.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23")), sink);
+            fail("Expected an exception");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        verifyZeroInteractions(sink);
+    }
+
+    @Test
+    public void findStatsBetween_shouldReturnOneResultWithTheTotalCountForEachEventTimePeriodAndChannel_whenAggregating() throws Exception {
+        LocalDate startDate = new LocalDate("2014-01-22");
+        repo = new StatsRepository(dataSource, 10, true);
+
+        List<StageResult> results = repo.findStatsBetween(new LocalDateRange(startDate, startDate));
+
+        assertEquals(2, results.size());
+        Map<String, Integer> countsByChannel = new HashMap<>();
+        for (StageResult result : results) {
+            assertEquals(startDate, result.getTimestamp());
+            assertEquals(Period.day, result.getPeriod());
+            countsByChannel.put(result.getChannel(), result.getCount());
+        }
+        assertEquals(Integer.valueOf(72), countsByChannel.get("DIGITAL"));
+        assertEquals(Integer.valueOf(17), countsByChannel.get("PAPER"));
+    }
+
+    @Test
+    public void findStatsBetween_shouldReturnTheTotalCountsForEveryDayInTheRange_whenAggregating() throws Exception {
+        repo = new StatsRepository(dataSource, 10, true);
+
+        List<StageResult> results = repo.findStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-25")));
+
+        assertEquals(6, results.size());
+        int total = 0;
+        for (StageResult result : results) {
+            total += result.getCount();
+        }
+        assertEquals(89 + 89 + 269, total);
+    }
+
+    @Test
+    public void streamStatsBetween_shouldReadEveryRowAndReportTheHighestMark_whenIncrementalCollectionHasNoCommittedMark() throws Exception {
+        addLoadIdColumn();
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", tempFiles.createTempFileThatDoesNotExist("properties"));
+        repo = new StatsRepository(dataSource, 10, false, incremental);
+
+        StageResultSink sink = incremental.decorate(mock(StageResultSink.class));
+        int rowsRead = repo.streamStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23")), sink);
+        sink.finish();
+
+        assertEquals(8, rowsRead);
+        assertEquals(HighWaterMark.fromColumnValue(2), incremental.getCommittedMark());
+    }
+
+    @Test
+    public void streamStatsBetween_shouldOnlyReadRowsBeyondTheCommittedMark_whenCollectingIncrementally() throws Exception {
+        addLoadIdColumn();
+        IncrementalCollection incremental = commitMark(1);
+        repo = new StatsRepository(dataSource, 10, false, incremental);
+
+        List<StageResult> results = repo.findStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23")));
+
+        assertEquals(1, results.size());
+        assertEquals(new LocalDate("2014-01-23"), results.get(0).getTimestamp());
+        assertEquals("DIGITAL", results.get(0).getChannel());
+        assertEquals(20, results.get(0).getCount());
+    }
+
+    @Test
+    public void streamStatsBetween_shouldReadTheWholeTotalOfAnyGroupWithAChangedRow_whenAggregatingIncrementally() throws Exception {
+        addLoadIdColumn();
+        IncrementalCollection incremental = commitMark(1);
+        repo = new StatsRepository(dataSource, 10, true, incremental);
+
+        List<StageResult> results = repo.findStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-23")));
+
+        assertEquals(1, results.size());
+        assertEquals("DIGITAL", results.get(0).getChannel());
+        assertEquals(72, results.get(0).getCount());
+    }
+
+    @Test
+    public void streamStatsBetween_shouldUseTheConfiguredFetchSize() throws Exception {
+        Connection mockConnection = mock(Connection.class);
+        PreparedStatement mockStatement = mock(PreparedStatement.class);
+        ResultSet mockResultSet = mock(ResultSet.class);
+        when(mockConnection.prepareStatement(anyString())).thenReturn(mockStatement);
+        when(mockStatement.executeQuery()).thenReturn(mockResultSet);
+
+        repo = new StatsRepository(dataSourceFor(mockConnection), 1234);
+        repo.findStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-22")));
+
+        verify(mockStatement).setFetchSize(1234);
+    }
+
     @Test
     public void findStatsBetween_shouldCloseTheJDBCStatementItCreates() throws Exception {
         Connection mockConnection = mock(Connection.class);
@@ -116,7 +263,7 @@ public class StatsRepositoryTest {
             }
         });
 
-        repo = new StatsRepository(mockConnection);
+        repo = new StatsRepository(dataSourceFor(mockConnection));
         LocalDate startDate = new LocalDate("2014-01-23");
         LocalDate endDate = new LocalDate("2014-01-22");
 
@@ -125,6 +272,22 @@ public class StatsRepositoryTest {
         verify(spyStatement.value).close();
     }
 
+    @Test
+    public void findStatsBetween_shouldReturnTheConnectionItBorrows() throws Exception {
+        Connection mockConnection = mock(Connection.class);
+        when(mockConnection.prepareStatement(anyString())).thenAnswer(new Answer<PreparedStatement>() {
+            @Override
+            public PreparedStatement answer(InvocationOnMock invocation) throws Throwable {
+                return conn.prepareStatement((String) invocation.getArguments()[0]);
+            }
+        });
+
+        repo = new StatsRepository(dataSourceFor(mockConnection));
+        repo.findStatsBetween(new LocalDateRange(new LocalDate("2014-01-22"), new LocalDate("2014-01-22")));
+
+        verify(mockConnection).close();
+    }
+
     @Test
     public void findStatsBetween_shouldCloseTheJDBCStatement_whenAnExceptionIsThrown() throws Exception {
         Connection mockConnection = mock(Connection.class);
@@ -137,7 +300,7 @@ public class StatsRepositoryTest {
         SQLException expectedException = new SQLException("expected!");
         when(mockResultSet.next()).thenThrow(expectedException);
 
-        repo = new StatsRepository(mockConnection);
+        repo = new StatsRepository(dataSourceFor(mockConnection));
         LocalDate startDate = new LocalDate("2014-01-23");
         LocalDate endDate = new LocalDate("2014-01-22");
 
@@ -150,6 +313,28 @@ public class StatsRepositoryTest {
         }
     }
 
+    private void addLoadIdColumn() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("alter table PP_DATA add column LOAD_ID int default 1 not null");
+            stmt.execute("update PP_DATA set LOAD_ID = 2 where EVENT_TIME = to_date('23-01-2014', 'DD-MM-YYYY') and CHANNEL = 'DIGITAL' and EVENT_COUNT = 20");
+        }
+        conn.commit();
+    }
+
+    private IncrementalCollection commitMark(int loadId) throws IOException {
+        IncrementalCollection incremental = new IncrementalCollection("LOAD_ID", tempFiles.createTempFileThatDoesNotExist("properties"));
+        StageResultSink sink = incremental.decorate(mock(StageResultSink.class));
+        incremental.observe(HighWaterMark.fromColumnValue(loadId));
+        sink.finish();
+        return incremental;
+    }
+
+    private static DataSource dataSourceFor(Connection connection) throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        return dataSource;
+    }
+
     private static class Holder<T> {
         T value = null;
     }
@@ -60,6 +60,12 @@ public abstract class LogMessageContractTest<T extends Enum<T> & LogMessage> {
         }
     }
 
+    @Test
+    public void getMessagePattern_shouldOnlyUseConversionsThatDoNotNeedAFormatter() throws Exception {
+        assertTrue(enumValue.name() + " uses a conversion other than %s, %d, %n or %%, so each message is formatted by a Formatter",
+                LogMessageFormat.parse(enumValue.getMessagePattern()).isSimple());
+    }
+
     private String join(List<T> values) {
         StringBuilder result = new StringBuilder();
         if (values.size() == 1) {
@@ -0,0 +1,63 @@
+package uk.gov.gds.performance.collector.logging;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Formattable;
+import java.util.Formatter;
+
+import static org.junit.Assert.*;
+
+public class LogMessageFormatTest {
+
+    @Test
+    public void appendTo_shouldFormatExactlyAsAFormatterWould_givenTheConversionsLogMessagesUse() throws Exception {
+        assertFormatsLikeAFormatter("Successfully published %d records", 12);
+        assertFormatsLikeAFormatter("Successfully published %d records", -2147483648);
+        assertFormatsLikeAFormatter("%d of %d requests failed", 3L, Long.MIN_VALUE);
+        assertFormatsLikeAFormatter("small numbers %d %d", (short) -7, (byte) 100);
+        assertFormatsLikeAFormatter("No results found in the date range %s to %s", new LocalDate("2014-01-01"), new LocalDate("2014-01-31"));
+        assertFormatsLikeAFormatter("%s and %d of nothing", null, null);
+        assertFormatsLikeAFormatter("100%% sure%non two lines");
+        assertFormatsLikeAFormatter("no conversions at all");
+        assertFormatsLikeAFormatter("%s%s", "café", "");
+        assertFormatsLikeAFormatter("extra arguments are ignored: %s", "one", "two");
+    }
+
+    @Test
+    public void appendTo_shouldRefuse_givenAPatternWithConversionsItDoesNotUnderstand() throws Exception {
+        assertRefuses("%5d records", 5);
+        assertRefuses("%1$s and %1$s", "a");
+        assertRefuses("%.2f seconds", 1.5);
+        assertRefuses("a trailing %", "a");
+        assertFalse(LogMessageFormat.parse("%x").isSimple());
+    }
+
+    @Test
+    public void appendTo_shouldRefuse_givenArgumentsThatAFormatterWouldTreatDifferently() throws Exception {
+        assertRefuses("%d records", 1.5);
+        assertRefuses("%d records", new BigDecimal("10"));
+        assertRefuses("%d records", "ten");
+        assertRefuses("%s and %s", "too few");
+        assertRefuses("%s", new Formattable() {
+            @Override
+            public void formatTo(Formatter formatter, int flags, int width, int precision) {
+                formatter.format("formatted");
+            }
+        });
+    }
+
+    private static void assertFormatsLikeAFormatter(String pattern, Object... args) {
+        StringBuilder result = new StringBuilder("prefix ");
+        assertTrue(LogMessageFormat.parse(pattern).isSimple());
+        assertTrue(LogMessageFormat.parse(pattern).appendTo(result, args));
+        assertEquals("prefix " + String.format(pattern, args), result.toString());
+    }
+
+    private static void assertRefuses(String pattern, Object... args) {
+        StringBuilder result = new StringBuilder("prefix ");
+        assertFalse(LogMessageFormat.parse(pattern).appendTo(result, args));
+        assertEquals("prefix ", result.toString());
+    }
+}
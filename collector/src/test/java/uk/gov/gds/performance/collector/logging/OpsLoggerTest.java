@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
 
@@ -52,9 +53,151 @@ public class OpsLoggerTest {
         assertEquals(expectedOutput.toString(), output.toString());
     }
 
+    @Test
+    public void log_shouldWriteTheNewTime_whenTheClockHasMovedOnSinceTheLastMessage() throws Exception {
+        logger.log(TestMessages.Foo);
+        DateTimeUtils.setCurrentMillisFixed(new Instant("2014-02-01T14:57:12.501Z").getMillis());
+        logger.log(TestMessages.Foo);
+
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Foo: An event of some kind occurred\n" +
+                "2014-02-01T14:57:12.501Z CODE-Foo: An event of some kind occurred\n", output.toString());
+    }
+
+    @Test
+    public void log_shouldFallBackToAFormatter_givenAPatternWithConversionsThatAreNotPreParsed() throws Exception {
+        logger.log(TestMessages.Baz, 7, 1.25);
+
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Baz: An event    7 times in 1.3 seconds\n", output.toString());
+    }
+
+    @Test
+    public void log_shouldWriteEachMessageWhole_whenAnArgumentLogsSomethingItself() throws Exception {
+        Object nested = new Object() {
+            @Override
+            public String toString() {
+                logger.log(TestMessages.Foo);
+                return "nested";
+            }
+        };
+
+        logger.log(TestMessages.Bar, 1, nested);
+
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Foo: An event of some kind occurred\n" +
+                "2014-02-01T14:57:12.500Z CODE-Bar: An event with 1 nested messages\n", output.toString());
+    }
+
+    @Test
+    public void log_shouldEncodeTheMessageAsAPrintStreamWould_givenCharactersOutsideAscii() throws Exception {
+        logger.log(TestMessages.Bar, 2, "caf\u00e9 \u2013 \uD83D\uDE00");
+        logger.log(TestMessages.Bar, 3, new String(new char[5000]).replace('\0', '\u00e9'));
+
+        TestPrintStream expectedOutput = new TestPrintStream();
+        expectedOutput.println("2014-02-01T14:57:12.500Z CODE-Bar: An event with 2 caf\u00e9 \u2013 \uD83D\uDE00 messages");
+        expectedOutput.println("2014-02-01T14:57:12.500Z CODE-Bar: An event with 3 " + new String(new char[5000]).replace('\0', '\u00e9') + " messages");
+        assertEquals(expectedOutput.toString(), output.toString());
+    }
+
+    @Test
+    public void close_shouldWriteEveryMessageInOrder_whenLoggingAsynchronously() throws Exception {
+        logger.startAsync(4, OpsLogger.OverflowPolicy.BLOCK);
+        TestPrintStream expectedOutput = new TestPrintStream();
+        for (int i = 0; i < 100; i++) {
+            logger.log(TestMessages.Bar, i, "queued");
+            expectedOutput.println("2014-02-01T14:57:12.500Z CODE-Bar: An event with " + i + " queued messages");
+        }
+
+        logger.close();
+
+        assertEquals(expectedOutput.toString(), output.toString());
+        assertEquals(0, logger.getDroppedCount());
+    }
+
+    @Test
+    public void log_shouldIncludeTheStackTrace_whenLoggingAsynchronously() throws Exception {
+        RuntimeException theException = new RuntimeException("theException");
+        logger.startAsync(4, OpsLogger.OverflowPolicy.BLOCK);
+
+        logger.log(TestMessages.Bar, theException, 1, "silly");
+        logger.close();
+
+        TestPrintStream expectedOutput = new TestPrintStream();
+        expectedOutput.print("2014-02-01T14:57:12.500Z CODE-Bar: An event with 1 silly messages ");
+        theException.printStackTrace(expectedOutput);
+        assertEquals(expectedOutput.toString(), output.toString());
+    }
+
+    @Test
+    public void log_shouldCountTheMessagesItDrops_whenTheBufferIsFullAndThePolicyIsToDrop() throws Exception {
+        BlockingPrintStream blockingOutput = new BlockingPrintStream();
+        OpsLogger<TestMessages> droppingLogger = new OpsLogger<>(blockingOutput);
+        droppingLogger.startAsync(2, OpsLogger.OverflowPolicy.DROP);
+
+        droppingLogger.log(TestMessages.Foo);
+        blockingOutput.writing.await(); //the writer thread now holds the first message, and is stuck writing it
+        for (int i = 0; i < 5; i++) {
+            droppingLogger.log(TestMessages.Foo);
+        }
+        blockingOutput.release.countDown();
+        droppingLogger.close();
+
+        assertEquals(3, droppingLogger.getDroppedCount());
+        assertEquals(3, blockingOutput.toString().split("\n").length);
+    }
+
+    @Test
+    public void close_shouldLogHowManyMessagesWereDropped_afterWritingTheRest() throws Exception {
+        BlockingPrintStream blockingOutput = new BlockingPrintStream();
+        OpsLogger<TestMessages> droppingLogger = new OpsLogger<>(blockingOutput);
+        droppingLogger.startAsync(1, OpsLogger.OverflowPolicy.DROP, TestMessages.Dropped);
+
+        droppingLogger.log(TestMessages.Foo);
+        blockingOutput.writing.await();
+        droppingLogger.log(TestMessages.Foo);
+        droppingLogger.log(TestMessages.Foo);
+        blockingOutput.release.countDown();
+        droppingLogger.close();
+        droppingLogger.close();
+
+        String[] lines = blockingOutput.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Dropped: 1 messages were dropped", lines[2]);
+    }
+
+    @Test
+    public void close_shouldNotLogAnything_whenNoMessagesWereDropped() throws Exception {
+        logger.startAsync(4, OpsLogger.OverflowPolicy.DROP, TestMessages.Dropped);
+        logger.log(TestMessages.Foo);
+
+        logger.close();
+
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Foo: An event of some kind occurred\n", output.toString());
+    }
+
+    @Test
+    public void log_shouldWriteOnTheLoggingThread_afterTheLoggerIsClosed() throws Exception {
+        logger.startAsync(4, OpsLogger.OverflowPolicy.BLOCK);
+        logger.close();
+
+        logger.log(TestMessages.Foo);
+
+        assertEquals("2014-02-01T14:57:12.500Z CODE-Foo: An event of some kind occurred\n", output.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void startAsync_shouldThrowAnIllegalStateException_whenAlreadyLoggingAsynchronously() throws Exception {
+        logger.startAsync(4, OpsLogger.OverflowPolicy.BLOCK);
+        try {
+            logger.startAsync(4, OpsLogger.OverflowPolicy.BLOCK);
+        } finally {
+            logger.close();
+        }
+    }
+
     static enum TestMessages implements LogMessage {
         Foo("CODE-Foo", "An event of some kind occurred"),
-        Bar("CODE-Bar", "An event with %d %s messages");
+        Bar("CODE-Bar", "An event with %d %s messages"),
+        Baz("CODE-Baz", "An event %4d times in %.1f seconds"),
+        Dropped("CODE-Dropped", "%d messages were dropped");
 
         //region LogMessage implementation guts
         private final String messageCode;
@@ -78,7 +221,7 @@ public class OpsLoggerTest {
     }
 
     static class TestPrintStream extends PrintStream {
-        private TestPrintStream() {
+        TestPrintStream() {
             super(new ByteArrayOutputStream(), true);
         }
 
@@ -89,4 +232,23 @@ public class OpsLoggerTest {
         }
 
     }
+
+    /**
+     * Holds up the first write until it is released.
+     */
+    static class BlockingPrintStream extends TestPrintStream {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void print(Object text) {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.print(text);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+package uk.gov.gds.performance.collector.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import uk.gov.gds.performance.collector.TempFileFixture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class MetricsRegistryTest {
+    @Rule
+    public TempFileFixture tempFiles = new TempFileFixture();
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    @Test
+    public void writeTo_shouldWriteEachMetricWithItsHelpAndType_inTheOrderTheyWereRegistered() throws Exception {
+        registry.counter("rows_total", "Rows read").add(42);
+        registry.gauge("last_run_seconds", "Duration\\of the\nlast run").setSeconds(1500);
+
+        assertEquals("# HELP rows_total Rows read\n" +
+                "# TYPE rows_total counter\n" +
+                "rows_total 42\n" +
+                "# HELP last_run_seconds Duration\\\\of the\\nlast run\n" +
+                "# TYPE last_run_seconds gauge\n" +
+                "last_run_seconds 1.5\n", write());
+    }
+
+    @Test
+    public void writeTo_shouldWriteCumulativeBucketsTheSumAndTheCount_forAHistogram() throws Exception {
+        Histogram histogram = registry.histogram("query_seconds", "Query time", 0.005, 0.5, 10);
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(250));
+        histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(300));
+        histogram.observeNanos(TimeUnit.SECONDS.toNanos(20));
+
+        assertEquals("# HELP query_seconds Query time\n" +
+                "# TYPE query_seconds histogram\n" +
+                "query_seconds_bucket{le=\"0.005\"} 1\n" +
+                "query_seconds_bucket{le=\"0.5\"} 3\n" +
+                "query_seconds_bucket{le=\"10\"} 3\n" +
+                "query_seconds_bucket{le=\"+Inf\"} 4\n" +
+                "query_seconds_sum 20.555\n" +
+                "query_seconds_count 4\n", write());
+        assertEquals(20555, histogram.getSumMillis());
+    }
+
+    @Test
+    public void writeTo_shouldWriteZeroes_whenNothingHasBeenRecorded() throws Exception {
+        registry.gauge("success", "Success");
+        registry.histogram("time_seconds", "Time", 1);
+
+        assertEquals("# HELP success Success\n" +
+                "# TYPE success gauge\n" +
+                "success 0\n" +
+                "# HELP time_seconds Time\n" +
+                "# TYPE time_seconds histogram\n" +
+                "time_seconds_bucket{le=\"1\"} 0\n" +
+                "time_seconds_bucket{le=\"+Inf\"} 0\n" +
+                "time_seconds_sum 0\n" +
+                "time_seconds_count 0\n", write());
+    }
+
+    @Test
+    public void register_shouldRejectAnInvalidName() throws Exception {
+        try {
+            registry.counter("rows-read", "Rows read");
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid metric name rows-read", e.getMessage());
+        }
+    }
+
+    @Test
+    public void register_shouldRejectANameThatIsAlreadyUsed() throws Exception {
+        registry.counter("rows_total", "Rows read");
+        try {
+            registry.gauge("rows_total", "Rows read");
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("A metric called rows_total is already registered", e.getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void histogram_shouldRejectBoundsThatAreNotIncreasing() throws Exception {
+        registry.histogram("time_seconds", "Time", 1, 0.5);
+    }
+
+    @Test
+    public void writeTextFile_shouldReplaceTheFile_withoutLeavingATemporaryFileBehind() throws Exception {
+        File file = tempFiles.createTempFile("prom");
+        Files.write(file.toPath(), "stale\n".getBytes(StandardCharsets.UTF_8));
+        registry.counter("rows_total", "Rows read").add(3);
+
+        registry.writeTextFile(file);
+
+        assertEquals(write(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File(file.getParentFile(), "." + file.getName() + ".tmp").exists());
+    }
+
+    private String write() throws IOException {
+        StringWriter out = new StringWriter();
+        registry.writeTo(out);
+        return out.toString();
+    }
+}